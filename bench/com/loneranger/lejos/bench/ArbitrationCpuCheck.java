@@ -0,0 +1,144 @@
+package com.loneranger.lejos.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.loneranger.lejos.arbitrator.ImprovedArbitrator;
+import com.loneranger.lejos.arbitrator.ReadinessSignal;
+import com.loneranger.lejos.arbitrator.SignallingBehavior;
+import com.loneranger.lejos.bench.StandIns.HoldingBehavior;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Reproduces the comparison of the arbitration modes in CPU and decision
+ * latency: a parked fallback and one signalling behaviour fired every
+ * <code>period</code> ms, run for <code>events</code> firings in each mode.
+ * Prints, per mode, the CPU time all threads used as a share of one core,
+ * the mean and worst time from a firing to its action() running, and how
+ * many passes the Monitor thread made.
+ *
+ * {@link ArbitratorBenchmark} measures the latency alone in more detail;
+ * this is the quick check of what POLLING costs an otherwise idle robot.
+ * Pin it to one core (e.g. taskset -c 0) to see what the brick's single
+ * core would.
+ *
+ * Arguments: [events, default 200] [period ms, default 10]
+ */
+public class ArbitrationCpuCheck {
+	// for the arbitrator to settle before and after each run
+	private static final long SETTLE_MS = 500;
+
+	/**
+	 * Wants control when fired, records how long that took to act on and
+	 * gives control straight back.
+	 */
+	private static class TimedBehavior implements SignallingBehavior {
+		volatile private boolean fired = false;
+		volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+		volatile private long firedNanos;
+		volatile private long totalNanos = 0;
+		volatile private long maxNanos = 0;
+		volatile private int actions = 0;
+
+		@Override
+		public void setReadinessSignal(ReadinessSignal signal) {
+			this.readiness = signal;
+		}
+
+		public void fire() {
+			firedNanos = System.nanoTime();
+			setFired(true);
+		}
+
+		@Override
+		public boolean takeControl() {
+			return fired;
+		}
+
+		@Override
+		public void action() {
+			long latency = System.nanoTime() - firedNanos;
+			totalNanos += latency;
+			maxNanos = Math.max(maxNanos, latency);
+			actions++;
+			setFired(false);
+		}
+
+		@Override
+		public void suppress() {
+			setFired(false);
+		}
+
+		private synchronized void setFired(boolean ready) {
+			fired = ready;
+			readiness.readinessChanged(ready);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long periodMs = args.length > 1 ? Long.parseLong(args[1]) : 10;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadCpuTimeSupported()) {
+			System.out.println("this JVM can't measure thread CPU time");
+			System.exit(1);
+		}
+		threads.setThreadCpuTimeEnabled(true);
+
+		System.out.println(String.format("%d events %d ms apart, per mode", events, periodMs));
+		System.out.println("mode          cpu %  mean us    max us  monitor passes");
+		for (ImprovedArbitrator.Mode mode : ImprovedArbitrator.Mode.values()) {
+			HoldingBehavior fallback = new HoldingBehavior();
+			TimedBehavior timed = new TimedBehavior();
+			final ImprovedArbitrator arbitrator = new ImprovedArbitrator(new Behavior[] { fallback, timed }, true,
+					mode, ImprovedArbitrator.DEFAULT_WAKE_TIMEOUT_MS);
+			Thread arbitration = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					arbitrator.go();
+				}
+			}, "arbitrator");
+			arbitration.setDaemon(true);
+			arbitration.start();
+			Thread.sleep(SETTLE_MS);
+
+			long passes = arbitrator.getMonitorPassCount();
+			long cpu = totalCpuNanos(threads);
+			long start = System.nanoTime();
+			for (int i = 0; i < events; i++) {
+				timed.fire();
+				Thread.sleep(periodMs);
+			}
+			long elapsed = System.nanoTime() - start;
+			cpu = totalCpuNanos(threads) - cpu;
+			passes = arbitrator.getMonitorPassCount() - passes;
+
+			// let go() return, which stops the Monitor thread too
+			fallback.finish();
+			arbitrator.wakeUp();
+			arbitration.join(SETTLE_MS);
+			Thread.sleep(SETTLE_MS);
+
+			int actions = Math.max(1, timed.actions);
+			System.out.println(String.format("%-12s %6.1f %8.1f %9.1f %15d%s", mode, 100.0 * cpu / elapsed,
+					timed.totalNanos / 1e3 / actions, timed.maxNanos / 1e3, passes,
+					timed.actions < events ? "  (" + (events - timed.actions) + " events missed)" : ""));
+		}
+	}
+
+	/**
+	 * CPU time used so far by the threads that are alive now - the ones a
+	 * finished run left behind have stopped by then.
+	 */
+	private static long totalCpuNanos(ThreadMXBean threads) {
+		long total = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long nanos = threads.getThreadCpuTime(id);
+			if (nanos > 0) {
+				total += nanos;
+			}
+		}
+		return total;
+	}
+}
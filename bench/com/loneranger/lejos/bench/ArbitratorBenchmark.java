@@ -0,0 +1,108 @@
+package com.loneranger.lejos.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.loneranger.lejos.arbitrator.ImprovedArbitrator;
+import com.loneranger.lejos.bench.StandIns.HoldingBehavior;
+import com.loneranger.lejos.bench.StandIns.TriggeredBehavior;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Latency of the arbitrator reacting to the top priority behaviour becoming
+ * ready while a parked fallback holds control, with <code>behaviors</code>
+ * behaviours in the array:
+ * <ul>
+ * <li>suppression - until the fallback's suppress() is called</li>
+ * <li>decision - until the top behaviour's action() has run, which includes
+ * the fallback returning and the hand-over to the arbitrator thread</li>
+ * </ul>
+ * Each invocation waits for the fallback to be holding again first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArbitratorBenchmark {
+
+	@Param({ "4", "16", "64" })
+	public int behaviors;
+
+	@Param({ "POLLING", "EVENT_DRIVEN", "READY_SET" })
+	public ImprovedArbitrator.Mode mode;
+
+	private HoldingBehavior fallback;
+	private TriggeredBehavior top;
+	private ImprovedArbitrator arbitrator;
+	private Thread arbitration;
+
+	@Setup(Level.Trial)
+	public void start() {
+		Behavior[] array = new Behavior[behaviors];
+		fallback = new HoldingBehavior();
+		array[0] = fallback;
+		for (int i = 1; i < behaviors; i++) {
+			// the ones in between never fire, but the monitor still has to
+			// look at them
+			array[i] = new TriggeredBehavior();
+		}
+		top = (TriggeredBehavior) array[behaviors - 1];
+		arbitrator = new ImprovedArbitrator(array, true, mode, ImprovedArbitrator.DEFAULT_WAKE_TIMEOUT_MS);
+		arbitration = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				arbitrator.go();
+			}
+		}, "arbitrator");
+		arbitration.start();
+	}
+
+	@Setup(Level.Invocation)
+	public void awaitHolding() {
+		while (!fallback.isHolding()) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	public long suppression() {
+		long before = fallback.getSuppressions();
+		top.fire();
+		while (fallback.getSuppressions() == before) {
+			// spin - the monitor thread does the work
+		}
+		return before;
+	}
+
+	@Benchmark
+	public long decision() {
+		long before = top.getActions();
+		top.fire();
+		while (top.getActions() == before) {
+			// spin
+		}
+		return before;
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws InterruptedException {
+		fallback.finish();
+		arbitration.join();
+	}
+}
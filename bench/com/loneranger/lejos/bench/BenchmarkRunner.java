@@ -0,0 +1,24 @@
+package com.loneranger.lejos.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks with the GC profiler, so every result comes with
+ * its allocation rate (gc.alloc.rate.norm is bytes per operation). The
+ * optional argument is a regular expression selecting benchmarks, e.g.
+ * "HttpPath". Needs jmh-core and jmh-generator-annprocess on the classpath
+ * when compiling, and runs on any JVM host - the stand-ins replace the EV3
+ * hardware.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : "Arbitrator|HttpPath|CallbackFanOut";
+		Options options = new OptionsBuilder().include(include).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
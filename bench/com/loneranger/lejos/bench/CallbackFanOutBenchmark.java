@@ -0,0 +1,79 @@
+package com.loneranger.lejos.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.loneranger.lejos.behaviour.BehaviourProvider;
+import com.loneranger.lejos.control.web.ApiRouter;
+import com.loneranger.lejos.control.web.Callback;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.status.StatusModel;
+
+/**
+ * Cost of handing one event to its listeners: the real behaviours (on a
+ * stand-in pilot) registered as ApiControlledTrack3r registers them, plus
+ * <code>allListeners</code> listeners on the ALL list, which see every
+ * event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackFanOutBenchmark {
+
+	@Param({ "0", "1", "8" })
+	public int allListeners;
+
+	private final ApiRouter router = new ApiRouter();
+	private final RequestContext context = new RequestContext();
+	private int next = 0;
+
+	private static final API_EVENT[] EVENTS = { API_EVENT.FORWARD, API_EVENT.LEFT, API_EVENT.BACKWARD,
+			API_EVENT.RIGHT, API_EVENT.STOP };
+
+	@Setup
+	public void register(final Blackhole blackhole) {
+		StandIns.NullPilot pilot = new StandIns.NullPilot();
+		StatusModel status = new StatusModel();
+		Callback drive = new BehaviourProvider.VelocityDriveBehaviour(pilot, status);
+		Callback stop = new BehaviourProvider.StopBehaviour(pilot, status);
+		router.registerListener(API_EVENT.FORWARD, drive);
+		router.registerListener(API_EVENT.BACKWARD, drive);
+		router.registerListener(API_EVENT.LEFT, drive);
+		router.registerListener(API_EVENT.RIGHT, drive);
+		router.registerListener(API_EVENT.DRIVE, drive);
+		router.registerListener(API_EVENT.STOP, stop);
+		for (int i = 0; i < allListeners; i++) {
+			router.registerListener(API_EVENT.ALL, new Callback() {
+				@Override
+				public void handleEvent(API_EVENT event, RequestContext context) {
+					blackhole.consume(event);
+				}
+			});
+		}
+		context.clearRequest("/forward");
+		context.setParameter(RequestContext.SPEED, 300);
+	}
+
+	@Benchmark
+	public void dispatch() {
+		API_EVENT event = EVENTS[next];
+		next = next == EVENTS.length - 1 ? 0 : next + 1;
+		router.dispatch(event, context);
+	}
+}
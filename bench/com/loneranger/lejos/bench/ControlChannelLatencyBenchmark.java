@@ -0,0 +1,180 @@
+package com.loneranger.lejos.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.control.web.Callback;
+import com.loneranger.lejos.control.web.RestApiHandlerThread;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.control.web.UdpCommandListener;
+
+/**
+ * Compares the time from a client sending a steering command to the
+ * command's Callback running, for a keep-alive HTTP GET, a record on the
+ * WebSocket control channel and a UDP command datagram. Commands are paced
+ * at a fixed rate (first argument, default 200 per second). Runs real
+ * servers on ephemeral ports.
+ */
+public class ControlChannelLatencyBenchmark {
+	private static final int ROUNDS = 2000;
+	private static final int WARMUP_ROUNDS = 1000;
+
+	private static volatile long sentAt;
+
+	public static void main(String[] args) throws Exception {
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		RestApiHandlerThread server = new RestApiHandlerThread(0);
+		UdpCommandListener udp = new UdpCommandListener(0, server.getRouter());
+		final SynchronousQueue<Long> latencies = new SynchronousQueue<>();
+		server.registerListener(API_EVENT.LEFT, new Callback() {
+			@Override
+			public void handleEvent(API_EVENT event, RequestContext context) {
+				try {
+					latencies.put(System.nanoTime() - sentAt);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		new Thread(server, "api").start();
+		new Thread(udp, "udp").start();
+		try {
+			// unpaced first pass of each warms up the JIT
+			http(server.getLocalPort(), latencies, WARMUP_ROUNDS, 0);
+			webSocket(server.getLocalPort(), latencies, WARMUP_ROUNDS, 0);
+			udp(udp.getLocalPort(), latencies, WARMUP_ROUNDS, 0, 0);
+			System.out.printf("%d commands per transport at %d/s%n", ROUNDS, rate);
+			report("http", http(server.getLocalPort(), latencies, ROUNDS, rate));
+			report("websocket", webSocket(server.getLocalPort(), latencies, ROUNDS, rate));
+			report("udp", udp(udp.getLocalPort(), latencies, ROUNDS, rate, WARMUP_ROUNDS));
+			System.out.printf("udp stale datagrams dropped: %d%n", udp.getStaleCount());
+		} finally {
+			server.closeServerSocket();
+			udp.close();
+		}
+	}
+
+	private static long[] http(int port, SynchronousQueue<Long> latencies, int rounds, int rate) throws Exception {
+		long[] samples = new long[rounds];
+		byte[] request = "GET /left?speed=200 HTTP/1.1\r\nHost: track3r\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		byte[] response = new byte[256];
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			InputStream in = socket.getInputStream();
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				pace(start, i, rate);
+				sentAt = System.nanoTime();
+				out.write(request);
+				samples[i] = latencies.take();
+				readResponse(in, response);
+			}
+		}
+		return samples;
+	}
+
+	private static long[] webSocket(int port, SynchronousQueue<Long> latencies, int rounds, int rate)
+			throws Exception {
+		long[] samples = new long[rounds];
+		byte[] key = new byte[16];
+		new SecureRandom().nextBytes(key);
+		String handshake = "GET " + RestApiHandlerThread.WEBSOCKET_PATH + " HTTP/1.1\r\nHost: track3r\r\n"
+				+ "Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Version: 13\r\n"
+				+ "Sec-WebSocket-Key: " + java.util.Base64.getEncoder().encodeToString(key) + "\r\n\r\n";
+		// masked binary frame with one control record: LEFT, speed 200, turn 0
+		byte[] frame = { (byte) 0x82, (byte) 0x85, 1, 2, 3, 4, (byte) API_EVENT.LEFT.ordinal(), 0, (byte) 200, 0, 0 };
+		for (int i = 0; i < 5; i++) {
+			frame[6 + i] ^= frame[2 + (i & 3)];
+		}
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			out.write(handshake.getBytes(StandardCharsets.US_ASCII));
+			readResponse(socket.getInputStream(), new byte[256]);
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				pace(start, i, rate);
+				sentAt = System.nanoTime();
+				out.write(frame);
+				samples[i] = latencies.take();
+			}
+		}
+		return samples;
+	}
+
+	private static long[] udp(int port, SynchronousQueue<Long> latencies, int rounds, int rate, int firstSequence)
+			throws Exception {
+		long[] samples = new long[rounds];
+		byte[] datagram = new byte[UdpCommandListener.DATAGRAM_SIZE];
+		try (DatagramSocket socket = new DatagramSocket()) {
+			DatagramPacket packet = new DatagramPacket(datagram, datagram.length, InetAddress.getLoopbackAddress(),
+					port);
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				pace(start, i, rate);
+				UdpCommandListener.encode(datagram, API_EVENT.LEFT, 0, firstSequence + i + 1, 200, 0);
+				sentAt = System.nanoTime();
+				socket.send(packet);
+				Long latency = latencies.poll(1, TimeUnit.SECONDS);
+				if (latency == null) {
+					throw new IllegalStateException("datagram " + i + " was lost");
+				}
+				samples[i] = latency;
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Open-loop pacing: sleeps until command <code>i</code>'s slot.
+	 */
+	private static void pace(long start, int i, int rate) throws InterruptedException {
+		if (rate <= 0) {
+			return;
+		}
+		long due = start + i * 1000000000L / rate;
+		long wait = due - System.nanoTime();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Reads one response up to the end of its (short, known) body.
+	 */
+	private static void readResponse(InputStream in, byte[] buffer) throws Exception {
+		int length = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IllegalStateException("server closed the connection");
+			}
+			buffer[length++] = (byte) b;
+			String text = new String(buffer, 0, length, StandardCharsets.US_ASCII);
+			if (text.endsWith("\r\n\r\n") && text.startsWith("HTTP/1.1 101")) {
+				return;
+			}
+			if (text.endsWith("\r\n\r\nOK\r\n")) {
+				return;
+			}
+		}
+	}
+
+	private static void report(String name, long[] samples) {
+		Arrays.sort(samples);
+		System.out.printf("%-10s send->callback p50 %6.1f us  p90 %6.1f us  p99 %6.1f us%n", name,
+				samples[samples.length / 2] / 1000.0, samples[samples.length * 9 / 10] / 1000.0,
+				samples[samples.length * 99 / 100] / 1000.0);
+	}
+}
@@ -0,0 +1,98 @@
+package com.loneranger.lejos.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.loneranger.lejos.control.web.ApiRouter;
+import com.loneranger.lejos.control.web.HttpRequestParser;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * Throughput of the HTTP request path without the sockets: parsing a
+ * request, looking up its API_EVENT (by bytes through the router and by
+ * String through API_EVENT) and the whole parse, route and parameter
+ * extraction that RestApiHandlerThread does per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpPathBenchmark {
+
+	@Param({ "simple", "headers", "query", "unknown" })
+	public String request;
+
+	private byte[] data;
+	private String path;
+	private final HttpRequestParser parser = new HttpRequestParser();
+	private final ApiRouter router = new ApiRouter();
+	private final RequestContext context = new RequestContext();
+
+	@Setup
+	public void prepare() {
+		String text;
+		switch (request) {
+		case "simple":
+			text = "GET /stop HTTP/1.1\r\n\r\n";
+			break;
+		case "headers":
+			text = "GET /left HTTP/1.1\r\nHost: track3r\r\nUser-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+					+ "Accept: */*\r\nAccept-Encoding: gzip, deflate\r\nConnection: keep-alive\r\n\r\n";
+			break;
+		case "query":
+			text = "GET /forward?speed=300&turn=-20 HTTP/1.1\r\nHost: track3r\r\n\r\n";
+			break;
+		default:
+			text = "GET /favicon.ico HTTP/1.1\r\nHost: track3r\r\n\r\n";
+			break;
+		}
+		data = text.getBytes(StandardCharsets.US_ASCII);
+		parser.reset();
+		parser.parse(data, data.length);
+		path = new String(data, parser.getPathStart(), parser.getPathEnd() - parser.getPathStart(),
+				StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	public HttpRequestParser.Status parse() {
+		parser.reset();
+		return parser.parse(data, data.length);
+	}
+
+	@Benchmark
+	public API_EVENT routeBytes() {
+		return router.route(data, parser.getPathStart(), parser.getPathEnd());
+	}
+
+	@Benchmark
+	public API_EVENT lookupString() {
+		return API_EVENT.getEventFromQuery(path);
+	}
+
+	@Benchmark
+	public int parseRouteAndRead() {
+		parser.reset();
+		parser.parse(data, data.length);
+		API_EVENT event = router.route(parser.getData(), parser.getPathStart(), parser.getPathEnd());
+		if (event == null) {
+			return -1;
+		}
+		context.setRequest(parser);
+		return context.getIntParameter(RequestContext.SPEED, 0) + context.getIntParameter(RequestContext.TURN_RATE, 0);
+	}
+}
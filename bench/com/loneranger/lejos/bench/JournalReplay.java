@@ -0,0 +1,261 @@
+package com.loneranger.lejos.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.control.web.ApiControlledTrack3r;
+import com.loneranger.lejos.control.web.ApiRouter;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.journal.CommandJournal;
+import com.loneranger.lejos.journal.JournalReader;
+import com.loneranger.lejos.simulation.SimulatedTrack3rHardware;
+import com.loneranger.lejos.simulation.SimulationDriver;
+
+/**
+ * Replays a {@link CommandJournal} - e.g. one copied off the brick - against
+ * the simulation: every recorded command and plan is submitted through the
+ * router, at the time it was received on the brick, with the whole control
+ * stack running on ephemeral ports. That is the stream the robot was sent,
+ * including commands its queue coalesced away or turned away when full -
+ * the replay's own queue gets to do the same. With -dispatched only the
+ * commands the robot acted on are replayed. The replay is journalled too,
+ * and the behaviours it activated are lined up with the recorded ones, to
+ * show where the two runs went different ways and how far apart in time
+ * their behaviour switches were.
+ *
+ * Commands the robot gave itself, such as the STOP at the end of a timed
+ * move, are in the journal like any other, so they are replayed alongside
+ * the ones the replay's own timers give.
+ *
+ * Arguments: [-dispatched] journal [realtime factor, default 1 - 0 for as
+ * fast as possible] [file for the replay's journal, default
+ * journal.replay]<br>
+ * or: -print journal, to list the records
+ */
+public class JournalReplay {
+	// after a journal that ends on a command, for the robot to come to rest -
+	// on top of the run time of one ending on a plan
+	private static final long SETTLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1 && args[0].equals("-print")) {
+			print(new File(args[1]));
+			return;
+		}
+		boolean dispatchedOnly = args.length > 0 && args[0].equals("-dispatched");
+		int first = dispatchedOnly ? 1 : 0;
+		if (args.length <= first) {
+			System.out.println(
+					"Usage: JournalReplay [-dispatched] journal [realtime factor] [replay journal] | -print journal");
+			System.exit(2);
+		}
+		File recorded = new File(args[first]);
+		double realtimeFactor = args.length > first + 1 ? Double.parseDouble(args[first + 1]) : 1;
+		File replayed = new File(args.length > first + 2 ? args[first + 2] : args[first] + ".replay");
+
+		// a command's COALESCED record comes after it, so find them first
+		JournalCounts recordedCounts = new JournalCounts();
+		List<long[]> recordedActivations = new ArrayList<>();
+		Set<Long> coalesced = new HashSet<>();
+		try (JournalReader reader = new JournalReader(recorded)) {
+			while (reader.next()) {
+				recordedCounts.add(reader);
+				if (reader.isActivation()) {
+					recordedActivations.add(new long[] { reader.getNanos(), reader.getPriority() });
+				} else if (reader.isCoalesced()) {
+					coalesced.add(reader.getSequence());
+				}
+			}
+		}
+
+		SimulatedTrack3rHardware hardware = new SimulatedTrack3rHardware();
+		SimulationDriver driver = new SimulationDriver(hardware, realtimeFactor);
+		Thread simulation = new Thread(driver, "simulation");
+		simulation.setDaemon(true);
+		simulation.start();
+
+		final ApiControlledTrack3r track3r = new ApiControlledTrack3r(hardware, 0, 0);
+		Clock clock = hardware.getClock();
+		CommandJournal journal = new CommandJournal(replayed, clock);
+		track3r.setJournal(journal);
+		track3r.start();
+		Thread arbitrator = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				track3r.go();
+			}
+		}, "arbitrator");
+		arbitrator.start();
+
+		// the recorded times are from when that journal was opened, so line
+		// them up with when this one was
+		long start = System.nanoTime();
+		long replayStart = readStart(replayed);
+		ApiRouter router = track3r.getApiHandler().getRouter();
+		RequestContext context = new RequestContext();
+		int commands = 0;
+		int skipped = 0;
+		int rejected = 0;
+		long lastNanos = 0;
+		long settleNanos = 0;
+		try (JournalReader reader = new JournalReader(recorded)) {
+			while (reader.next()) {
+				lastNanos = reader.getNanos();
+				settleNanos = 0;
+				if (!reader.isCommand() && !reader.isPlan()) {
+					continue;
+				}
+				settleNanos = SETTLE_NANOS + (reader.isPlan() ? reader.getPlan().getDurationNanos() : 0);
+				if (dispatchedOnly && (reader.isDropped() || coalesced.contains(reader.getSequence()))) {
+					skipped++;
+					continue;
+				}
+				long wait = replayStart + reader.getNanos() - clock.nanoTime();
+				if (wait > 0) {
+					clock.sleepNanos(wait);
+				}
+				reader.applyTo(context);
+				context.setReceivedNanos(System.nanoTime());
+				if (!router.submit(reader.getEvent(), context)) {
+					rejected++;
+				}
+				commands++;
+			}
+		}
+		// stop where the recording stopped
+		long wait = replayStart + lastNanos + settleNanos - clock.nanoTime();
+		if (wait > 0) {
+			clock.sleepNanos(wait);
+		}
+		double[] pose = new double[3];
+		hardware.getSimulatedPilot().getPose(pose);
+
+		track3r.abort();
+		arbitrator.join();
+		driver.stop();
+		long records = journal.getRecordCount();
+		journal.close();
+
+		JournalCounts replayedCounts = new JournalCounts();
+		List<long[]> replayedActivations = new ArrayList<>();
+		try (JournalReader reader = new JournalReader(replayed)) {
+			while (reader.next()) {
+				replayedCounts.add(reader);
+				if (reader.isActivation()) {
+					replayedActivations.add(new long[] { reader.getNanos(), reader.getPriority() });
+				}
+			}
+		}
+
+		System.out.println(String.format("replayed %d commands (%d rejected by a full queue) over %.1f s in %.1f s",
+				commands, rejected, lastNanos / 1e9, (System.nanoTime() - start) / 1e9));
+		if (dispatchedOnly) {
+			System.out.println("skipped " + skipped + " commands the robot didn't act on");
+		}
+		System.out.println("recorded: " + recordedCounts);
+		System.out.println("replayed: " + replayedCounts);
+		System.out.println("replay journalled to " + replayed + ", " + records + " records");
+		System.out.println(String.format("simulated robot ended at x %.1f y %.1f heading %.1f", pose[0], pose[1],
+				pose[2]));
+		compare(recordedActivations, replayedActivations);
+	}
+
+	/**
+	 * What became of the commands in a journal.
+	 */
+	private static class JournalCounts {
+		int commands;
+		int plans;
+		int coalesced;
+		int dropped;
+
+		void add(JournalReader reader) {
+			if (reader.isCommand()) {
+				commands++;
+			} else if (reader.isPlan()) {
+				plans++;
+			} else if (reader.isCoalesced()) {
+				coalesced++;
+			}
+			if ((reader.isCommand() || reader.isPlan()) && reader.isDropped()) {
+				dropped++;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d commands, %d plans, %d coalesced in the queue, %d dropped by a full queue",
+					commands, plans, coalesced, dropped);
+		}
+	}
+
+	private static long readStart(File file) throws Exception {
+		try (JournalReader reader = new JournalReader(file)) {
+			return reader.getStartNanos();
+		}
+	}
+
+	/**
+	 * Walks both lists of behaviour switches in time order, pairing up
+	 * switches to the same behaviour and skipping past the earlier of two
+	 * that differ.
+	 */
+	private static void compare(List<long[]> recorded, List<long[]> replayed) {
+		int i = 0;
+		int j = 0;
+		int matched = 0;
+		int firstMismatch = -1;
+		long maxOffset = 0;
+		long totalOffset = 0;
+		while (i < recorded.size() && j < replayed.size()) {
+			long[] a = recorded.get(i);
+			long[] b = replayed.get(j);
+			if (a[1] == b[1]) {
+				long offset = Math.abs(b[0] - a[0]);
+				maxOffset = Math.max(maxOffset, offset);
+				totalOffset += offset;
+				matched++;
+				i++;
+				j++;
+				continue;
+			}
+			if (firstMismatch < 0) {
+				firstMismatch = i;
+			}
+			if (a[0] <= b[0]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		System.out.println(String.format("behaviour switches: %d recorded, %d replayed, %d matched", recorded.size(),
+				replayed.size(), matched));
+		if (matched > 0) {
+			System.out.println(String.format("matched switches were %.2f ms apart on average, %.2f ms at most",
+					totalOffset / 1e6 / matched, maxOffset / 1e6));
+		}
+		if (firstMismatch >= 0) {
+			long[] first = recorded.get(firstMismatch);
+			System.out.println(String.format("first difference at recorded switch %d, %.3f s in, to behaviour %d",
+					firstMismatch, first[0] / 1e9, first[1]));
+		}
+	}
+
+	private static void print(File file) throws Exception {
+		StringBuilder line = new StringBuilder();
+		try (JournalReader reader = new JournalReader(file)) {
+			System.out.println(String.format("# %s, opened at %tF %<tT", file, reader.getStartMillis()));
+			while (reader.next()) {
+				line.setLength(0);
+				reader.appendRecord(line);
+				System.out.println(line);
+			}
+			System.out.println("# " + reader.getRecordCount() + " records");
+		}
+	}
+}
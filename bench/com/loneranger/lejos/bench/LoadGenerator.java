@@ -0,0 +1,621 @@
+package com.loneranger.lejos.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.control.web.ApiControlledTrack3r;
+import com.loneranger.lejos.control.web.CommandQueue;
+import com.loneranger.lejos.metrics.LatencyHistogram;
+import com.loneranger.lejos.simulation.SimulatedTrack3rHardware;
+import com.loneranger.lejos.simulation.SimulationDriver;
+
+/**
+ * Load and soak test for the HTTP control server. By default it starts the
+ * whole control stack against the simulation on an ephemeral port, then
+ * sends it a weighted mix of commands over a number of keep-alive
+ * connections at a fixed total rate.
+ *
+ * The load is open loop: request i is due at i / rate seconds whether or not
+ * earlier ones have been answered, requests are pipelined behind any still
+ * waiting on their connection, and latency is measured from when a request
+ * was due rather than when it went out - so a server that falls behind shows
+ * it in the percentiles instead of slowing the load down. Everything runs on
+ * one selector thread, which sends requests in batches at most a
+ * millisecond apart.
+ *
+ * Reports throughput, the share of requests that failed - 503s from a full
+ * command queue counted apart from other statuses, closed connections,
+ * requests never answered and requests not sent because a connection
+ * already had {@link #MAX_OUTSTANDING} waiting - and latency percentiles.
+ *
+ * In soak mode it runs for hours, reconnecting each connection every
+ * <code>churn</code> requests, and after every interval forces a GC and
+ * compares the process's open file descriptors, live threads and heap with
+ * the first interval's, failing if they have grown - a socket the server
+ * doesn't close, a thread started per connection or memory kept per request
+ * would all show up.
+ *
+ * Arguments, all optional, as name=value:
+ *
+ * <pre>
+ * connections=8      concurrent connections
+ * rate=400           requests per second over all connections
+ * duration=10        seconds to run, without soak
+ * mix=/forward:4,... paths with weights - see DEFAULT_MIX
+ * soak=2             hours to soak for
+ * interval=60        seconds between soak reports, 0 for none without soak
+ * churn=1000         requests per connection before reconnecting, 0 never
+ *                    - the default is 0 without soak
+ * server=host:port   load a server that is already running instead
+ * </pre>
+ *
+ * Exits with 1 if a soak check failed or more than {@link #MAX_ERROR_RATE}
+ * of the requests failed other than with a 503.
+ */
+public class LoadGenerator {
+	public static final String DEFAULT_MIX = "/forward:4,/left:2,/right:2,/drive?speed=150&turn=30:2,"
+			+ "/backward:1,/speedup:1,/slowdown:1,/stop:1";
+	// requests a connection can have waiting before more are not sent
+	public static final int MAX_OUTSTANDING = 256;
+	public static final double MAX_ERROR_RATE = 0.001;
+	// soak limits, over the first interval
+	public static final int MAX_THREAD_GROWTH = 2;
+	public static final double MAX_HEAP_GROWTH = 0.25;
+	private static final long HEAP_SLACK = 8L * 1024 * 1024;
+	// after the load, for the last responses
+	private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private static class Connection {
+		SocketChannel channel;
+		SelectionKey key;
+		final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		// when each request waiting for a response was due
+		final long[] due = new long[MAX_OUTSTANDING];
+		int head = 0;
+		int outstanding = 0;
+		int sentSinceConnect = 0;
+		// taking no more requests until the ones it has are answered
+		boolean retiring = false;
+	}
+
+	/**
+	 * Counts for one interval, or for the whole run.
+	 */
+	private static class Totals {
+		long sent;
+		long ok;
+		long unavailable;
+		long otherStatus;
+		// lost with a connection, or never answered
+		long lost;
+		long notSent;
+		long connects;
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		void add(Totals other) {
+			sent += other.sent;
+			ok += other.ok;
+			unavailable += other.unavailable;
+			otherStatus += other.otherStatus;
+			lost += other.lost;
+			notSent += other.notSent;
+			connects += other.connects;
+		}
+
+		long failed() {
+			return otherStatus + lost + notSent;
+		}
+	}
+
+	private final InetSocketAddress server;
+	private final Connection[] connections;
+	private final byte[][] requests;
+	private final int[] cumulativeWeights;
+	private final Random random = new Random(1);
+	private final double rate;
+	private final int churn;
+	private final Selector selector;
+	private final Totals total = new Totals();
+	private Totals current = new Totals();
+	private long next = 0;
+	private int nextConnection = 0;
+	private long start;
+
+	public LoadGenerator(InetSocketAddress server, int connections, double rate, String mix, int churn)
+			throws IOException {
+		this.server = server;
+		this.connections = new Connection[connections];
+		this.rate = rate;
+		this.churn = churn;
+		List<byte[]> paths = new ArrayList<>();
+		List<Integer> weights = new ArrayList<>();
+		int sum = 0;
+		for (String entry : mix.split(",")) {
+			int colon = entry.lastIndexOf(':');
+			String path = colon > 0 ? entry.substring(0, colon) : entry;
+			int weight = colon > 0 ? Integer.parseInt(entry.substring(colon + 1)) : 1;
+			if (weight <= 0) {
+				continue;
+			}
+			sum += weight;
+			paths.add(("GET " + path + " HTTP/1.1\r\nHost: track3r\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			weights.add(sum);
+		}
+		if (paths.isEmpty()) {
+			throw new IllegalArgumentException("the mix has no paths");
+		}
+		this.requests = paths.toArray(new byte[paths.size()][]);
+		this.cumulativeWeights = new int[weights.size()];
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			cumulativeWeights[i] = weights.get(i);
+		}
+		this.selector = Selector.open();
+		for (int i = 0; i < connections; i++) {
+			this.connections[i] = new Connection();
+			connect(this.connections[i]);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connectionCount = 8;
+		double rate = 400;
+		double duration = 10;
+		String mix = DEFAULT_MIX;
+		double soakHours = 0;
+		int interval = -1;
+		int churn = -1;
+		String serverAddress = null;
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = equals > 0 ? arg.substring(0, equals) : arg;
+			String value = equals > 0 ? arg.substring(equals + 1) : "";
+			switch (name) {
+			case "connections":
+				connectionCount = Integer.parseInt(value);
+				break;
+			case "rate":
+				rate = Double.parseDouble(value);
+				break;
+			case "duration":
+				duration = Double.parseDouble(value);
+				break;
+			case "mix":
+				mix = value;
+				break;
+			case "soak":
+				soakHours = Double.parseDouble(value);
+				break;
+			case "interval":
+				interval = Integer.parseInt(value);
+				break;
+			case "churn":
+				churn = Integer.parseInt(value);
+				break;
+			case "server":
+				serverAddress = value;
+				break;
+			default:
+				System.out.println("Unknown argument " + arg + " - see the class comment");
+				System.exit(2);
+			}
+		}
+		boolean soak = soakHours > 0;
+		if (soak) {
+			duration = soakHours * 3600;
+		}
+		if (interval < 0) {
+			interval = soak ? 60 : 0;
+		}
+		if (churn < 0) {
+			churn = soak ? 1000 : 0;
+		}
+
+		ApiControlledTrack3r track3r = null;
+		Thread arbitrator = null;
+		SimulationDriver driver = null;
+		InetSocketAddress address;
+		if (serverAddress == null) {
+			SimulatedTrack3rHardware hardware = new SimulatedTrack3rHardware();
+			driver = new SimulationDriver(hardware, 1);
+			Thread simulation = new Thread(driver, "simulation");
+			simulation.setDaemon(true);
+			simulation.start();
+			final ApiControlledTrack3r started = new ApiControlledTrack3r(hardware, 0, 0);
+			started.start();
+			arbitrator = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					started.go();
+				}
+			}, "arbitrator");
+			arbitrator.start();
+			track3r = started;
+			address = new InetSocketAddress("localhost", track3r.getApiHandler().getLocalPort());
+		} else {
+			int colon = serverAddress.lastIndexOf(':');
+			address = new InetSocketAddress(serverAddress.substring(0, colon),
+					Integer.parseInt(serverAddress.substring(colon + 1)));
+		}
+
+		System.out.println(String.format("%d connections, %.0f requests/s for %.0f s%s, mix %s", connectionCount,
+				rate, duration, churn > 0 ? ", reconnecting every " + churn + " requests" : "", mix));
+		LoadGenerator load = new LoadGenerator(address, connectionCount, rate, mix, churn);
+		boolean passed = load.run((long) (duration * 1e9), TimeUnit.SECONDS.toNanos(interval), soak);
+
+		if (track3r != null) {
+			CommandQueue queue = track3r.getCommandQueue();
+			System.out.println(String.format("server: %d commands dispatched, %d coalesced, %d dropped by a full queue",
+					queue.getDispatchedCount(), queue.getCoalescedCount(), queue.getDroppedCount()));
+			track3r.abort();
+			arbitrator.join();
+			driver.stop();
+		}
+		System.out.println(passed ? "passed" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * @return false if too many requests failed or a soak check failed
+	 */
+	public boolean run(long durationNanos, long intervalNanos, boolean soak) throws IOException {
+		start = System.nanoTime();
+		long end = start + durationNanos;
+		long reportAt = intervalNanos > 0 ? start + intervalNanos : Long.MAX_VALUE;
+		boolean passed = true;
+		long[] baseline = null;
+		int intervals = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= end) {
+				break;
+			}
+			sendDue(Math.min(now, end));
+			long due = dueTime(next);
+			long wait = Math.min(Math.min(due, end), reportAt) - System.nanoTime();
+			if (wait > 0) {
+				selector.select(Math.max(1, wait / 1000000));
+			} else {
+				selector.selectNow();
+			}
+			handleSelected();
+			if (System.nanoTime() >= reportAt) {
+				intervals++;
+				long[] resources = soak ? resources() : null;
+				StringBuilder line = new StringBuilder();
+				line.append(String.format("%7.0fs ", (System.nanoTime() - start) / 1e9));
+				appendTotals(line, current, intervalNanos);
+				if (resources != null) {
+					line.append(String.format("  fds %d threads %d heap %.1fMB", resources[0], resources[1],
+							resources[2] / 1048576.0));
+					if (baseline == null) {
+						// the first interval warms everything up
+						baseline = resources;
+					} else {
+						String problem = check(baseline, resources);
+						if (problem != null) {
+							line.append("  ").append(problem);
+							passed = false;
+						}
+					}
+				}
+				System.out.println(line);
+				total.add(current);
+				current = new Totals();
+				reportAt += intervalNanos;
+			}
+		}
+		drain();
+		total.add(current);
+		long elapsed = System.nanoTime() - start;
+		StringBuilder line = new StringBuilder("overall ");
+		appendTotals(line, total, elapsed);
+		System.out.println(line);
+		System.out.println(String.format("latency from due time, us: p50 %d  p90 %d  p99 %d  p99.9 %d  max %d  (n=%d)",
+				total.latency.getPercentile(50) / 1000, total.latency.getPercentile(90) / 1000,
+				total.latency.getPercentile(99) / 1000, total.latency.getPercentile(99.9) / 1000,
+				total.latency.getMax() / 1000, total.latency.getCount()));
+		if (intervals > 0 && soak && baseline == null) {
+			System.out.println("soak too short for a resource check - it needs at least two intervals");
+		}
+		double errorRate = total.sent + total.notSent == 0 ? 0 : (double) total.failed()
+				/ (total.sent + total.notSent);
+		if (errorRate > MAX_ERROR_RATE) {
+			System.out.println(String.format("error rate %.3f%% is over %.3f%%", errorRate * 100,
+					MAX_ERROR_RATE * 100));
+			passed = false;
+		}
+		close();
+		return passed;
+	}
+
+	private long dueTime(long request) {
+		return start + (long) (request * 1e9 / rate);
+	}
+
+	/**
+	 * Sends every request due by <code>now</code>.
+	 */
+	private void sendDue(long now) throws IOException {
+		long due;
+		while ((due = dueTime(next)) <= now) {
+			next++;
+			Connection connection = pickConnection();
+			if (connection == null) {
+				current.notSent++;
+				continue;
+			}
+			byte[] request = requests[pickRequest()];
+			if (connection.out.remaining() < request.length) {
+				ByteBuffer bigger = ByteBuffer.allocate(connection.out.capacity() * 2);
+				connection.out.flip();
+				bigger.put(connection.out);
+				connection.out = bigger;
+			}
+			connection.out.put(request);
+			connection.due[(connection.head + connection.outstanding) % MAX_OUTSTANDING] = due;
+			connection.outstanding++;
+			connection.sentSinceConnect++;
+			if (churn > 0 && connection.sentSinceConnect >= churn) {
+				connection.retiring = true;
+			}
+			current.sent++;
+			flush(connection);
+		}
+	}
+
+	/**
+	 * @return the next connection in turn with room for another request -
+	 *         one that is retiring only if no other has room - or null if
+	 *         none has
+	 */
+	private Connection pickConnection() throws IOException {
+		Connection fallback = null;
+		for (int i = 0; i < connections.length; i++) {
+			Connection connection = connections[nextConnection];
+			nextConnection = (nextConnection + 1) % connections.length;
+			if (connection.channel == null) {
+				connect(connection);
+			}
+			if (connection.channel == null || connection.outstanding >= MAX_OUTSTANDING) {
+				continue;
+			}
+			if (!connection.retiring) {
+				return connection;
+			}
+			if (fallback == null) {
+				fallback = connection;
+			}
+		}
+		return fallback;
+	}
+
+	private int pickRequest() {
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (pick < cumulativeWeights[i]) {
+				return i;
+			}
+		}
+		return cumulativeWeights.length - 1;
+	}
+
+	private void handleSelected() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			Connection connection = (Connection) key.attachment();
+			try {
+				if (key.isValid() && key.isReadable()) {
+					read(connection);
+				}
+				if (key.isValid() && key.isWritable()) {
+					flush(connection);
+				}
+			} catch (IOException e) {
+				disconnect(connection);
+			}
+		}
+	}
+
+	private void read(Connection connection) throws IOException {
+		if (connection.channel.read(connection.in) < 0) {
+			throw new IOException("server closed the connection");
+		}
+		long now = System.nanoTime();
+		byte[] data = connection.in.array();
+		int length = connection.in.position();
+		int consumed = 0;
+		while (true) {
+			int headerEnd = indexOf(data, consumed, length, "\r\n\r\n");
+			if (headerEnd < 0) {
+				break;
+			}
+			int bodyLength = contentLength(data, consumed, headerEnd);
+			int responseEnd = headerEnd + 4 + bodyLength;
+			if (responseEnd > length) {
+				break;
+			}
+			int status = status(data, consumed);
+			if (connection.outstanding > 0) {
+				current.latency.record(now - connection.due[connection.head]);
+				total.latency.record(now - connection.due[connection.head]);
+				connection.head = (connection.head + 1) % MAX_OUTSTANDING;
+				connection.outstanding--;
+			}
+			if (status == 200) {
+				current.ok++;
+			} else if (status == 503) {
+				current.unavailable++;
+			} else {
+				current.otherStatus++;
+			}
+			consumed = responseEnd;
+		}
+		if (consumed > 0) {
+			connection.in.flip();
+			connection.in.position(consumed);
+			connection.in.compact();
+		} else if (!connection.in.hasRemaining()) {
+			throw new IOException("response too large");
+		}
+		if (connection.retiring && connection.outstanding == 0) {
+			disconnect(connection);
+			connect(connection);
+		}
+	}
+
+	private void flush(Connection connection) throws IOException {
+		connection.out.flip();
+		connection.channel.write(connection.out);
+		connection.out.compact();
+		connection.key.interestOps(connection.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+				: SelectionKey.OP_READ);
+	}
+
+	private void connect(Connection connection) throws IOException {
+		try {
+			SocketChannel channel = SocketChannel.open(server);
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			connection.channel = channel;
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			current.connects++;
+		} catch (IOException e) {
+			// the next request tries again
+			connection.channel = null;
+		}
+		connection.in.clear();
+		connection.out.clear();
+		connection.head = 0;
+		connection.outstanding = 0;
+		connection.sentSinceConnect = 0;
+		connection.retiring = false;
+	}
+
+	private void disconnect(Connection connection) {
+		current.lost += connection.outstanding;
+		connection.outstanding = 0;
+		if (connection.channel != null) {
+			connection.key.cancel();
+			try {
+				connection.channel.close();
+			} catch (IOException e) {
+				// gone anyway
+			}
+			connection.channel = null;
+		}
+	}
+
+	/**
+	 * Waits a while for the responses still outstanding, then counts the rest
+	 * as lost.
+	 */
+	private void drain() throws IOException {
+		long deadline = System.nanoTime() + DRAIN_NANOS;
+		while (System.nanoTime() < deadline && outstanding() > 0) {
+			selector.select(10);
+			handleSelected();
+		}
+	}
+
+	private int outstanding() {
+		int waiting = 0;
+		for (Connection connection : connections) {
+			waiting += connection.outstanding;
+		}
+		return waiting;
+	}
+
+	private void close() throws IOException {
+		for (Connection connection : connections) {
+			disconnect(connection);
+		}
+		selector.close();
+	}
+
+	private static void appendTotals(StringBuilder line, Totals totals, long nanos) {
+		long attempted = totals.sent + totals.notSent;
+		line.append(String.format("sent %d  ok %.0f/s  503 %d  failed %d (%.3f%%)  connects %d  us p50 %d p99 %d max %d",
+				totals.sent, totals.ok / (nanos / 1e9), totals.unavailable, totals.failed(),
+				attempted == 0 ? 0 : 100.0 * totals.failed() / attempted, totals.connects,
+				totals.latency.getPercentile(50) / 1000, totals.latency.getPercentile(99) / 1000,
+				totals.latency.getMax() / 1000));
+	}
+
+	/**
+	 * @return open file descriptors (-1 if unknown), live threads and heap
+	 *         in use after a GC
+	 */
+	private static long[] resources() {
+		System.gc();
+		System.gc();
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		long fds = os instanceof com.sun.management.UnixOperatingSystemMXBean ? ((com.sun.management.UnixOperatingSystemMXBean) os)
+				.getOpenFileDescriptorCount() : -1;
+		return new long[] { fds, ManagementFactory.getThreadMXBean().getThreadCount(),
+				ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() };
+	}
+
+	/**
+	 * @return what grew too much, or null
+	 */
+	private String check(long[] baseline, long[] now) {
+		// every connection may be half way through reconnecting
+		if (baseline[0] >= 0 && now[0] > baseline[0] + connections.length) {
+			return "LEAK: " + (now[0] - baseline[0]) + " more file descriptors";
+		}
+		if (now[1] > baseline[1] + MAX_THREAD_GROWTH) {
+			return "LEAK: " + (now[1] - baseline[1]) + " more threads";
+		}
+		if (now[2] > baseline[2] * (1 + MAX_HEAP_GROWTH) + HEAP_SLACK) {
+			return String.format("LEAK: heap up %.1fMB", (now[2] - baseline[2]) / 1048576.0);
+		}
+		return null;
+	}
+
+	private static int indexOf(byte[] data, int from, int to, String text) {
+		search: for (int i = from; i + text.length() <= to; i++) {
+			for (int j = 0; j < text.length(); j++) {
+				if (data[i + j] != text.charAt(j)) {
+					continue search;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static int status(byte[] data, int start) {
+		// "HTTP/1.1 200"
+		int status = 0;
+		for (int i = start + 9; i < start + 12; i++) {
+			status = status * 10 + (data[i] - '0');
+		}
+		return status;
+	}
+
+	private static int contentLength(byte[] data, int start, int headerEnd) {
+		String header = new String(data, start, headerEnd - start, StandardCharsets.US_ASCII).toLowerCase();
+		int at = header.indexOf("\r\ncontent-length:");
+		if (at < 0) {
+			return 0;
+		}
+		int end = header.indexOf("\r\n", at + 2);
+		return Integer.parseInt(header.substring(at + 17, end < 0 ? header.length() : end).trim());
+	}
+}
@@ -0,0 +1,107 @@
+package com.loneranger.lejos.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.control.web.ApiControlledTrack3r;
+import com.loneranger.lejos.control.web.ApiRouter;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.metrics.LatencyHistogram;
+import com.loneranger.lejos.simulation.SimulatedPilot;
+import com.loneranger.lejos.simulation.SimulatedTrack3rHardware;
+import com.loneranger.lejos.simulation.SimulationDriver;
+
+/**
+ * Regression check for the obstacle stop: drives the simulated robot
+ * straight at an obstacle at each cruise speed the speed controller can be
+ * stepped to, and checks it comes to rest no closer than {@link #MIN_GAP_MM}
+ * and that the software took no longer than {@link #MAX_SWITCH_MS} from
+ * spotting the obstacle to pilot.stop(). Prints the gap and both times for
+ * every speed and exits with 1 if any run failed. Runs the whole control
+ * stack against the simulation, on ephemeral ports.
+ *
+ * The switch time is wall clock time. The reaction time from the sensor
+ * reading is on the simulation's clock, which only moves in whole steps, so
+ * it mostly shows 0 or one step - the real figure, sampling lag included,
+ * is the obstacle.reaction histogram on the brick's /metrics.
+ *
+ * Arguments: [realtime factor, default 1]
+ */
+public class ObstacleStopCheck {
+	// CLEARANCE_CM less what the sensor's whole cm readings and the
+	// simulation's 1 ms steps can cost
+	public static final double MIN_GAP_MM = ApiControlledTrack3r.DetectObstacleBehaviour.CLEARANCE_CM * 10 - 20;
+	// well inside the arbitrator's share of REACTION_ALLOWANCE
+	public static final double MAX_SWITCH_MS = 20;
+	private static final double[] SPEEDS = { 40, 80, 120, 160, SimulatedPilot.MAX_LINEAR_SPEED };
+	// the obstacle's surface is 600 mm ahead - forward is the pilot's
+	// negative x, where the IR sensor faces
+	private static final double OBSTACLE_X = -650;
+	private static final double OBSTACLE_RADIUS = 50;
+
+	public static void main(String[] args) throws Exception {
+		double realtimeFactor = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+
+		SimulatedTrack3rHardware hardware = new SimulatedTrack3rHardware();
+		hardware.getWorld().addObstacle(OBSTACLE_X, 0, OBSTACLE_RADIUS);
+		SimulationDriver driver = new SimulationDriver(hardware, realtimeFactor);
+		Thread simulation = new Thread(driver, "simulation");
+		simulation.setDaemon(true);
+		simulation.start();
+
+		final ApiControlledTrack3r track3r = new ApiControlledTrack3r(hardware, 0, 0);
+		track3r.start();
+		Thread arbitrator = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				track3r.go();
+			}
+		}, "arbitrator");
+		arbitrator.start();
+
+		ApiRouter router = track3r.getApiHandler().getRouter();
+		RequestContext context = new RequestContext();
+		SimulatedPilot pilot = hardware.getSimulatedPilot();
+		LatencyHistogram reaction = track3r.getObstacleBehaviour().getReactionTime();
+		LatencyHistogram switchTime = track3r.getObstacleBehaviour().getSwitchTime();
+		double[] pose = new double[3];
+		boolean passed = true;
+
+		System.out.println("speed mm/s  threshold cm  gap mm  switch ms  sim reaction ms  result");
+		for (double speed : SPEEDS) {
+			pilot.setPose(0, 0, 0);
+			// let the sampler's filters settle on the new distance
+			TimeUnit.MILLISECONDS.sleep(300);
+			reaction.reset();
+			switchTime.reset();
+			double cruise = track3r.getSpeedController().setCruiseSpeed(speed);
+
+			context.clearRequest("CHECK");
+			router.submit(API_EVENT.FORWARD, context);
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos((long) (30 / realtimeFactor));
+			// wait for the move to start, then for the robot to come to rest
+			while (!pilot.isMoving() && System.nanoTime() < deadline) {
+				TimeUnit.MILLISECONDS.sleep(5);
+			}
+			while (pilot.isMoving() && System.nanoTime() < deadline) {
+				TimeUnit.MILLISECONDS.sleep(5);
+			}
+
+			pilot.getPose(pose);
+			double gap = Math.abs(OBSTACLE_X - pose[0]) - OBSTACLE_RADIUS;
+			double switchMs = switchTime.getMax() / 1e6;
+			boolean ok = switchTime.getCount() == 1 && switchMs <= MAX_SWITCH_MS && gap >= MIN_GAP_MM;
+			passed &= ok;
+			System.out.println(String.format("%10.1f  %12.1f  %6.1f  %9.2f  %15.1f  %s", cruise,
+					track3r.getObstacleBehaviour().thresholdCm(cruise), gap, switchMs, reaction.getMax() / 1e6,
+					ok ? "ok" : "FAIL"));
+		}
+
+		track3r.abort();
+		arbitrator.join();
+		driver.stop();
+		System.out.println(passed ? "passed"
+				: "FAILED - stopped closer than " + MIN_GAP_MM + " mm or took longer than " + MAX_SWITCH_MS + " ms");
+		System.exit(passed ? 0 : 1);
+	}
+}
@@ -0,0 +1,73 @@
+package com.loneranger.lejos.bench;
+
+import com.loneranger.lejos.hardware.Track3rHardware;
+import com.loneranger.lejos.sensing.PoseTracker;
+import com.loneranger.lejos.simulation.SimulatedPilot;
+import com.loneranger.lejos.simulation.SimulatedTrack3rHardware;
+
+/**
+ * Checks the {@link PoseTracker} against the simulation's own kinematics:
+ * drives the simulated pilot through straights, arcs and spins, forwards and
+ * backwards, and after each leg compares the pose dead reckoned from the
+ * simulated tachos with the pose the simulation integrated. Prints the error
+ * for every leg and exits with 1 if any is over {@link #MAX_POSITION_ERROR}
+ * of the distance driven so far or {@link #MAX_HEADING_ERROR}.
+ *
+ * The simulation is stepped by hand, with the tracker updated at its own
+ * period in between, so the run is exact and takes no time.
+ */
+public class PoseTrackingCheck {
+	// of the distance driven, plus a mm for the tachos' whole degrees
+	public static final double MAX_POSITION_ERROR = 0.01;
+	// degrees
+	public static final double MAX_HEADING_ERROR = 1;
+	private static final long STEP_NANOS = 1000000;
+	// mm/s, degrees/s, s
+	private static final double[][] LEGS = { { 150, 0, 2 }, { 150, 30, 3 }, { 0, -90, 2 }, { -100, 0, 1.5 },
+			{ 120, -45, 4 }, { SimulatedPilot.MAX_LINEAR_SPEED, 0, 1 }, { -80, 60, 3 }, { 0, 180, 1 } };
+
+	public static void main(String[] args) {
+		SimulatedTrack3rHardware hardware = new SimulatedTrack3rHardware();
+		SimulatedPilot pilot = hardware.getSimulatedPilot();
+		PoseTracker tracker = new PoseTracker(hardware.getLeftMotor(), hardware.getRightMotor(),
+				Track3rHardware.WHEEL_DIAMETER, Track3rHardware.WHEEL_OFFSET, hardware.getClock());
+		long updateEvery = tracker.getPeriodNanos() / STEP_NANOS;
+		PoseTracker.Snapshot snapshot = new PoseTracker.Snapshot();
+		double[] pose = new double[3];
+		double driven = 0;
+		boolean passed = true;
+
+		tracker.updateOnce();
+		long steps = 0;
+		System.out.println("leg  speed  turn  driven mm  position error mm  heading error deg  result");
+		for (int leg = 0; leg < LEGS.length; leg++) {
+			pilot.setVelocity(LEGS[leg][0], LEGS[leg][1]);
+			// drive the leg, then come to rest before comparing
+			long legSteps = (long) (LEGS[leg][2] * 1e9 / STEP_NANOS);
+			for (int phase = 0; phase < 2; phase++) {
+				for (long i = 0; i < legSteps; i++) {
+					hardware.step(STEP_NANOS);
+					steps++;
+					if (steps % updateEvery == 0) {
+						tracker.updateOnce();
+					}
+				}
+				pilot.setVelocity(0, 0);
+				legSteps = 1000;
+			}
+			tracker.updateOnce();
+			tracker.getSnapshot(snapshot);
+			pilot.getPose(pose);
+			driven += Math.abs(LEGS[leg][0]) * LEGS[leg][2];
+
+			double positionError = Math.hypot(snapshot.getX() - pose[0], snapshot.getY() - pose[1]);
+			double headingError = Math.abs(snapshot.getHeading() - pose[2]);
+			boolean ok = positionError <= 1 + driven * MAX_POSITION_ERROR && headingError <= MAX_HEADING_ERROR;
+			passed &= ok;
+			System.out.println(String.format("%3d  %5.0f  %4.0f  %9.0f  %17.2f  %17.3f  %s", leg, LEGS[leg][0],
+					LEGS[leg][1], driven, positionError, headingError, ok ? "ok" : "FAIL"));
+		}
+		System.out.println(passed ? "passed" : "FAILED - the tracked pose drifted from the simulation");
+		System.exit(passed ? 0 : 1);
+	}
+}
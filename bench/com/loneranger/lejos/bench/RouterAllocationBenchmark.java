@@ -0,0 +1,76 @@
+package com.loneranger.lejos.bench;
+
+import java.lang.management.ManagementFactory;
+
+import com.loneranger.lejos.control.web.ApiRouter;
+import com.loneranger.lejos.control.web.Callback;
+import com.loneranger.lejos.control.web.HttpRequestParser;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * Parses, routes and dispatches the same pipelined requests over and over and
+ * reports the time and the bytes allocated per request once the JIT has
+ * warmed up. Needs a HotSpot JVM for the per-thread allocation counter, so
+ * run it on the development host rather than the brick.
+ */
+public class RouterAllocationBenchmark {
+	private static final int WARMUP = 200000;
+	private static final int MEASURED = 2000000;
+
+	public static void main(String[] args) {
+		byte[][] requests = {
+				ascii("GET /forward?speed=300 HTTP/1.1\r\nHost: track3r\r\nUser-Agent: bench\r\n\r\n"),
+				ascii("GET /left HTTP/1.1\r\nHost: track3r\r\n\r\n"),
+				ascii("GET /stop HTTP/1.1\r\nHost: track3r\r\nConnection: keep-alive\r\n\r\n"),
+				ascii("GET /nowhere HTTP/1.1\r\nHost: track3r\r\n\r\n") };
+
+		ApiRouter router = new ApiRouter();
+		final long[] sink = new long[1];
+		Callback listener = new Callback() {
+			@Override
+			public void handleEvent(API_EVENT event, RequestContext context) {
+				sink[0] += event.ordinal() + context.getIntParameter(RequestContext.SPEED, 0);
+			}
+		};
+		for (API_EVENT event : API_EVENT.values()) {
+			router.registerListener(event, listener);
+		}
+
+		HttpRequestParser parser = new HttpRequestParser();
+		RequestContext context = new RequestContext();
+		run(requests, router, parser, context, WARMUP);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		run(requests, router, parser, context, MEASURED);
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+		System.out.printf("%d requests: %.1f ns/request, %.3f bytes allocated/request (sink %d)%n", MEASURED,
+				(double) elapsed / MEASURED, (double) allocated / MEASURED, sink[0]);
+	}
+
+	private static void run(byte[][] requests, ApiRouter router, HttpRequestParser parser, RequestContext context,
+			int count) {
+		for (int i = 0; i < count; i++) {
+			byte[] request = requests[i % requests.length];
+			parser.reset();
+			if (parser.parse(request, request.length) != HttpRequestParser.Status.COMPLETE) {
+				throw new IllegalStateException("benchmark request did not parse");
+			}
+			API_EVENT event = router.route(parser.getData(), parser.getPathStart(), parser.getPathEnd());
+			if (event != null) {
+				context.setRequest(parser);
+				router.dispatch(event, context);
+			}
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,179 @@
+package com.loneranger.lejos.bench;
+
+import com.loneranger.lejos.arbitrator.ReadinessSignal;
+import com.loneranger.lejos.arbitrator.SignallingBehavior;
+import com.loneranger.lejos.hardware.DrivePilot;
+
+/**
+ * Stand-in pilot and behaviours for the benchmarks, so that nothing they
+ * measure waits on motors.
+ */
+public class StandIns {
+
+	/**
+	 * A pilot whose moves finish instantly.
+	 */
+	public static class NullPilot implements DrivePilot {
+		volatile private double linearSpeed = 150;
+		volatile private double angularSpeed = 90;
+		volatile private long moves = 0;
+
+		@Override
+		public void travel(double distance, boolean immediateReturn) {
+			moves++;
+		}
+
+		@Override
+		public void rotate(double angle) {
+			moves++;
+		}
+
+		@Override
+		public void rotate(double angle, boolean immediateReturn) {
+			moves++;
+		}
+
+		@Override
+		public void setVelocity(double linearSpeed, double angularSpeed) {
+			moves++;
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public boolean isMoving() {
+			return false;
+		}
+
+		@Override
+		public double getLinearSpeed() {
+			return linearSpeed;
+		}
+
+		@Override
+		public void setLinearSpeed(double speed) {
+			linearSpeed = speed;
+		}
+
+		@Override
+		public double getMaxLinearSpeed() {
+			return 190;
+		}
+
+		@Override
+		public void setLinearAcceleration(double acceleration) {
+		}
+
+		@Override
+		public double getAngularSpeed() {
+			return angularSpeed;
+		}
+
+		@Override
+		public void setAngularSpeed(double speed) {
+			angularSpeed = speed;
+		}
+
+		public long getMoves() {
+			return moves;
+		}
+	}
+
+	/**
+	 * Wants control only when fired, and gives it straight back.
+	 */
+	public static class TriggeredBehavior implements SignallingBehavior {
+		volatile private boolean fired = false;
+		volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+		volatile private long actions = 0;
+
+		@Override
+		public void setReadinessSignal(ReadinessSignal signal) {
+			this.readiness = signal;
+		}
+
+		public void fire() {
+			fired = true;
+			readiness.readinessChanged(true);
+		}
+
+		@Override
+		public boolean takeControl() {
+			return fired;
+		}
+
+		@Override
+		public void action() {
+			fired = false;
+			readiness.readinessChanged(false);
+			actions++;
+		}
+
+		@Override
+		public void suppress() {
+			fired = false;
+			readiness.readinessChanged(false);
+		}
+
+		public long getActions() {
+			return actions;
+		}
+	}
+
+	/**
+	 * The lowest priority behaviour: always wants control and parks in
+	 * action() until suppressed, like ApiControlledTrack3r's fallback.
+	 * Deliberately a plain Behavior, so READY_SET arbitration polls it.
+	 */
+	public static class HoldingBehavior implements lejos.robotics.subsumption.Behavior {
+		volatile private boolean finished = false;
+		volatile private boolean holding = false;
+		volatile private long suppressions = 0;
+		volatile private boolean suppressed = false;
+
+		@Override
+		public boolean takeControl() {
+			return !finished;
+		}
+
+		@Override
+		public synchronized void action() {
+			holding = true;
+			while (!suppressed && !finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			// in this order, so isHolding() can't see a stale holding flag
+			holding = false;
+			suppressed = false;
+		}
+
+		@Override
+		public synchronized void suppress() {
+			suppressed = true;
+			suppressions++;
+			notifyAll();
+		}
+
+		public synchronized void finish() {
+			finished = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return true while parked in action() and not yet suppressed
+		 */
+		public boolean isHolding() {
+			return !suppressed && holding;
+		}
+
+		public long getSuppressions() {
+			return suppressions;
+		}
+	}
+}
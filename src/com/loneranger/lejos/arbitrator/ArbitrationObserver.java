@@ -0,0 +1,21 @@
+package com.loneranger.lejos.arbitrator;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Told about the arbitrator's decisions, e.g. to measure them. Called on the
+ * arbitrator's own threads, so implementations must be quick and must not
+ * block.
+ */
+public interface ArbitrationObserver {
+
+	/**
+	 * Called on the thread running go(), just before <code>behavior</code>'s
+	 * action() starts.
+	 *
+	 * @param behavior
+	 *            the behavior as it was passed to the arbitrator, not any
+	 *            adapter wrapping it
+	 */
+	public void behaviorActivated(int priority, Behavior behavior);
+}
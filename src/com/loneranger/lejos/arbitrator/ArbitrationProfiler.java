@@ -0,0 +1,26 @@
+package com.loneranger.lejos.arbitrator;
+
+/**
+ * Receives per-priority timings from an {@link ImprovedArbitrator} in
+ * profiling mode. Called on the arbitrator's own threads, so implementations
+ * must be quick and must not block.
+ */
+public interface ArbitrationProfiler {
+
+	/**
+	 * Called on the Monitor thread for every takeControl() call (in
+	 * READY_SET mode, every poll of a plain Behavior).
+	 */
+	public void takeControlTimed(int priority, long nanos);
+
+	/**
+	 * Called on the go() thread each time an action() returns.
+	 *
+	 * @param actionNanos
+	 *            how long action() ran
+	 * @param suppressToIdleNanos
+	 *            how long action() took to return after suppress() was
+	 *            called, or -1 if it wasn't suppressed
+	 */
+	public void actionCompleted(int priority, long actionNanos, long suppressToIdleNanos);
+}
@@ -19,6 +19,20 @@ import lejos.robotics.subsumption.Behavior;
  * this using Java's CountDownLatch to have the main thread wait for the monitor
  * thread to finish at least one execution (@author - Abhinav Neelam)
  * 
+ * In {@link Mode#EVENT_DRIVEN} mode the Monitor thread does not spin on
+ * Thread.yield(). It parks until a {@link SignallingBehavior} reports a change
+ * in readiness, {@link #wakeUp()} is called (e.g. by the API handler on every
+ * event) or the wake timeout expires - the timeout is what keeps plain polling
+ * Behaviors working. The main thread likewise waits for the Monitor instead of
+ * spinning. The CountDownLatch handshake is unchanged.
+ * 
+ * {@link Mode#READY_SET} goes further: every behavior owns one bit of a
+ * {@link ReadySet} indexed by priority, which it sets and clears through its
+ * readiness signal. A Monitor pass then finds the winner with a single
+ * highest-set-bit operation instead of calling takeControl() down the array.
+ * Plain Behaviors are wrapped in a {@link PollingBehaviorAdapter} and are the
+ * only ones still polled.
+ * 
  * 
  * An Arbitrator object manages a behavior control system by starting and
  * stopping individual behaviors <br>
@@ -57,14 +71,48 @@ import lejos.robotics.subsumption.Behavior;
  */
 public class ImprovedArbitrator {
 
+	public static enum Mode {
+		/** the original behaviour - the Monitor re-polls nonstop */
+		POLLING,
+		/** the Monitor parks until signalled or the wake timeout expires */
+		EVENT_DRIVEN,
+		/**
+		 * as EVENT_DRIVEN, but the winner comes from the ready bitmask rather
+		 * than a takeControl() scan - at most 64 behaviors
+		 */
+		READY_SET;
+	}
+
+	public static final long DEFAULT_WAKE_TIMEOUT_MS = 50;
+
 	private final int NONE = -1;
 	private Behavior[] _behavior;
 	// highest priority behavior that wants control ; set by start() used by
 	// monitor
-	private int _highestPriority = NONE;
-	private int _active = NONE; // active behavior; set by monitor, used by
+	volatile private int _highestPriority = NONE;
+	volatile private int _active = NONE; // active behavior; set by monitor, used by
 								// start();
 	private boolean _returnWhenInactive;
+	private final Mode _mode;
+	private final long _wakeTimeoutMillis;
+
+	// set by wakeUp() so that a signal arriving during a Monitor pass is not
+	// lost; guarded by wakeLock
+	private final Object wakeLock = new Object();
+	private boolean wakePending = false;
+	volatile private long monitorPasses = 0;
+
+	// READY_SET mode only
+	private final ReadySet readySet = new ReadySet();
+	private PollingBehaviorAdapter[] polled = new PollingBehaviorAdapter[0];
+	private int[] polledPriority = new int[0];
+
+	// run by the Monitor at the start of every pass, e.g. to drain commands
+	volatile private Runnable monitorTask = null;
+	volatile private ArbitrationObserver observer = null;
+	// profiling mode only
+	volatile private ArbitrationProfiler profiler = null;
+	volatile private long suppressedAtNanos = 0;
 
 	volatile private CountDownLatch monitorSingleRunChecker = null;
 	volatile public boolean keepRunning = true;
@@ -91,8 +139,43 @@ public class ImprovedArbitrator {
 	 *            Behavior is active.
 	 */
 	public ImprovedArbitrator(Behavior[] behaviorList, boolean returnWhenInactive) {
+		this(behaviorList, returnWhenInactive, Mode.POLLING, DEFAULT_WAKE_TIMEOUT_MS);
+	}
+
+	/**
+	 * Same as Arbitrator(behaviorList, returnWhenInactive) but lets the caller
+	 * pick the arbitration mode.
+	 * 
+	 * @param mode
+	 *            how the Monitor thread looks for behaviors that want control
+	 * @param wakeTimeoutMillis
+	 *            in EVENT_DRIVEN mode, the longest the Monitor sleeps without a
+	 *            signal before polling all behaviors again
+	 */
+	public ImprovedArbitrator(Behavior[] behaviorList, boolean returnWhenInactive, Mode mode,
+			long wakeTimeoutMillis) {
+		if (wakeTimeoutMillis <= 0) {
+			throw new IllegalArgumentException("wake timeout must be positive: " + wakeTimeoutMillis);
+		}
 		_behavior = behaviorList;
 		_returnWhenInactive = returnWhenInactive;
+		_mode = mode;
+		_wakeTimeoutMillis = wakeTimeoutMillis;
+		if (_mode == Mode.EVENT_DRIVEN) {
+			ReadinessSignal signal = new ReadinessSignal() {
+				@Override
+				public void readinessChanged(boolean ready) {
+					wakeUp();
+				}
+			};
+			for (Behavior behavior : _behavior) {
+				if (behavior instanceof SignallingBehavior) {
+					((SignallingBehavior) behavior).setReadinessSignal(signal);
+				}
+			}
+		} else if (_mode == Mode.READY_SET) {
+			attachReadyBits();
+		}
 		monitor = new Monitor();
 		monitor.setDaemon(true);
 		// System.out.println("Arbitrator created");
@@ -121,39 +204,236 @@ public class ImprovedArbitrator {
 	public void go() {
 
 		monitor.start();
-		while (_highestPriority == NONE) {
-			Thread.yield();// wait for some behavior to take control
+		if (_mode == Mode.POLLING) {
+			while (_highestPriority == NONE && keepRunning) {
+				Thread.yield();// wait for some behavior to take control
+			}
+		} else {
+			synchronized (monitor) {
+				while (_highestPriority == NONE && keepRunning) {
+					waitForDecision();
+				}
+			}
 		}
 		while (true) {
 			synchronized (monitor) {
-				if (_highestPriority > NONE) {
+				if (!keepRunning) {
+					// stopped from outside
+					return;
+				} else if (_highestPriority > NONE) {
 					_active = _highestPriority;
 				} else if (_returnWhenInactive) {// no behavior wants to run
-					keepRunning = false;// 9 shut down monitor thread
+					stop();// 9 shut down monitor thread
 					return;
+				} else if (_mode != Mode.POLLING) {
+					// nothing to run - sleep until the monitor finds something
+					// rather than cycling the latch handshake
+					waitForDecision();
+					continue;
 				}
 			} // monitor released before action is called
 			if (_active != NONE) // _highestPrioirty could be NONE
 			{
-				_behavior[_active].action();
+				ArbitrationObserver watcher = observer;
+				if (watcher != null) {
+					watcher.behaviorActivated(_active, unwrap(_behavior[_active]));
+				}
+				ArbitrationProfiler profile = profiler;
+				if (profile == null) {
+					_behavior[_active].action();
+				} else {
+					profiledAction(profile, _active);
+				}
 				_active = NONE; // no active behavior at the moment
 			}
+			if (!keepRunning) {
+				// the Monitor has gone, so don't wait for it
+				return;
+			}
 
 			// now wait for the monitor to run atleast once//
-			monitorSingleRunChecker = new CountDownLatch(1);
+			CountDownLatch checker = new CountDownLatch(1);
+			monitorSingleRunChecker = checker;
+			if (!keepRunning) {
+				// a stop() since the check above may have missed the latch,
+				// and the Monitor won't count it down either
+				monitorSingleRunChecker = null;
+				return;
+			}
+			if (_mode != Mode.POLLING) {
+				wakeUp();
+			}
 			try {
-				monitorSingleRunChecker.await();
+				checker.await();
 			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				// give up, and take the Monitor thread down too
+				monitorSingleRunChecker = null;
+				stop();
+				Thread.currentThread().interrupt();
+				return;
 			}
 			monitorSingleRunChecker = null;
-			Thread.yield();
+			if (_mode == Mode.POLLING) {
+				Thread.yield();
+			}
 		}
 	}
 
+	/**
+	 * Stops the Monitor thread and suppresses the active behavior, if there
+	 * is one. go() returns once that behavior's action() has.
+	 */
 	public void stop() {
 		keepRunning = false;
+		// go() may be waiting for a pass the Monitor won't make
+		CountDownLatch checker = monitorSingleRunChecker;
+		if (checker != null) {
+			checker.countDown();
+		}
+		int active = _active;
+		if (active != NONE) {
+			_behavior[active].suppress();
+		}
+		wakeUp();
+		synchronized (monitor) {
+			// go() may be waiting for a decision
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Makes the Monitor thread run a pass now instead of waiting for its wake
+	 * timeout. Cheap enough to call on every API event. Has no effect in
+	 * POLLING mode.
+	 */
+	public void wakeUp() {
+		synchronized (wakeLock) {
+			wakePending = true;
+			wakeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets a task for the Monitor thread to run at the start of every pass,
+	 * before it looks for the highest priority behavior - so anything the task
+	 * changes (such as commands handed to behaviors) is arbitrated in the same
+	 * pass. Must be set before go().
+	 */
+	public void setMonitorTask(Runnable task) {
+		this.monitorTask = task;
+	}
+
+	/**
+	 * Sets something to be told about each behavior the arbitrator
+	 * activates. Must be set before go().
+	 */
+	public void setObserver(ArbitrationObserver observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * Turns on profiling mode: the Monitor times every takeControl() and the
+	 * go() thread times every action(), including how long it took to return
+	 * once suppressed. Must be set before go().
+	 */
+	public void setProfiler(ArbitrationProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	private void profiledAction(ArbitrationProfiler profile, int priority) {
+		suppressedAtNanos = 0;
+		long start = System.nanoTime();
+		_behavior[priority].action();
+		long end = System.nanoTime();
+		long suppressedAt = suppressedAtNanos;
+		profile.actionCompleted(priority, end - start, suppressedAt == 0 ? -1 : Math.max(0, end - suppressedAt));
+	}
+
+	private static Behavior unwrap(Behavior behavior) {
+		return behavior instanceof PollingBehaviorAdapter ? ((PollingBehaviorAdapter) behavior).getDelegate()
+				: behavior;
+	}
+
+	public Mode getMode() {
+		return _mode;
+	}
+
+	/**
+	 * @return the number of passes the Monitor thread has made over the
+	 *         behavior array - a rough measure of the CPU arbitration costs
+	 */
+	public long getMonitorPassCount() {
+		return monitorPasses;
+	}
+
+	/**
+	 * Gives every behavior its bit in the ready set, wrapping plain Behaviors
+	 * in a PollingBehaviorAdapter. Adapters update their bit from the Monitor
+	 * thread itself, so their signal does not wake the Monitor.
+	 */
+	private void attachReadyBits() {
+		if (_behavior.length > ReadySet.CAPACITY) {
+			throw new IllegalArgumentException(
+					"ready set arbitration supports at most " + ReadySet.CAPACITY + " behaviors");
+		}
+		Behavior[] behaviors = new Behavior[_behavior.length];
+		PollingBehaviorAdapter[] adapters = new PollingBehaviorAdapter[_behavior.length];
+		int[] adapterPriority = new int[_behavior.length];
+		int adapterCount = 0;
+		// adapters are kept highest priority first so a pass can stop at _active
+		for (int i = _behavior.length - 1; i >= 0; i--) {
+			SignallingBehavior behavior;
+			if (_behavior[i] instanceof SignallingBehavior) {
+				behavior = (SignallingBehavior) _behavior[i];
+				behavior.setReadinessSignal(new ReadyBit(i, true));
+			} else {
+				PollingBehaviorAdapter adapter = new PollingBehaviorAdapter(_behavior[i]);
+				adapter.setReadinessSignal(new ReadyBit(i, false));
+				adapterPriority[adapterCount] = i;
+				adapters[adapterCount++] = adapter;
+				behavior = adapter;
+			}
+			readySet.update(i, behavior.takeControl());
+			behaviors[i] = behavior;
+		}
+		_behavior = behaviors;
+		polled = new PollingBehaviorAdapter[adapterCount];
+		System.arraycopy(adapters, 0, polled, 0, adapterCount);
+		polledPriority = new int[adapterCount];
+		System.arraycopy(adapterPriority, 0, polledPriority, 0, adapterCount);
+	}
+
+	/**
+	 * Readiness signal owning one priority's bit of the ready set.
+	 */
+	private class ReadyBit implements ReadinessSignal {
+		private final int priority;
+		private final boolean wakeMonitor;
+
+		ReadyBit(int priority, boolean wakeMonitor) {
+			this.priority = priority;
+			this.wakeMonitor = wakeMonitor;
+		}
+
+		@Override
+		public void readinessChanged(boolean ready) {
+			readySet.update(priority, ready);
+			if (wakeMonitor) {
+				wakeUp();
+			}
+		}
+	}
+
+	/**
+	 * Must be called holding the monitor lock. The Monitor notifies after every
+	 * pass; the timeout is only a safety net.
+	 */
+	private void waitForDecision() {
+		try {
+			monitor.wait(_wakeTimeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
@@ -168,31 +448,106 @@ public class ImprovedArbitrator {
 
 		public void run() {
 			while (keepRunning) {
+				Runnable task = monitorTask;
+				if (task != null) {
+					task.run();
+				}
+				// only a pass that starts after go() has set up the latch may
+				// release it: one already under way may have read _active
+				// before the action() returned, and found nothing above it
+				CountDownLatch checker = monitorSingleRunChecker;
 				// FIND HIGHEST PRIORITY BEHAVIOR THAT WANTS CONTROL
 				synchronized (this) {
 					_highestPriority = NONE; // -1
-					for (int i = maxPriority; i > _active; i--) // only
-																// behaviors
-																// with higher
-																// priority are
-																// interesting
-					{
-						if (_behavior[i].takeControl()) {
-							_highestPriority = i;
-							break;
+					ArbitrationProfiler profile = profiler;
+					if (_mode == Mode.READY_SET) {
+						_highestPriority = highestReady(profile);
+					} else if (profile != null) {
+						_highestPriority = highestProfiled(profile);
+					} else {
+						for (int i = maxPriority; i > _active; i--) // only
+																	// behaviors
+																	// with higher
+																	// priority are
+																	// interesting
+						{
+							if (_behavior[i].takeControl()) {
+								_highestPriority = i;
+								break;
+							}
 						}
 					}
 					int active = _active; // local copy in case _active is set
 											// to NONE by the primary thread
 					if (_active != NONE && _highestPriority > _active) {
+						// later passes suppress again until the action returns -
+						// the clock starts at the first
+						if (profile != null && suppressedAtNanos == 0) {
+							suppressedAtNanos = System.nanoTime();
+						}
 						_behavior[active].suppress();
 					}
 
-					if (monitorSingleRunChecker != null) {
-						monitorSingleRunChecker.countDown();
+					if (checker != null) {
+						checker.countDown();
+					}
+					monitorPasses++;
+					if (_mode != Mode.POLLING) {
+						notifyAll();// main thread may be waiting for a decision
 					}
 				} // end synchronize block - main thread can run now
-				Thread.yield();
+				if (_mode == Mode.POLLING) {
+					Thread.yield();
+				} else {
+					awaitWakeUp();
+				}
+			}
+		}
+
+		/**
+		 * Polls the adapted behaviors above the active one, then reads the
+		 * winner straight off the ready set.
+		 */
+		private int highestReady(ArbitrationProfiler profile) {
+			int active = _active;
+			for (int i = 0; i < polled.length && polledPriority[i] > active; i++) {
+				if (profile == null) {
+					polled[i].poll();
+				} else {
+					long start = System.nanoTime();
+					polled[i].poll();
+					profile.takeControlTimed(polledPriority[i], System.nanoTime() - start);
+				}
+			}
+			int highest = readySet.highest();
+			return highest > active ? highest : NONE;
+		}
+
+		/**
+		 * The takeControl() scan, timing each call.
+		 */
+		private int highestProfiled(ArbitrationProfiler profile) {
+			for (int i = maxPriority; i > _active; i--) {
+				long start = System.nanoTime();
+				boolean wants = _behavior[i].takeControl();
+				profile.takeControlTimed(i, System.nanoTime() - start);
+				if (wants) {
+					return i;
+				}
+			}
+			return NONE;
+		}
+
+		private void awaitWakeUp() {
+			synchronized (wakeLock) {
+				if (!wakePending && keepRunning) {
+					try {
+						wakeLock.wait(_wakeTimeoutMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				wakePending = false;
 			}
 		}
 	}
@@ -0,0 +1,51 @@
+package com.loneranger.lejos.arbitrator;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Lets a plain polling Behavior take part in ready-set arbitration. The
+ * arbitrator calls {@link #poll()} on every Monitor pass, which evaluates the
+ * wrapped <code>takeControl()</code> and reports the answer as a readiness
+ * signal. action() and suppress() are passed straight through.
+ */
+public class PollingBehaviorAdapter implements SignallingBehavior {
+	private final Behavior delegate;
+	volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+
+	public PollingBehaviorAdapter(Behavior delegate) {
+		this.delegate = delegate;
+	}
+
+	public Behavior getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public void setReadinessSignal(ReadinessSignal signal) {
+		this.readiness = signal;
+	}
+
+	/**
+	 * @return the wrapped behavior's current <code>takeControl()</code>
+	 */
+	public boolean poll() {
+		boolean ready = delegate.takeControl();
+		readiness.readinessChanged(ready);
+		return ready;
+	}
+
+	@Override
+	public boolean takeControl() {
+		return delegate.takeControl();
+	}
+
+	@Override
+	public void action() {
+		delegate.action();
+	}
+
+	@Override
+	public void suppress() {
+		delegate.suppress();
+	}
+}
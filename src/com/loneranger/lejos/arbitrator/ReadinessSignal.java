@@ -0,0 +1,26 @@
+package com.loneranger.lejos.arbitrator;
+
+/**
+ * Handed to a {@link SignallingBehavior} by the arbitrator. The behavior calls
+ * <code>readinessChanged()</code> whenever the answer its
+ * <code>takeControl()</code> would give changes, so the arbitrator's Monitor
+ * thread can sleep instead of polling.
+ */
+public interface ReadinessSignal {
+
+	/**
+	 * Signal used before a behavior is attached to an arbitrator.
+	 */
+	public static final ReadinessSignal NONE = new ReadinessSignal() {
+		@Override
+		public void readinessChanged(boolean ready) {
+			// not attached to an arbitrator - nothing to wake up
+		}
+	};
+
+	/**
+	 * @param ready
+	 *            the new value of the behavior's <code>takeControl()</code>
+	 */
+	public void readinessChanged(boolean ready);
+}
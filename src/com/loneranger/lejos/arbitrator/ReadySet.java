@@ -0,0 +1,64 @@
+package com.loneranger.lejos.arbitrator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of up to 64 behavior priorities that currently want control, held as
+ * a single bitmask so that it can be updated atomically from any thread and
+ * the highest ready priority found with one leading-zero count.
+ */
+public class ReadySet {
+	public static final int CAPACITY = Long.SIZE;
+	public static final int NONE = -1;
+
+	private final AtomicLong mask = new AtomicLong();
+
+	public void set(int priority) {
+		long bit = bit(priority);
+		long current;
+		do {
+			current = mask.get();
+			if ((current & bit) != 0) {
+				return;
+			}
+		} while (!mask.compareAndSet(current, current | bit));
+	}
+
+	public void clear(int priority) {
+		long bit = bit(priority);
+		long current;
+		do {
+			current = mask.get();
+			if ((current & bit) == 0) {
+				return;
+			}
+		} while (!mask.compareAndSet(current, current & ~bit));
+	}
+
+	public void update(int priority, boolean ready) {
+		if (ready) {
+			set(priority);
+		} else {
+			clear(priority);
+		}
+	}
+
+	public boolean isSet(int priority) {
+		return (mask.get() & bit(priority)) != 0;
+	}
+
+	/**
+	 * @return the highest priority in the set, or NONE if it is empty
+	 */
+	public int highest() {
+		long current = mask.get();
+		return current == 0 ? NONE : CAPACITY - 1 - Long.numberOfLeadingZeros(current);
+	}
+
+	private static long bit(int priority) {
+		if (priority < 0 || priority >= CAPACITY) {
+			throw new IndexOutOfBoundsException("priority " + priority + " outside 0.." + (CAPACITY - 1));
+		}
+		return 1L << priority;
+	}
+}
@@ -0,0 +1,242 @@
+package com.loneranger.lejos.arbitrator;
+
+import java.util.Arrays;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Arbitrates behaviors per resource, so that behaviors using different parts
+ * of the robot run at the same time. Behaviors declare their resources as a
+ * {@link ResourceBehavior}; plain Behaviors are taken to use all of them.
+ *
+ * Behaviors that share a resource - directly, or through a chain of others -
+ * are put in the same lane, found with a union-find over the resources. Each
+ * lane is arbitrated by its own {@link ImprovedArbitrator} in READY_SET mode,
+ * so within a lane priority and suppression work exactly as before, while
+ * the lanes run their actions in parallel. A behavior that only uses the
+ * speaker therefore no longer waits for, or preempts, the ones that drive.
+ *
+ * Priorities are global, as in ImprovedArbitrator: the index in the array
+ * given to the constructor, and that is what observers and profilers are
+ * told. The lane holding the highest priority behavior is the main lane:
+ * go() runs it on the calling thread, its Monitor runs the monitor task, and
+ * when it returns the other lanes are stopped.
+ */
+public class ResourceArbitrator {
+	private final int[] laneOf;
+	// each lane's behaviors' global priorities, lowest first
+	private final int[][] lanePriorities;
+	private final ImprovedArbitrator[] lanes;
+	private final int mainLane;
+
+	public ResourceArbitrator(Behavior[] behaviorList, boolean returnWhenInactive, long wakeTimeoutMillis) {
+		Behavior[] behaviors = behaviorList.clone();
+		int count = behaviors.length;
+		if (count == 0) {
+			throw new IllegalArgumentException("no behaviors");
+		}
+
+		// join each behavior to the first one seen using each of its resources
+		int[] parent = new int[count];
+		for (int i = 0; i < count; i++) {
+			parent[i] = i;
+		}
+		int[] firstUser = new int[Integer.SIZE];
+		Arrays.fill(firstUser, -1);
+		for (int i = 0; i < count; i++) {
+			int resources = resourcesOf(behaviors[i]);
+			for (int resource = 0; resource < Integer.SIZE; resource++) {
+				if ((resources & (1 << resource)) == 0) {
+					continue;
+				}
+				if (firstUser[resource] < 0) {
+					firstUser[resource] = i;
+				} else {
+					union(parent, firstUser[resource], i);
+				}
+			}
+		}
+
+		// number the lanes in order of their lowest priority behavior
+		laneOf = new int[count];
+		int[] laneOfRoot = new int[count];
+		Arrays.fill(laneOfRoot, -1);
+		int[] laneSize = new int[count];
+		int laneCount = 0;
+		for (int i = 0; i < count; i++) {
+			int root = find(parent, i);
+			if (laneOfRoot[root] < 0) {
+				laneOfRoot[root] = laneCount++;
+			}
+			laneOf[i] = laneOfRoot[root];
+			laneSize[laneOf[i]]++;
+		}
+		lanePriorities = new int[laneCount][];
+		for (int lane = 0; lane < laneCount; lane++) {
+			lanePriorities[lane] = new int[laneSize[lane]];
+			laneSize[lane] = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			lanePriorities[laneOf[i]][laneSize[laneOf[i]]++] = i;
+		}
+
+		mainLane = laneOf[count - 1];
+		lanes = new ImprovedArbitrator[laneCount];
+		for (int lane = 0; lane < laneCount; lane++) {
+			Behavior[] laneBehaviors = new Behavior[lanePriorities[lane].length];
+			for (int i = 0; i < laneBehaviors.length; i++) {
+				laneBehaviors[i] = behaviors[lanePriorities[lane][i]];
+			}
+			// the other lanes run until stopped, as they may have nothing to
+			// do for long stretches
+			lanes[lane] = new ImprovedArbitrator(laneBehaviors, lane == mainLane && returnWhenInactive,
+					ImprovedArbitrator.Mode.READY_SET, wakeTimeoutMillis);
+		}
+	}
+
+	private static int resourcesOf(Behavior behavior) {
+		return behavior instanceof ResourceBehavior ? ((ResourceBehavior) behavior).getResources()
+				: ResourceBehavior.ALL;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			// path halving
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		// keep the lower priority as the root
+		if (rootA < rootB) {
+			parent[rootB] = rootA;
+		} else if (rootB < rootA) {
+			parent[rootA] = rootB;
+		}
+	}
+
+	/**
+	 * Runs every lane until the main lane's arbitrator returns - see
+	 * {@link ImprovedArbitrator#go()} - then stops the others and waits for
+	 * their actions to return.
+	 */
+	public void go() {
+		Thread[] threads = new Thread[lanes.length];
+		for (int lane = 0; lane < lanes.length; lane++) {
+			if (lane == mainLane) {
+				continue;
+			}
+			final ImprovedArbitrator arbitrator = lanes[lane];
+			threads[lane] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					arbitrator.go();
+				}
+			}, "arbitration lane " + lane);
+			threads[lane].setDaemon(true);
+			threads[lane].start();
+		}
+
+		lanes[mainLane].go();
+
+		for (int lane = 0; lane < lanes.length; lane++) {
+			if (lane == mainLane) {
+				continue;
+			}
+			lanes[lane].stop();
+			try {
+				threads[lane].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public void stop() {
+		for (ImprovedArbitrator lane : lanes) {
+			lane.stop();
+		}
+	}
+
+	/**
+	 * Wakes the main lane's Monitor, which runs the monitor task. The other
+	 * lanes are woken by their behaviors' readiness signals.
+	 */
+	public void wakeUp() {
+		lanes[mainLane].wakeUp();
+	}
+
+	/**
+	 * Sets a task for the main lane's Monitor thread to run at the start of
+	 * every pass - see {@link ImprovedArbitrator#setMonitorTask(Runnable)}.
+	 * Must be set before go().
+	 */
+	public void setMonitorTask(Runnable task) {
+		lanes[mainLane].setMonitorTask(task);
+	}
+
+	/**
+	 * Sets something to be told about each behavior activated in any lane.
+	 * Called from every lane's thread. Must be set before go().
+	 */
+	public void setObserver(final ArbitrationObserver observer) {
+		for (int lane = 0; lane < lanes.length; lane++) {
+			final int[] priorities = lanePriorities[lane];
+			lanes[lane].setObserver(new ArbitrationObserver() {
+				@Override
+				public void behaviorActivated(int priority, Behavior behavior) {
+					observer.behaviorActivated(priorities[priority], behavior);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Turns on profiling mode in every lane - see
+	 * {@link ImprovedArbitrator#setProfiler(ArbitrationProfiler)}. Called
+	 * from every lane's threads. Must be set before go().
+	 */
+	public void setProfiler(final ArbitrationProfiler profiler) {
+		for (int lane = 0; lane < lanes.length; lane++) {
+			final int[] priorities = lanePriorities[lane];
+			lanes[lane].setProfiler(new ArbitrationProfiler() {
+				@Override
+				public void takeControlTimed(int priority, long nanos) {
+					profiler.takeControlTimed(priorities[priority], nanos);
+				}
+
+				@Override
+				public void actionCompleted(int priority, long actionNanos, long suppressToIdleNanos) {
+					profiler.actionCompleted(priorities[priority], actionNanos, suppressToIdleNanos);
+				}
+			});
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * @return the lane the behavior of the given priority runs in
+	 */
+	public int getLane(int priority) {
+		return laneOf[priority];
+	}
+
+	/**
+	 * @return the passes made by every lane's Monitor thread
+	 */
+	public long getMonitorPassCount() {
+		long passes = 0;
+		for (ImprovedArbitrator lane : lanes) {
+			passes += lane.getMonitorPassCount();
+		}
+		return passes;
+	}
+}
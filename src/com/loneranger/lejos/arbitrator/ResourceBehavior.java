@@ -0,0 +1,20 @@
+package com.loneranger.lejos.arbitrator;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * A Behavior that declares which of the robot's resources its action() uses,
+ * so a {@link ResourceArbitrator} can run it alongside behaviors that use
+ * others. Plain Behaviors are taken to use everything.
+ */
+public interface ResourceBehavior extends Behavior {
+	public static final int DRIVE = 1;
+	public static final int SPEAKER = 1 << 1;
+	public static final int DISPLAY = 1 << 2;
+	public static final int ALL = -1;
+
+	/**
+	 * @return a mask of the resources used - DRIVE, SPEAKER and so on
+	 */
+	public int getResources();
+}
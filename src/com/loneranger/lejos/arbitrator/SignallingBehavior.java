@@ -0,0 +1,16 @@
+package com.loneranger.lejos.arbitrator;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * A Behavior that tells the arbitrator when it wants to take control rather
+ * than waiting to be polled. Plain Behaviors still work, they just get picked
+ * up on the next Monitor pass (at the latest when the wake timeout expires).
+ */
+public interface SignallingBehavior extends Behavior {
+
+	/**
+	 * Called once by the arbitrator before arbitration starts.
+	 */
+	public void setReadinessSignal(ReadinessSignal signal);
+}
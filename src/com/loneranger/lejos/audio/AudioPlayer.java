@@ -0,0 +1,96 @@
+package com.loneranger.lejos.audio;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.loneranger.lejos.hardware.Speaker;
+
+/**
+ * Plays samples from a {@link SampleCache} on its own thread, so whoever asks
+ * for a sound - a behaviour's action(), say - carries on straight away
+ * instead of waiting for the clip to end. The thread preloads the cache when
+ * it starts, then plays requests one after the other. Requests that arrive
+ * while {@link #QUEUE_CAPACITY} are already waiting are dropped rather than
+ * letting sounds pile up behind a long clip.
+ */
+public class AudioPlayer implements Runnable {
+	public static final int QUEUE_CAPACITY = 4;
+
+	private final Speaker speaker;
+	private final SampleCache cache;
+	private final BlockingQueue<String> requests = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+	volatile private long played = 0;
+	volatile private long dropped = 0;
+	volatile private long failed = 0;
+
+	public AudioPlayer(Speaker speaker, SampleCache cache) {
+		this.speaker = speaker;
+		this.cache = cache;
+	}
+
+	public SampleCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Queues the named sample to be played. Never blocks.
+	 *
+	 * @return false if the queue was full and the request was dropped
+	 */
+	public boolean play(String name) {
+		if (requests.offer(name)) {
+			return true;
+		}
+		dropped++;
+		return false;
+	}
+
+	/**
+	 * Plays requests until interrupted.
+	 */
+	@Override
+	public void run() {
+		cache.preload();
+		while (!Thread.currentThread().isInterrupted()) {
+			String name;
+			try {
+				name = requests.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			SampleCache.Clip clip;
+			try {
+				clip = cache.get(name);
+			} catch (IOException e) {
+				System.out.println("Can't play sample " + name + ": " + e.getMessage());
+				clip = null;
+			}
+			if (clip == null) {
+				failed++;
+				continue;
+			}
+			speaker.playSample(clip.getData(), 0, clip.getLength(), clip.getSampleRate());
+			played++;
+		}
+	}
+
+	public long getPlayedCount() {
+		return played;
+	}
+
+	/**
+	 * @return requests dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * @return requests for samples that aren't registered or can't be read
+	 */
+	public long getFailedCount() {
+		return failed;
+	}
+}
@@ -0,0 +1,303 @@
+package com.loneranger.lejos.audio;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded audio samples, by name, ready to hand straight to the speaker. WAV
+ * files are registered by name and decoded on first use - or all at once by
+ * {@link #preload()} - into 8 bit unsigned mono PCM, the EV3's native
+ * format, so playing a sample again reads nothing from flash.
+ *
+ * The decoded samples are held within a fixed budget of bytes. When a new one
+ * doesn't fit, the least recently played ones are evicted, and the largest
+ * evicted buffer is reused for the new one if it is about the right size; an
+ * evicted sample is simply decoded again next time. Clips registered from
+ * memory (such as a synthesized {@link #chime(String, double, int, int)})
+ * are already decoded and are never evicted. All methods are synchronized - in
+ * practice only the audio thread uses the cache.
+ */
+public class SampleCache {
+	public static final int DEFAULT_BUDGET_BYTES = 1 << 20;
+
+	private static final int WAVE_FORMAT_PCM = 1;
+
+	/**
+	 * A decoded sample: the first <code>length</code> bytes of
+	 * <code>data</code> are 8 bit unsigned mono PCM.
+	 */
+	public static class Clip {
+		private final String name;
+		private final byte[] data;
+		private final int length;
+		private final int sampleRate;
+
+		public Clip(String name, byte[] data, int length, int sampleRate) {
+			this.name = name;
+			this.data = data;
+			this.length = length;
+			this.sampleRate = sampleRate;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getSampleRate() {
+			return sampleRate;
+		}
+
+		public int getDurationMs() {
+			return (int) (length * 1000L / sampleRate);
+		}
+	}
+
+	private final int budgetBytes;
+	private final Map<String, File> files = new HashMap<>();
+	private final Map<String, Clip> resident = new HashMap<>();
+	// access ordered, so iteration starts at the least recently used
+	private final LinkedHashMap<String, Clip> decoded = new LinkedHashMap<>(16, 0.75f, true);
+	private int decodedBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public SampleCache() {
+		this(DEFAULT_BUDGET_BYTES);
+	}
+
+	public SampleCache(int budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Registers a WAV file - PCM, 8 or 16 bit, mono or stereo - to be
+	 * decoded on first use.
+	 */
+	public synchronized void register(String name, File file) {
+		files.put(name, file);
+		resident.remove(name);
+		forget(name);
+	}
+
+	/**
+	 * Registers an already decoded clip under its own name.
+	 */
+	public synchronized void register(Clip clip) {
+		resident.put(clip.getName(), clip);
+		files.remove(clip.getName());
+		forget(clip.getName());
+	}
+
+	private void forget(String name) {
+		Clip old = decoded.remove(name);
+		if (old != null) {
+			decodedBytes -= old.getData().length;
+		}
+	}
+
+	/**
+	 * Decodes every registered file that fits in the budget, reporting the
+	 * ones that can't be read rather than failing.
+	 */
+	public synchronized void preload() {
+		for (String name : files.keySet()) {
+			try {
+				get(name);
+			} catch (IOException e) {
+				System.out.println("Can't load sample " + name + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the decoded sample, or null if nothing is registered under
+	 *         <code>name</code>
+	 */
+	public synchronized Clip get(String name) throws IOException {
+		Clip clip = resident.get(name);
+		if (clip != null) {
+			return clip;
+		}
+		clip = decoded.get(name);
+		if (clip != null) {
+			hits++;
+			return clip;
+		}
+		File file = files.get(name);
+		if (file == null) {
+			return null;
+		}
+		misses++;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			return decode(name, in);
+		}
+	}
+
+	private Clip decode(String name, InputStream in) throws IOException {
+		if (readTag(in) != tag("RIFF")) {
+			throw new IOException("not a RIFF file");
+		}
+		readLittleEndian(in, 4);
+		if (readTag(in) != tag("WAVE")) {
+			throw new IOException("not a WAVE file");
+		}
+		int channels = 0;
+		int sampleRate = 0;
+		int bitsPerSample = 0;
+		int dataSize;
+		while (true) {
+			int id = readTag(in);
+			int size = readLittleEndian(in, 4);
+			if (id == tag("fmt ")) {
+				if (readLittleEndian(in, 2) != WAVE_FORMAT_PCM) {
+					throw new IOException("not PCM");
+				}
+				channels = readLittleEndian(in, 2);
+				sampleRate = readLittleEndian(in, 4);
+				readLittleEndian(in, 4); // byte rate
+				readLittleEndian(in, 2); // block align
+				bitsPerSample = readLittleEndian(in, 2);
+				skip(in, size - 16 + (size & 1));
+			} else if (id == tag("data")) {
+				dataSize = size;
+				break;
+			} else {
+				// chunks are padded to an even size
+				skip(in, size + (size & 1));
+			}
+		}
+		if ((channels != 1 && channels != 2) || (bitsPerSample != 8 && bitsPerSample != 16)) {
+			throw new IOException(channels + " channel " + bitsPerSample + " bit samples aren't supported");
+		}
+
+		if (dataSize < 0) {
+			throw new IOException("sample too big");
+		}
+		int length = dataSize / (channels * bitsPerSample / 8);
+		byte[] data = makeRoom(length);
+		for (int i = 0; i < length; i++) {
+			int sum = 0;
+			for (int channel = 0; channel < channels; channel++) {
+				// 16 bit samples are signed, 8 bit ones unsigned
+				sum += bitsPerSample == 8 ? readLittleEndian(in, 1) : (short) readLittleEndian(in, 2) / 256 + 128;
+			}
+			data[i] = (byte) (sum / channels);
+		}
+		Clip clip = new Clip(name, data, length, sampleRate);
+		if (data.length <= budgetBytes) {
+			decoded.put(name, clip);
+			decodedBytes += data.length;
+		}
+		return clip;
+	}
+
+	/**
+	 * Evicts the least recently used samples until <code>length</code> more
+	 * bytes fit in the budget.
+	 *
+	 * @return a buffer of at least <code>length</code> bytes - an evicted
+	 *         one if it is big enough
+	 */
+	private byte[] makeRoom(int length) {
+		if (length > budgetBytes) {
+			// won't be kept, so there's no point evicting anything
+			return new byte[length];
+		}
+		byte[] spare = null;
+		Iterator<Clip> oldest = decoded.values().iterator();
+		while (decodedBytes + length > budgetBytes && oldest.hasNext()) {
+			byte[] evicted = oldest.next().getData();
+			oldest.remove();
+			decodedBytes -= evicted.length;
+			evictions++;
+			if (spare == null || evicted.length > spare.length) {
+				spare = evicted;
+			}
+		}
+		// the buffer is what's counted, so a bigger spare still has to fit -
+		// and is only worth it if it's not wasting more than it holds
+		boolean reuse = spare != null && spare.length >= length && spare.length <= 2 * length
+				&& decodedBytes + spare.length <= budgetBytes;
+		return reuse ? spare : new byte[length];
+	}
+
+	private static int tag(String tag) {
+		return tag.charAt(0) | tag.charAt(1) << 8 | tag.charAt(2) << 16 | tag.charAt(3) << 24;
+	}
+
+	private static int readTag(InputStream in) throws IOException {
+		return readLittleEndian(in, 4);
+	}
+
+	private static int readLittleEndian(InputStream in, int bytes) throws IOException {
+		int value = 0;
+		for (int i = 0; i < bytes; i++) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= b << (8 * i);
+		}
+		return value;
+	}
+
+	private static void skip(InputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			bytes -= skipped;
+		}
+	}
+
+	/**
+	 * Synthesizes a bell-like tone: a sine at <code>frequency</code> with a
+	 * quieter octave above it, dying away over <code>durationMs</code>.
+	 */
+	public static Clip chime(String name, double frequency, int durationMs, int sampleRate) {
+		int length = (int) ((long) durationMs * sampleRate / 1000);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			double t = (double) i / sampleRate;
+			double envelope = Math.exp(-5.0 * i / length);
+			double wave = 0.7 * Math.sin(2 * Math.PI * frequency * t) + 0.3 * Math.sin(4 * Math.PI * frequency * t);
+			data[i] = (byte) (128 + Math.round(127 * envelope * wave));
+		}
+		return new Clip(name, data, length, sampleRate);
+	}
+
+	public synchronized int getDecodedBytes() {
+		return decodedBytes;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+}
@@ -1,157 +1,214 @@
 package com.loneranger.lejos.behaviour;
 
-import java.io.File;
-
+import com.loneranger.lejos.arbitrator.ReadinessSignal;
+import com.loneranger.lejos.arbitrator.ResourceBehavior;
+import com.loneranger.lejos.arbitrator.SignallingBehavior;
+import com.loneranger.lejos.audio.AudioPlayer;
 import com.loneranger.lejos.control.web.Callback;
 import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
 import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
 
-import lejos.hardware.Sound;
-import lejos.hardware.lcd.LCD;
-import lejos.robotics.navigation.MovePilot;
-import lejos.robotics.subsumption.Behavior;
+import com.loneranger.lejos.hardware.DrivePilot;
+import com.loneranger.lejos.status.StatusModel;
 
 public class BehaviourProvider {
-	public static class ForwardBackwardBehaviour implements Behavior, Callback {
-		public static enum DIRECTION {
-			FORWARD, BACKWARD;
-		}
-
-		private MovePilot pilot;
-		volatile DIRECTION currentDirection = null;
-
-		public ForwardBackwardBehaviour(MovePilot pilot) {
+	/**
+	 * Drives on continuous linear and angular velocity setpoints, so the
+	 * robot can follow arcs and a new setpoint takes effect mid-motion with
+	 * no stop and restart. Handles:
+	 * <ul>
+	 * <li>DRIVE - <code>speed</code> in mm/s (positive goes the way
+	 * FORWARD does) and <code>turn</code> in degrees/s (positive turns the way
+	 * LEFT does); both zero stops</li>
+	 * <li>FORWARD and BACKWARD - straight at <code>speed</code>, or at the
+	 * cruise speed (the pilot's linear speed, see {@link SpeedController}) if
+	 * it is missing or zero</li>
+	 * <li>LEFT and RIGHT - on the spot at <code>turn</code>, or at
+	 * {@link #TURN_RATE} degrees/s if it is missing or zero</li>
+	 * </ul>
+	 * Setpoints arrive on the arbitrator's Monitor thread and are handed to
+	 * the action thread, which applies each one as soon as it is woken - the
+	 * pilot is only ever driven from one thread.
+	 */
+	public static class VelocityDriveBehaviour implements SignallingBehavior, ResourceBehavior, Callback {
+		// the rate LEFT and RIGHT spin at when they don't give one
+		public static final double TURN_RATE = 10;
+
+		private final DrivePilot pilot;
+		private final StatusModel status;
+		volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+
+		// guarded by this
+		private double linearSetpoint = 0;
+		private double angularSetpoint = 0;
+		private long setpointVersion = 0;
+		private boolean engaged = false;
+		private boolean suppressed = false;
+		// the linear setpoint follows the cruise speed
+		private boolean cruising = false;
+
+		public VelocityDriveBehaviour(DrivePilot pilot, StatusModel status) {
 			this.pilot = pilot;
+			this.status = status;
 		}
 
 		@Override
-		public boolean takeControl() {
-			return currentDirection != null;
+		public int getResources() {
+			return DRIVE;
 		}
 
 		@Override
-		public void action() {
-			//System.out.println("Entering FB action");
-			if (currentDirection != null) {
-				//System.out.println("Processing FB action");
-				// blocking call as the suppress should suppress it and nothing
-				// else
-				LCD.clearDisplay();
-				LCD.drawString(currentDirection.name(), 4, 4);
-
-				switch (currentDirection) {
-				case FORWARD: {
-					pilot.travel(Double.NEGATIVE_INFINITY, false);
-					break;
-				}
-				case BACKWARD: {
-					pilot.travel(Double.POSITIVE_INFINITY, false);
-					//System.out.println("Should not return right away 2");
-					break;
-				}
-				}
-
-			}
-
+		public void setReadinessSignal(ReadinessSignal signal) {
+			this.readiness = signal;
 		}
 
 		@Override
-		public void suppress() {
-			//System.out.println("Suppressing FB action");
-			pilot.stop();
-			currentDirection = null;
+		public synchronized boolean takeControl() {
+			return engaged;
 		}
 
 		@Override
-		public void handleEvent(API_EVENT event, RequestContext context) {
-			//System.out.println("Handling event: " + event + " in forward backward");
-			if (event == API_EVENT.FORWARD) {
-				currentDirection = DIRECTION.FORWARD;
-			} else if (event == API_EVENT.BACKWARD) {
-				currentDirection = DIRECTION.BACKWARD;
+		public void action() {
+			status.postMode("DRIVE");
+			long applied = -1;
+			while (true) {
+				double linear;
+				double angular;
+				synchronized (this) {
+					while (!suppressed && engaged && setpointVersion == applied) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							suppressed = true;
+						}
+					}
+					if (suppressed || !engaged) {
+						break;
+					}
+					linear = linearSetpoint;
+					angular = angularSetpoint;
+					applied = setpointVersion;
+				}
+				pilot.setVelocity(linear, angular);
+			}
+			boolean handedOver;
+			synchronized (this) {
+				handedOver = suppressed;
+				suppressed = false;
+			}
+			if (handedOver) {
+				// only a higher priority behaviour suppresses us, and it stops
+				// or drives the pilot itself - start braking, but don't keep
+				// it waiting until the robot has stopped
+				pilot.setVelocity(0, 0);
+			} else {
+				pilot.stop();
 			}
-		}
-
-	}
-
-	public static class LeftRightBehaviour implements Behavior, Callback {
-		public static enum DIRECTION {
-			LEFT, RIGHT;
-		}
-
-		private MovePilot pilot;
-		volatile DIRECTION currentDirection = null;
-
-		public LeftRightBehaviour(MovePilot pilot) {
-			this.pilot = pilot;
 		}
 
 		@Override
-		public boolean takeControl() {
-			return currentDirection != null;
+		public synchronized void suppress() {
+			// the action thread brakes on its way out, so it can't race a
+			// setVelocity() that is already under way
+			suppressed = true;
+			engaged = false;
+			notifyAll();
+			readiness.readinessChanged(false);
 		}
 
 		@Override
-		public void action() {
-			//System.out.println("Entered LR action");
-			if (currentDirection != null) {
-				//System.out.println("Processing LR action");
-				// blocking call as the suppress should suppress it and nothing
-				// else
-				LCD.clearDisplay();
-				LCD.drawString(currentDirection.name(), 4, 4);
-
-				double currentAngularSpeed = pilot.getAngularSpeed();
-				pilot.setAngularSpeed(10);
-				switch (currentDirection) {
-				case LEFT: {
-					while (currentDirection != null) {
-						pilot.rotate(-90.0);
-						// break;
-					}
-					break;
-				}
-				case RIGHT: {
-					while (currentDirection != null) {
-						pilot.rotate(90.0);
-						// break;
-					}
-					break;
+		public void handleEvent(API_EVENT event, RequestContext context) {
+			double linear;
+			double angular;
+			boolean cruise = false;
+			switch (event) {
+			case DRIVE:
+				linear = context.getDoubleParameter(RequestContext.SPEED, 0);
+				angular = context.getDoubleParameter(RequestContext.TURN_RATE, 0);
+				break;
+			case FORWARD:
+			case BACKWARD:
+				// zero (as in a WebSocket record without a speed) means the
+				// pilot's speed too
+				linear = Math.abs(context.getDoubleParameter(RequestContext.SPEED, 0));
+				if (linear == 0) {
+					linear = pilot.getLinearSpeed();
+					cruise = true;
 				}
+				linear = event == API_EVENT.FORWARD ? linear : -linear;
+				angular = 0;
+				break;
+			case LEFT:
+			case RIGHT:
+				linear = 0;
+				angular = Math.abs(context.getDoubleParameter(RequestContext.TURN_RATE, 0));
+				if (angular == 0) {
+					angular = TURN_RATE;
 				}
-				
-				//restore the original angular speed
-				pilot.setAngularSpeed(currentAngularSpeed);
-
+				angular = event == API_EVENT.LEFT ? angular : -angular;
+				break;
+			default:
+				return;
+			}
+			double max = pilot.getMaxLinearSpeed();
+			linear = Math.max(-max, Math.min(max, linear));
+			boolean engage = linear != 0 || angular != 0;
+			synchronized (this) {
+				// FORWARD is negative travel and LEFT a negative rotation
+				// for the pilot
+				linearSetpoint = -linear;
+				angularSetpoint = -angular;
+				setpointVersion++;
+				engaged = engage;
+				cruising = cruise;
+				notifyAll();
+				// under the lock, so a suppress() can't slip in between
+				readiness.readinessChanged(engage);
 			}
-
 		}
 
-		@Override
-		public void suppress() {
-			//System.out.println("Suppressing LR action");
-			pilot.stop();
-			currentDirection = null;
+		/**
+		 * @return the speed the robot is being driven at towards whatever is
+		 *         in front of it in mm/s, 0 if it isn't
+		 */
+		public synchronized double getForwardSpeed() {
+			// FORWARD is negative travel for the pilot
+			return engaged && linearSetpoint < 0 ? -linearSetpoint : 0;
 		}
 
-		@Override
-		public void handleEvent(API_EVENT event, RequestContext context) {
-			//System.out.println("Handling event " + event + " in leftright");
-			if (event == API_EVENT.LEFT) {
-				currentDirection = DIRECTION.LEFT;
-			} else if (event == API_EVENT.RIGHT) {
-				currentDirection = DIRECTION.RIGHT;
+		/**
+		 * Called with the new cruise speed when it changes - a FORWARD or
+		 * BACKWARD at cruise speed picks it up without stopping.
+		 */
+		public synchronized void cruiseSpeedChanged(double speed) {
+			if (engaged && cruising) {
+				linearSetpoint = linearSetpoint < 0 ? -speed : speed;
+				setpointVersion++;
+				notifyAll();
 			}
 		}
 
 	}
 
-	public static class StopBehaviour implements Behavior, Callback {
-		private MovePilot pilot;
+	public static class StopBehaviour implements SignallingBehavior, ResourceBehavior, Callback {
+		private DrivePilot pilot;
+		private StatusModel status;
 		volatile boolean isTriggered = false;
+		volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
 
-		public StopBehaviour(MovePilot pilot) {
+		public StopBehaviour(DrivePilot pilot, StatusModel status) {
 			this.pilot = pilot;
+			this.status = status;
+		}
+
+		@Override
+		public int getResources() {
+			return DRIVE;
+		}
+
+		@Override
+		public void setReadinessSignal(ReadinessSignal signal) {
+			this.readiness = signal;
 		}
 
 		@Override
@@ -164,35 +221,68 @@ public class BehaviourProvider {
 			if (isTriggered) {
 				// blocking call as the suppress should suppress it and nothing
 				// else
-				LCD.clearDisplay();
-				LCD.drawString("STOP", 4, 4);
+				status.postMode("STOP");
 
 				pilot.stop();
 
-				isTriggered = false;
+				setTriggered(false);
 			}
 
 		}
 
 		@Override
 		public void suppress() {
-			System.out.println("Suppressing stop action");
-			isTriggered = false;
+			setTriggered(false);
 		}
 
 		@Override
 		public void handleEvent(API_EVENT event, RequestContext context) {
 			//System.out.println("Handling event " + event + " in stop");
 			if (event == API_EVENT.STOP) {
-				isTriggered = true;
+				setTriggered(true);
 			}
 		}
 
-	}
+		/**
+		 * Changes the flag and the ready bit together, so a STOP arriving
+		 * while the last one is being cleared can't leave takeControl() true
+		 * with the bit cleared - the arbitrator wouldn't look again.
+		 */
+		private synchronized void setTriggered(boolean triggered) {
+			isTriggered = triggered;
+			readiness.readinessChanged(triggered);
+		}
 
-	public static class CallBehaviour implements Behavior, Callback {
+	}
 
+	/**
+	 * Plays the call sample on CALL and the bell on BELL. Playback is handed
+	 * to the {@link AudioPlayer}'s thread, so action() returns at once and a
+	 * motion command never waits for a clip to end.
+	 */
+	public static class CallBehaviour implements SignallingBehavior, ResourceBehavior, Callback {
+		// names in the player's sample cache
+		public static final String CALL_SAMPLE = "call";
+		public static final String BELL_SAMPLE = "bell";
+
+		private AudioPlayer player;
 		volatile boolean isTriggered = false;
+		volatile private String sample = CALL_SAMPLE;
+		volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+
+		public CallBehaviour(AudioPlayer player) {
+			this.player = player;
+		}
+
+		@Override
+		public int getResources() {
+			return SPEAKER;
+		}
+
+		@Override
+		public void setReadinessSignal(ReadinessSignal signal) {
+			this.readiness = signal;
+		}
 
 		@Override
 		public boolean takeControl() {
@@ -202,26 +292,31 @@ public class BehaviourProvider {
 		@Override
 		public void action() {
 			if (isTriggered) {
-				Sound.playSample(new File("Betty4.wav"));
-				//Sound.playSample(new File("Betty2.wav"));
-				isTriggered = false;
+				player.play(sample);
+				setTriggered(false);
 			}
 		}
 
 		@Override
 		public void suppress() {
-			isTriggered = false;
-
+			setTriggered(false);
 		}
 		
 		@Override
 		public void handleEvent(API_EVENT event, RequestContext context) {
 			//System.out.println("Handling event " + event + " in stop");
-			if (event == API_EVENT.CALL) {
-				isTriggered = true;
+			if (event == API_EVENT.CALL || event == API_EVENT.BELL) {
+				sample = event == API_EVENT.CALL ? CALL_SAMPLE : BELL_SAMPLE;
+				setTriggered(true);
 			}
 		}
 
+		// the flag and the ready bit change together, as in StopBehaviour
+		private synchronized void setTriggered(boolean triggered) {
+			isTriggered = triggered;
+			readiness.readinessChanged(triggered);
+		}
+
 	}
 
 }
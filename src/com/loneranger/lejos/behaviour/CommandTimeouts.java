@@ -0,0 +1,127 @@
+package com.loneranger.lejos.behaviour;
+
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.control.web.ApiRouter;
+import com.loneranger.lejos.control.web.Callback;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.timing.TimerWheel;
+
+/**
+ * Stops the robot when a timed move is up, or when the client driving it has
+ * gone quiet. Handles:
+ * <ul>
+ * <li>FORWARD, BACKWARD, LEFT, RIGHT and DRIVE - with <code>ms</code> the
+ * move stops after that many ms. Without it the move runs until the next
+ * command, as before, and any earlier timed move is forgotten</li>
+ * <li>STOP - forgets any timed move</li>
+ * <li>HEARTBEAT - takes out or renews a lease of <code>ms</code> ms, or
+ * {@link #DEFAULT_LEASE_MS} if not given. If the lease runs out before the
+ * next heartbeat the robot stops. A heartbeat with <code>ms=0</code> gives
+ * the lease up</li>
+ * </ul>
+ * Both deadlines are timeouts on a {@link TimerWheel}. Each expiry submits a
+ * STOP through the router, so the existing StopBehaviour stops the robot as
+ * if the client had asked. A command queued just before the expiry's STOP is
+ * superseded by it, which errs on the side of stopping.
+ *
+ * This isn't a behaviour: it never takes control itself.
+ */
+public class CommandTimeouts implements Callback {
+	public static final long DEFAULT_LEASE_MS = 1000;
+
+	private final TimerWheel wheel;
+	private final ApiRouter router;
+	private final TimerWheel.Timeout move;
+	private final TimerWheel.Timeout lease;
+	// wheel thread only
+	private final RequestContext stopContext = new RequestContext();
+
+	volatile private long moveExpiries = 0;
+	volatile private long leaseExpiries = 0;
+
+	public CommandTimeouts(TimerWheel timerWheel, ApiRouter apiRouter) {
+		this.wheel = timerWheel;
+		this.router = apiRouter;
+		this.move = new TimerWheel.Timeout(new Runnable() {
+			@Override
+			public void run() {
+				moveExpiries++;
+				stop(move);
+			}
+		});
+		this.lease = new TimerWheel.Timeout(new Runnable() {
+			@Override
+			public void run() {
+				leaseExpiries++;
+				stop(lease);
+			}
+		});
+	}
+
+	private void stop(TimerWheel.Timeout timeout) {
+		stopContext.clearRequest(API_EVENT.STOP.getQueryPath());
+		stopContext.setReceivedNanos(System.nanoTime());
+		if (!router.submit(API_EVENT.STOP, stopContext)) {
+			// the command queue is full - the stop mustn't be lost, so try
+			// again next tick
+			wheel.schedule(timeout, wheel.getTickNanos());
+		}
+	}
+
+	@Override
+	public void handleEvent(API_EVENT event, RequestContext context) {
+		switch (event) {
+		case FORWARD:
+		case BACKWARD:
+		case LEFT:
+		case RIGHT:
+		case DRIVE: {
+			double ms = context.getDoubleParameter(RequestContext.DURATION_MS, 0);
+			if (ms > 0) {
+				wheel.schedule(move, millisToNanos(ms));
+			} else {
+				wheel.cancel(move);
+			}
+			break;
+		}
+		case STOP:
+			wheel.cancel(move);
+			break;
+		case HEARTBEAT: {
+			double ms = context.getDoubleParameter(RequestContext.DURATION_MS, DEFAULT_LEASE_MS);
+			if (ms > 0) {
+				wheel.schedule(lease, millisToNanos(ms));
+			} else {
+				wheel.cancel(lease);
+			}
+			break;
+		}
+		default:
+			break;
+		}
+	}
+
+	private static long millisToNanos(double ms) {
+		return (long) (ms * TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	public boolean isLeaseHeld() {
+		return wheel.isPending(lease);
+	}
+
+	/**
+	 * @return timed moves stopped because their time was up
+	 */
+	public long getMoveExpiryCount() {
+		return moveExpiries;
+	}
+
+	/**
+	 * @return stops because a lease ran out
+	 */
+	public long getLeaseExpiryCount() {
+		return leaseExpiries;
+	}
+}
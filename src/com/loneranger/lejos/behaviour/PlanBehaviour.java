@@ -0,0 +1,273 @@
+package com.loneranger.lejos.behaviour;
+
+import com.loneranger.lejos.arbitrator.ReadinessSignal;
+import com.loneranger.lejos.arbitrator.ResourceBehavior;
+import com.loneranger.lejos.arbitrator.SignallingBehavior;
+import com.loneranger.lejos.control.web.Callback;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.hardware.DrivePilot;
+import com.loneranger.lejos.plan.MotionPlan;
+import com.loneranger.lejos.status.StatusModel;
+import com.loneranger.lejos.timing.TimerWheel;
+
+/**
+ * Drives a {@link MotionPlan}, segment after segment. Each segment is a new
+ * velocity for the pilot, set without stopping, so the robot flows from one
+ * to the next and the pilot's acceleration ramps do the blending. Segment
+ * ends are kept to the plan's own timeline rather than to when each segment
+ * actually started, so lateness doesn't build up along the way.
+ *
+ * Between segment ends the action waits to be woken by a {@link TimerWheel}
+ * timeout, so suppress() ends the plan straight away rather than at the end
+ * of a long segment. The robot brakes and the rest of the plan is dropped.
+ * The last stretch before each segment end is slept on the clock, as the
+ * wheel's ticks are too coarse for it. A plan submitted while another one is
+ * running takes over from it at once, also without stopping.
+ *
+ * Plans arrive as PLAN events, on the thread the router dispatches on.
+ * Progress - the plan, its state and the segment under way - can be read
+ * from any thread.
+ */
+public class PlanBehaviour implements SignallingBehavior, ResourceBehavior, Callback {
+	public static enum State {
+		IDLE, RUNNING, DONE, ABORTED;
+	}
+
+	private final DrivePilot pilot;
+	private final StatusModel status;
+	private final Clock clock;
+	private final TimerWheel wheel;
+	private final TimerWheel.Timeout wake;
+	// segment ends closer than this are slept out on the clock
+	private final long sleepNanos;
+	volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+
+	// guarded by this
+	private MotionPlan pending = null;
+	private boolean running = false;
+	private boolean suppressed = false;
+	private boolean woken = false;
+
+	volatile private MotionPlan plan = null;
+	volatile private State state = State.IDLE;
+	volatile private int segment = 0;
+	volatile private long startNanos = 0;
+	volatile private double forwardSpeed = 0;
+
+	public PlanBehaviour(DrivePilot pilot, StatusModel status, Clock clock, TimerWheel wheel) {
+		this.pilot = pilot;
+		this.status = status;
+		this.clock = clock;
+		this.wheel = wheel;
+		this.sleepNanos = 2 * wheel.getTickNanos();
+		this.wake = new TimerWheel.Timeout(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (PlanBehaviour.this) {
+					woken = true;
+					PlanBehaviour.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs <code>plan</code> as soon as the arbitrator lets it, in place of
+	 * any plan that is running or waiting. Safe to call from any thread.
+	 */
+	public void submit(MotionPlan plan) {
+		synchronized (this) {
+			pending = plan;
+			notifyAll();
+			// under the lock, so action() finishing can't clear the bit
+			// after this sets it
+			readiness.readinessChanged(true);
+		}
+	}
+
+	@Override
+	public void handleEvent(API_EVENT event, RequestContext context) {
+		MotionPlan plan = context.getPlan();
+		if (event == API_EVENT.PLAN && plan != null) {
+			submit(plan);
+		}
+	}
+
+	@Override
+	public int getResources() {
+		return DRIVE;
+	}
+
+	@Override
+	public void setReadinessSignal(ReadinessSignal signal) {
+		this.readiness = signal;
+	}
+
+	@Override
+	public synchronized boolean takeControl() {
+		return pending != null || running;
+	}
+
+	@Override
+	public void action() {
+		MotionPlan current;
+		synchronized (this) {
+			current = pending;
+			pending = null;
+			running = current != null;
+			if (current == null) {
+				readiness.readinessChanged(false);
+			}
+		}
+		if (current == null) {
+			return;
+		}
+		status.postMode("PLAN");
+		boolean handedOver = false;
+		while (current != null) {
+			plan = current;
+			segment = 0;
+			state = State.RUNNING;
+			startNanos = clock.nanoTime();
+			long end = startNanos;
+			boolean finished = true;
+			for (int i = 0; i < current.getSegmentCount(); i++) {
+				MotionPlan.Segment next = current.getSegment(i);
+				segment = i;
+				forwardSpeed = Math.max(0, next.getLinearSpeed());
+				// FORWARD is negative travel and LEFT a negative rotation for
+				// the pilot
+				pilot.setVelocity(-next.getLinearSpeed(), -next.getAngularSpeed());
+				end += next.getDurationNanos();
+				if (!waitUntil(end)) {
+					finished = false;
+					break;
+				}
+			}
+			synchronized (this) {
+				if (suppressed) {
+					state = State.ABORTED;
+					handedOver = true;
+					current = null;
+				} else {
+					if (finished) {
+						segment = current.getSegmentCount();
+						state = State.DONE;
+					} else {
+						// replaced by a newer plan
+						state = State.ABORTED;
+					}
+					current = pending;
+					pending = null;
+				}
+			}
+		}
+		forwardSpeed = 0;
+		if (handedOver) {
+			// only a higher priority behaviour suppresses us, and it stops or
+			// drives the pilot itself - start braking, but don't keep it
+			// waiting until the robot has stopped
+			pilot.setVelocity(0, 0);
+		} else {
+			pilot.stop();
+		}
+		synchronized (this) {
+			running = false;
+			suppressed = false;
+			readiness.readinessChanged(pending != null);
+		}
+	}
+
+	/**
+	 * @return false if suppressed or given a new plan first
+	 */
+	private boolean waitUntil(long deadline) {
+		while (true) {
+			synchronized (this) {
+				if (suppressed || pending != null) {
+					return false;
+				}
+				woken = false;
+			}
+			long remaining = deadline - clock.nanoTime();
+			if (remaining <= 0) {
+				return true;
+			}
+			try {
+				if (remaining > sleepNanos) {
+					wheel.schedule(wake, remaining - sleepNanos);
+					synchronized (this) {
+						while (!woken && !suppressed && pending == null) {
+							wait();
+						}
+					}
+					wheel.cancel(wake);
+				} else {
+					clock.sleepNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				wheel.cancel(wake);
+				synchronized (this) {
+					suppressed = true;
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void suppress() {
+		suppressed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return the speed the robot is being driven at towards whatever is in
+	 *         front of it in mm/s, 0 if it isn't
+	 */
+	public double getForwardSpeed() {
+		return forwardSpeed;
+	}
+
+	/**
+	 * @return the plan running or last run, or null
+	 */
+	public MotionPlan getPlan() {
+		return plan;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the index of the segment under way, or where the plan ended
+	 */
+	public int getSegment() {
+		return segment;
+	}
+
+	/**
+	 * Appends the plan's progress, one fact per line.
+	 */
+	public void appendProgress(StringBuilder out) {
+		MotionPlan current = plan;
+		State currentState = state;
+		if (current == null) {
+			out.append("state ").append(currentState).append('\n');
+			return;
+		}
+		int index = segment;
+		out.append("plan ").append(current.getId()).append('\n');
+		out.append("state ").append(currentState).append('\n');
+		out.append("segment ").append(index).append('/').append(current.getSegmentCount()).append('\n');
+		if (index < current.getSegmentCount()) {
+			out.append("line ").append(current.getSegment(index).getLine()).append('\n');
+		}
+		if (currentState == State.RUNNING) {
+			out.append("elapsed.ms ").append((clock.nanoTime() - startNanos) / 1000000).append('\n');
+		}
+		out.append("duration.ms ").append(current.getDurationNanos() / 1000000).append('\n');
+	}
+}
@@ -0,0 +1,75 @@
+package com.loneranger.lejos.behaviour;
+
+import com.loneranger.lejos.control.web.Callback;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.hardware.DrivePilot;
+
+/**
+ * Sets the cruise speed - the linear speed FORWARD and BACKWARD drive at when
+ * they don't give one. Handles:
+ * <ul>
+ * <li>SPEEDUP and SLOWDOWN - up or down by {@link #SPEED_STEP} mm/s, or
+ * straight to <code>speed</code> mm/s if it is given and not zero</li>
+ * </ul>
+ * The new speed is set on the live pilot and handed to the
+ * {@link BehaviourProvider.VelocityDriveBehaviour} as a new setpoint, so a
+ * drive in progress changes speed without stopping. The pilot gets from its
+ * current velocity to the new one at a constant {@link #ACCELERATION} and
+ * then holds it - a trapezoidal profile for every change, starting and
+ * stopping included.
+ *
+ * This isn't a behaviour: changing speed never takes control from whatever
+ * is driving.
+ */
+public class SpeedController implements Callback {
+	public static final double SPEED_STEP = 20;
+	public static final double MIN_SPEED = SPEED_STEP;
+	// mm/s/s - full speed in under half a second, which the tracks take on
+	// a smooth floor without slipping
+	public static final double ACCELERATION = 500;
+
+	private final DrivePilot pilot;
+	private final BehaviourProvider.VelocityDriveBehaviour drive;
+
+	public SpeedController(DrivePilot pilot, BehaviourProvider.VelocityDriveBehaviour drive) {
+		this.pilot = pilot;
+		this.drive = drive;
+		pilot.setLinearAcceleration(ACCELERATION);
+	}
+
+	@Override
+	public void handleEvent(API_EVENT event, RequestContext context) {
+		double speed = pilot.getLinearSpeed();
+		// zero (as in a WebSocket record without a speed) means a step
+		double requested = Math.abs(context.getDoubleParameter(RequestContext.SPEED, 0));
+		switch (event) {
+		case SPEEDUP:
+			speed = requested != 0 ? requested : speed + SPEED_STEP;
+			break;
+		case SLOWDOWN:
+			speed = requested != 0 ? requested : speed - SPEED_STEP;
+			break;
+		default:
+			return;
+		}
+		setCruiseSpeed(speed);
+	}
+
+	/**
+	 * Clamps <code>speed</code> to what the pilot can do and makes it the
+	 * cruise speed.
+	 *
+	 * @return the speed set
+	 */
+	public double setCruiseSpeed(double speed) {
+		speed = Math.max(MIN_SPEED, Math.min(pilot.getMaxLinearSpeed(), speed));
+		pilot.setLinearSpeed(speed);
+		drive.cruiseSpeedChanged(speed);
+		return speed;
+	}
+
+	public double getCruiseSpeed() {
+		return pilot.getLinearSpeed();
+	}
+}
@@ -1,66 +1,380 @@
 package com.loneranger.lejos.control.web;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import com.loneranger.lejos.arbitrator.ImprovedArbitrator;
+import com.loneranger.lejos.arbitrator.ArbitrationObserver;
+import com.loneranger.lejos.arbitrator.ReadinessSignal;
+import com.loneranger.lejos.arbitrator.ResourceArbitrator;
+import com.loneranger.lejos.arbitrator.ResourceBehavior;
+import com.loneranger.lejos.arbitrator.SignallingBehavior;
+import com.loneranger.lejos.audio.AudioPlayer;
+import com.loneranger.lejos.audio.SampleCache;
 import com.loneranger.lejos.behaviour.BehaviourProvider;
+import com.loneranger.lejos.behaviour.CommandTimeouts;
+import com.loneranger.lejos.behaviour.PlanBehaviour;
+import com.loneranger.lejos.behaviour.SpeedController;
 import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.hardware.DrivePilot;
+import com.loneranger.lejos.hardware.Ev3Track3rHardware;
+import com.loneranger.lejos.hardware.Track3rHardware;
+import com.loneranger.lejos.journal.CommandJournal;
+import com.loneranger.lejos.metrics.ArbitrationProfile;
+import com.loneranger.lejos.metrics.CommandLatency;
+import com.loneranger.lejos.metrics.InstrumentedPilot;
+import com.loneranger.lejos.metrics.LatencyHistogram;
+import com.loneranger.lejos.plan.PlanCompiler;
+import com.loneranger.lejos.sensing.DistanceSampler;
+import com.loneranger.lejos.sensing.PoseTracker;
+import com.loneranger.lejos.status.StatusModel;
+import com.loneranger.lejos.status.StatusRenderer;
+import com.loneranger.lejos.timing.TimerWheel;
 
-import lejos.hardware.Button;
-import lejos.hardware.Key;
-import lejos.hardware.KeyListener;
-import lejos.hardware.Sound;
-import lejos.hardware.lcd.LCD;
-import lejos.hardware.motor.EV3LargeRegulatedMotor;
-import lejos.hardware.port.MotorPort;
-import lejos.hardware.port.SensorPort;
-import lejos.hardware.sensor.EV3IRSensor;
-import lejos.robotics.chassis.Chassis;
-import lejos.robotics.chassis.Wheel;
-import lejos.robotics.chassis.WheeledChassis;
-import lejos.robotics.navigation.MovePilot;
 import lejos.robotics.subsumption.Behavior;
 
+/**
+ * Wires the behaviours, arbitrator and API transports together on top of a
+ * {@link Track3rHardware} - the real brick in {@link #main(String[])}, or a
+ * simulation.
+ */
 public class ApiControlledTrack3r {
-	public static boolean endOfProgram = false;
-	
-	// standard track3r wheel dimensions in mm
-	public static Wheel TRACK3R_LEFT_WHEEL = WheeledChassis.modelWheel(new EV3LargeRegulatedMotor(MotorPort.C), 30)
-			.offset(97.5).gearRatio(1);
-	public static Wheel TRACK3R_RIGHT_WHEEL = WheeledChassis.modelWheel(new EV3LargeRegulatedMotor(MotorPort.B), 30)
-			.offset(-97.5).gearRatio(1);
-	public static Chassis TRACK3R = new WheeledChassis(new Wheel[] { TRACK3R_LEFT_WHEEL, TRACK3R_RIGHT_WHEEL },
-			WheeledChassis.TYPE_DIFFERENTIAL);
+	volatile public static boolean endOfProgram = false;
+
+	// longest the arbitrator's monitor sleeps without a readiness signal - only
+	// the polled FallbackBehaviour relies on it
+	public static final long ARBITRATOR_WAKE_TIMEOUT_MS = 50;
+	// commands accepted from the network but not yet handed to behaviours
+	public static final int COMMAND_QUEUE_CAPACITY = 64;
+	// time every takeControl() and action() - cheap enough to leave on
+	public static final boolean PROFILE_ARBITRATION = true;
+	// played on CALL, from the brick's working directory
+	public static final String CALL_SAMPLE_FILE = "Betty4.wav";
+	// every command and behaviour switch on the brick, for looking into
+	// incidents - see JournalReplay in bench
+	public static final String JOURNAL_FILE = "track3r.journal";
+
+	private final Track3rHardware hardware;
+	private final ExecutorService threadPool;
+	private final RestApiHandlerThread handler;
+	private final UdpCommandListener udpListener;
+	private final CommandQueue commands;
+	private final ResourceArbitrator arbitrator;
+	private final AbortBehaviour abort;
+	private final CommandLatency latency = new CommandLatency();
+	private final ArbitrationProfile profile;
+	private final SpeedController speed;
+	private final DistanceSampler distance;
+	private final PoseTracker pose;
+	private final DetectObstacleBehaviour obstacle;
+	private final AudioPlayer audio;
+	private final StatusModel status = new StatusModel();
+	private final StatusRenderer renderer;
+	private final TimerWheel timerWheel;
+	private final CommandTimeouts timeouts;
+	private final PlanBehaviour plan;
+	private final TelemetryStream telemetry;
+	volatile private CommandJournal journal = null;
+
+	public ApiControlledTrack3r(Track3rHardware hardware) throws IOException {
+		this(hardware, RestApiHandlerThread.PORT, UdpCommandListener.DEFAULT_PORT);
+	}
+
+	public ApiControlledTrack3r(Track3rHardware hardware, int httpPort, int udpPort) throws IOException {
+		this.hardware = hardware;
+		// the behaviours drive through a pilot that timestamps each move for
+		// the latency metrics
+		DrivePilot pilot = new InstrumentedPilot(hardware.getPilot(), latency);
+		Behavior stop = new BehaviourProvider.StopBehaviour(pilot, status);
+		// direction commands are velocity setpoints, so changing direction
+		// needs no stop and restart
+		BehaviourProvider.VelocityDriveBehaviour drive = new BehaviourProvider.VelocityDriveBehaviour(pilot, status);
+		// SPEEDUP/SLOWDOWN change the speed FORWARD and BACKWARD cruise at
+		speed = new SpeedController(pilot, drive);
+		// samples are decoded once and played on their own thread
+		audio = new AudioPlayer(hardware.getSpeaker(), new SampleCache());
+		audio.getCache().register(BehaviourProvider.CallBehaviour.CALL_SAMPLE, new File(CALL_SAMPLE_FILE));
+		audio.getCache().register(SampleCache.chime(BehaviourProvider.CallBehaviour.BELL_SAMPLE, 1320, 800, 8000));
+		Behavior call = new BehaviourProvider.CallBehaviour(audio);
+		Behavior fallback = new FallbackBehaviour();
+		// paths POSTed to /plan - below the drive, so any direction command
+		// takes over from a plan
+		timerWheel = new TimerWheel(hardware.getClock());
+		plan = new PlanBehaviour(pilot, status, hardware.getClock(), timerWheel);
+
+		// the IR sensor is read on its own thread, so behaviours only ever
+		// look at the latest filtered distance
+		distance = new DistanceSampler(hardware.getDistanceSensor(), hardware.getClock());
+		// checked as each sample arrives, and stops with the acceleration
+		// the speed controller set
+		obstacle = new DetectObstacleBehaviour(pilot, status, hardware.getClock(), distance, drive,
+				SpeedController.ACCELERATION);
+		obstacle.setPlanBehaviour(plan);
+		// dead reckoned from the tachos on its own thread too
+		pose = new PoseTracker(hardware.getLeftMotor(), hardware.getRightMotor(), Track3rHardware.WHEEL_DIAMETER,
+				Track3rHardware.WHEEL_OFFSET, hardware.getClock());
+		distance.setSampleListener(new Runnable() {
+			@Override
+			public void run() {
+				obstacle.sampleTaken();
+			}
+		});
+
+		// first the API handler that uses a separate low priority thread to
+		// listen to HTTP requests on port 80, plus the UDP command listener
+		// sharing its listeners
+		threadPool = Executors.newFixedThreadPool(8);
+		handler = new RestApiHandlerThread(httpPort);
+		udpListener = new UdpCommandListener(udpPort, handler.getRouter());
+		handler.registerListener(API_EVENT.FORWARD, drive);
+		handler.registerListener(API_EVENT.BACKWARD, drive);
+		handler.registerListener(API_EVENT.LEFT, drive);
+		handler.registerListener(API_EVENT.RIGHT, drive);
+		handler.registerListener(API_EVENT.DRIVE, drive);
+		handler.registerListener(API_EVENT.PLAN, plan);
+		handler.registerListener(API_EVENT.SPEEDUP, speed);
+		handler.registerListener(API_EVENT.SLOWDOWN, speed);
+		handler.registerListener(API_EVENT.STOP, (Callback) stop);
+		// timed moves and the heartbeat lease end in a STOP from the timer
+		// wheel's thread
+		timeouts = new CommandTimeouts(timerWheel, handler.getRouter());
+		handler.registerListener(API_EVENT.FORWARD, timeouts);
+		handler.registerListener(API_EVENT.BACKWARD, timeouts);
+		handler.registerListener(API_EVENT.LEFT, timeouts);
+		handler.registerListener(API_EVENT.RIGHT, timeouts);
+		handler.registerListener(API_EVENT.DRIVE, timeouts);
+		handler.registerListener(API_EVENT.STOP, timeouts);
+		handler.registerListener(API_EVENT.HEARTBEAT, timeouts);
+		handler.registerListener(API_EVENT.CALL, (Callback) call);
+		handler.registerListener(API_EVENT.BELL, (Callback) call);
+		handler.getRouter().setCommandLatency(latency);
+		MetricsResource metrics = new MetricsResource(latency, handler.getRouter());
+		metrics.addHistogram("obstacle.reaction", obstacle.getReactionTime());
+		metrics.addHistogram("obstacle.switch", obstacle.getSwitchTime());
+		handler.registerResource(MetricsResource.PATH, metrics);
+		handler.registerPostResource(MetricsResource.PATH, metrics);
+		PlanResource plans = new PlanResource(new PlanCompiler(pilot.getMaxLinearSpeed(),
+				Track3rHardware.WHEEL_OFFSET), plan, pilot, handler.getRouter());
+		handler.registerResource(PlanResource.PATH, plans);
+		handler.registerPostResource(PlanResource.PATH, plans);
+		PoseResource poseResource = new PoseResource(pose);
+		handler.registerResource(PoseResource.PATH, poseResource);
+		handler.registerPostResource(PoseResource.PATH, poseResource);
+		// pushed to viewers from its own thread, without ever waiting on them
+		telemetry = new TelemetryStream(hardware.getClock(), status, hardware.getLeftMotor(),
+				hardware.getRightMotor(), pose, distance);
+		handler.registerStream(TelemetryStream.PATH, telemetry);
+
+		abort = new AbortBehaviour(pilot, threadPool, handler, udpListener);
+		hardware.addEscapeListener(new Runnable() {
+			@Override
+			public void run() {
+				status.postMode("ESCAPE");
+				abort.setEscapePressed();
+			}
+		});
+
+		// FallbackBehaviour waitBehaviour = new FallbackBehaviour();
+
+		// configure our behaviour arbiter - behaviours are arbitrated per
+		// resource: the call only uses the speaker, so it gets a lane of its
+		// own and plays while the robot drives; the rest only use the drive
+		// and share the other. No behaviour uses the display - the status
+		// renderer draws it on its own thread
+		Behavior[] bArray = { fallback, call, plan, drive, obstacle, stop, abort };
+		arbitrator = new ResourceArbitrator(bArray, true, ARBITRATOR_WAKE_TIMEOUT_MS);
+		arbitrator.setObserver(new ArbitrationObserver() {
+			@Override
+			public void behaviorActivated(int priority, Behavior behavior) {
+				latency.behaviorActivated(priority, behavior);
+				status.behaviorActivated(priority, behavior);
+				CommandJournal journal = ApiControlledTrack3r.this.journal;
+				if (journal != null) {
+					journal.behaviorActivated(priority, behavior);
+				}
+			}
+		});
+		profile = new ArbitrationProfile(bArray);
+		if (PROFILE_ARBITRATION) {
+			arbitrator.setProfiler(profile);
+			ArbitrationProfileResource profileResource = new ArbitrationProfileResource(profile);
+			handler.registerResource(ArbitrationProfileResource.PATH, profileResource);
+			handler.registerPostResource(ArbitrationProfileResource.PATH, profileResource);
+		}
+
+		// the transports queue commands, and the arbitrator's monitor thread
+		// drains them at the start of each pass - woken as soon as one arrives
+		commands = new CommandQueue(COMMAND_QUEUE_CAPACITY);
+		commands.setSubmitSignal(new Runnable() {
+			@Override
+			public void run() {
+				arbitrator.wakeUp();
+			}
+		});
+		handler.getRouter().setCommandQueue(commands);
+		arbitrator.setMonitorTask(commands.drainTask(handler.getRouter()));
+
+		// the behaviours only post what they're doing - this thread is all
+		// that draws on the LCD
+		renderer = new StatusRenderer(hardware.getDisplay(), hardware.getClock(), status);
+		renderer.setCommandQueue(commands);
+		renderer.setDistanceSampler(distance);
+		renderer.setCommandLatency(latency);
+	}
+
+	public Track3rHardware getHardware() {
+		return hardware;
+	}
+
+	public DrivePilot getPilot() {
+		return hardware.getPilot();
+	}
+
+	public RestApiHandlerThread getApiHandler() {
+		return handler;
+	}
+
+	public UdpCommandListener getUdpListener() {
+		return udpListener;
+	}
+
+	public CommandQueue getCommandQueue() {
+		return commands;
+	}
+
+	public ResourceArbitrator getArbitrator() {
+		return arbitrator;
+	}
+
+	public CommandLatency getCommandLatency() {
+		return latency;
+	}
+
+	public DistanceSampler getDistanceSampler() {
+		return distance;
+	}
+
+	public PoseTracker getPoseTracker() {
+		return pose;
+	}
+
+	public AudioPlayer getAudioPlayer() {
+		return audio;
+	}
+
+	public DetectObstacleBehaviour getObstacleBehaviour() {
+		return obstacle;
+	}
+
+	public StatusModel getStatusModel() {
+		return status;
+	}
+
+	public StatusRenderer getStatusRenderer() {
+		return renderer;
+	}
+
+	public TimerWheel getTimerWheel() {
+		return timerWheel;
+	}
 
-	private MovePilot track3rPilot;
-	private EV3IRSensor infraredSensor;
+	public CommandTimeouts getCommandTimeouts() {
+		return timeouts;
+	}
 
-	public ApiControlledTrack3r() {
-		track3rPilot = new MovePilot(TRACK3R);
-		infraredSensor = new EV3IRSensor(SensorPort.S1);
+	public PlanBehaviour getPlanBehaviour() {
+		return plan;
+	}
 
+	public TelemetryStream getTelemetryStream() {
+		return telemetry;
 	}
 
-	public MovePilot getPilot() {
-		return track3rPilot;
+	/**
+	 * Records every command dispatched and every behaviour activated from
+	 * now on in <code>journal</code>, or stops recording if null. Closing
+	 * it is up to the caller.
+	 */
+	public void setJournal(CommandJournal journal) {
+		this.journal = journal;
+		handler.getRouter().setJournal(journal);
 	}
 
-	public EV3IRSensor getInfraredSensor() {
-		return infraredSensor;
+	public CommandJournal getJournal() {
+		return journal;
 	}
 
-	public static class AbortBehaviour implements Behavior {
+	public SpeedController getSpeedController() {
+		return speed;
+	}
+
+	public ArbitrationProfile getArbitrationProfile() {
+		return profile;
+	}
+
+	/**
+	 * Shuts everything down as if the escape button had been pressed.
+	 */
+	public void abort() {
+		abort.setEscapePressed();
+	}
+
+	/**
+	 * Starts sampling the sensors, the audio, LCD, timer and telemetry
+	 * threads and listening on the API transports.
+	 */
+	public void start() {
+		threadPool.submit(distance);
+		threadPool.submit(pose);
+		threadPool.submit(timerWheel);
+		threadPool.submit(audio);
+		threadPool.submit(renderer);
+		threadPool.submit(telemetry);
+		threadPool.submit(handler);
+		threadPool.submit(udpListener);
+	}
+
+	/**
+	 * Runs the arbitrator on the calling thread until the program is aborted.
+	 */
+	public void go() {
+		arbitrator.go();
+		//arbitrator.stop();
+
+		hardware.getSpeaker().beepSequenceUp();
+	}
+
+	public static class AbortBehaviour implements SignallingBehavior, ResourceBehavior {
 		volatile private boolean isTriggered = false;
-		private final MovePilot pilot;
+		volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+		private final DrivePilot pilot;
 		private final ExecutorService apiHandler;
 		private final RestApiHandlerThread apiThread;
+		// other transports blocked in I/O that shutdownNow() can't interrupt
+		private final Closeable[] transports;
 
-		public AbortBehaviour(MovePilot pilot, ExecutorService apiHandler, RestApiHandlerThread apiThread) {
+		public AbortBehaviour(DrivePilot pilot, ExecutorService apiHandler, RestApiHandlerThread apiThread,
+				Closeable... transports) {
 			this.pilot = pilot;
 			this.apiHandler = apiHandler;
 			this.apiThread = apiThread;
+			this.transports = transports;
+		}
+
+		@Override
+		public int getResources() {
+			// shuts everything down, but only has to take the drive from
+			// whoever has it - the other lanes stop when the arbitrator
+			// returns
+			return DRIVE;
+		}
+
+		@Override
+		public void setReadinessSignal(ReadinessSignal signal) {
+			this.readiness = signal;
 		}
 
 		@Override
@@ -72,76 +386,237 @@ public class ApiControlledTrack3r {
 		public void action() {
 			pilot.stop();
 			apiThread.closeServerSocket();
+			for (Closeable transport : transports) {
+				try {
+					transport.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 			apiHandler.shutdownNow();
 			endOfProgram = true;
+			// done - let go() return instead of running this again
+			setTriggered(false);
 		}
 
 		@Override
 		public void suppress() {
 			// should never be suppressed as this is the highest priority
 			// action//
-			this.isTriggered = false;
+			setTriggered(false);
 		}
 
 		public void setEscapePressed() {
-			this.isTriggered = true;
+			setTriggered(true);
+		}
+
+		// the flag and the ready bit change together, as in StopBehaviour
+		private synchronized void setTriggered(boolean triggered) {
+			isTriggered = triggered;
+			readiness.readinessChanged(triggered);
 		}
 
 	}
 
-	public static class FallbackBehaviour implements Behavior {
+	public static class FallbackBehaviour implements ResourceBehavior {
 
 		volatile private boolean isSuppressed = false;
-		
+		// run each time the robot goes idle, e.g. to update the display
+		private final Runnable idleTask;
+
+		public FallbackBehaviour() {
+			this(null);
+		}
+
+		public FallbackBehaviour(Runnable idleTask) {
+			this.idleTask = idleTask;
+		}
+
+		@Override
+		public int getResources() {
+			// holds the drive while idle, which keeps it in the main lane so
+			// go() doesn't return while the robot is waiting for commands
+			return DRIVE;
+		}
+
 		@Override
 		public boolean takeControl() {
-			return true;
+			return !endOfProgram;
 		}
 
 		@Override
-		public void action() {
-			while(!isSuppressed && !endOfProgram) {
-				Thread.yield();
+		public synchronized void action() {
+			if (idleTask != null && !isSuppressed) {
+				idleTask.run();
 			}
-			
+			// park rather than spin - suppress() wakes us up
+			while (!isSuppressed && !endOfProgram) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+
 			isSuppressed = false;
-			
+
 		}
 
 		@Override
-		public void suppress() {
+		public synchronized void suppress() {
 			isSuppressed = true;
-			
+			notifyAll();
 		}
 
 	}
 
-	// public static class DetectObstacleBehaviour implements Behavior {
-	//
-	// EV3IRSensor infraredSensor;
-	// SampleProvider
-	// public DetectObstacleBehaviour(EV3IRSensor infraredSensor) {
-	// this.infraredSensor = infraredSensor;
-	// }
-	//
-	// @Override
-	// public boolean takeControl() {
-	//
-	// }
-	//
-	// @Override
-	// public void action() {
-	// // TODO Auto-generated method stub
-	//
-	// }
-	//
-	// @Override
-	// public void suppress() {
-	// // TODO Auto-generated method stub
-	//
-	// }
-	//
-	// }
+	/**
+	 * Stops the robot before it drives into something. The IR sensor faces
+	 * forward, so this only watches while the drive or plan behaviour is
+	 * heading that way: it becomes ready as soon as a sample's median distance is inside
+	 * {@link #thresholdCm(double)} for the current forward speed, which
+	 * leaves the robot room to react and brake to a stop
+	 * {@link #CLEARANCE_CM} short of the obstacle. The check runs on the
+	 * sampler thread as each sample arrives, so the Monitor never touches the
+	 * sensor.
+	 *
+	 * Once stopped, driving forward again stops again straight away, while
+	 * backing off or turning away is left alone.
+	 */
+	public static class DetectObstacleBehaviour implements SignallingBehavior, ResourceBehavior {
+		// how far from an obstacle to come to a stop, cm
+		public static final double CLEARANCE_CM = 15;
+		// s from the real distance crossing the threshold to braking: the
+		// median filter's lag of two sample periods, one more for the
+		// sample itself, and the arbitrator's switch
+		public static final double REACTION_ALLOWANCE = 0.08;
+
+		volatile private boolean isTriggered = false;
+		volatile private long crossedNanos = 0;
+		volatile private long triggeredNanos = 0;
+		volatile private ReadinessSignal readiness = ReadinessSignal.NONE;
+		private final DrivePilot pilot;
+		private final StatusModel status;
+		private final Clock clock;
+		private final DistanceSampler sampler;
+		private final BehaviourProvider.VelocityDriveBehaviour drive;
+		volatile private PlanBehaviour plan = null;
+		private final double deceleration;
+		// sampler thread only
+		private final DistanceSampler.Snapshot snapshot = new DistanceSampler.Snapshot();
+		// from the sample that crossed the threshold to the stop, on the
+		// robot's clock
+		private final LatencyHistogram reaction = new LatencyHistogram();
+		// from spotting the crossing to the stop, on System.nanoTime() - the
+		// part of the reaction that is real in the simulation too
+		private final LatencyHistogram switchTime = new LatencyHistogram();
+
+		public DetectObstacleBehaviour(DrivePilot pilot, StatusModel status, Clock clock, DistanceSampler sampler,
+				BehaviourProvider.VelocityDriveBehaviour drive, double deceleration) {
+			this.pilot = pilot;
+			this.status = status;
+			this.clock = clock;
+			this.sampler = sampler;
+			this.drive = drive;
+			this.deceleration = deceleration;
+		}
+
+		/**
+		 * @param speed
+		 *            forward speed in mm/s
+		 * @return the distance in cm at which to start stopping
+		 */
+		public double thresholdCm(double speed) {
+			double stoppingMm = speed * REACTION_ALLOWANCE + speed * speed / (2 * deceleration);
+			return CLEARANCE_CM + stoppingMm / 10;
+		}
+
+		/**
+		 * Checks the latest sample - run by the sampler after each one.
+		 */
+		public void sampleTaken() {
+			if (isTriggered) {
+				return;
+			}
+			double speed = drive.getForwardSpeed();
+			PlanBehaviour plan = this.plan;
+			if (plan != null) {
+				speed = Math.max(speed, plan.getForwardSpeed());
+			}
+			if (speed <= 0) {
+				return;
+			}
+			sampler.getSnapshot(snapshot);
+			if (snapshot.getMedian() < thresholdCm(speed)) {
+				crossedNanos = snapshot.getNanos();
+				triggeredNanos = System.nanoTime();
+				setTriggered(true);
+			}
+		}
+
+		/**
+		 * Also watches while <code>plan</code> drives forward.
+		 */
+		public void setPlanBehaviour(PlanBehaviour plan) {
+			this.plan = plan;
+		}
+
+		/**
+		 * @return the time from the sensor reading that crossed the threshold
+		 *         to pilot.stop(), on the robot's clock - in the simulation
+		 *         only as fine as its steps
+		 */
+		public LatencyHistogram getReactionTime() {
+			return reaction;
+		}
+
+		/**
+		 * @return the wall clock time from the sampler spotting the crossing
+		 *         to pilot.stop(): the arbitrator's switch to this behaviour
+		 */
+		public LatencyHistogram getSwitchTime() {
+			return switchTime;
+		}
+
+		@Override
+		public int getResources() {
+			return DRIVE;
+		}
+
+		@Override
+		public void setReadinessSignal(ReadinessSignal signal) {
+			this.readiness = signal;
+		}
+
+		@Override
+		public boolean takeControl() {
+			return isTriggered;
+		}
+
+		@Override
+		public void action() {
+			if (isTriggered) {
+				switchTime.record(System.nanoTime() - triggeredNanos);
+				reaction.record(clock.nanoTime() - crossedNanos);
+				pilot.stop();
+				status.postMode("OBSTACLE");
+
+				setTriggered(false);
+			}
+		}
+
+		@Override
+		public void suppress() {
+			setTriggered(false);
+		}
+
+		// the flag and the ready bit change together, as in StopBehaviour
+		private synchronized void setTriggered(boolean triggered) {
+			isTriggered = triggered;
+			readiness.readinessChanged(triggered);
+		}
+
+	}
 
 	// public static class FallbackBehaviour implements Behavior {
 	// @Override
@@ -170,53 +645,20 @@ public class ApiControlledTrack3r {
 	// }
 
 	public static void main(String[] args) throws IOException {
-		ApiControlledTrack3r parent = new ApiControlledTrack3r();
-		Behavior stop = new BehaviourProvider.StopBehaviour(parent.getPilot());
-		Behavior forwardBackward = new BehaviourProvider.ForwardBackwardBehaviour(parent.getPilot());
-		Behavior leftRight = new BehaviourProvider.LeftRightBehaviour(parent.getPilot());
-		Behavior call = new BehaviourProvider.CallBehaviour();
-		Behavior fallback = new FallbackBehaviour();
-
-		// first the API handler that uses a separate low priority thread to
-		// listen to HTTP requests on port 80
-		ExecutorService threadPool = Executors.newFixedThreadPool(1);
-		RestApiHandlerThread handler = new RestApiHandlerThread();
-		handler.registerListener(API_EVENT.FORWARD, (Callback) forwardBackward);
-		handler.registerListener(API_EVENT.BACKWARD, (Callback) forwardBackward);
-		handler.registerListener(API_EVENT.LEFT, (Callback) leftRight);
-		handler.registerListener(API_EVENT.RIGHT, (Callback) leftRight);
-		handler.registerListener(API_EVENT.STOP, (Callback) stop);
-		handler.registerListener(API_EVENT.CALL, (Callback) call);
-
-		final AbortBehaviour abort = new AbortBehaviour(parent.getPilot(), threadPool, handler);
-		Button.ESCAPE.addKeyListener(new KeyListener() {
-			@Override
-			public void keyPressed(Key k) {
-				LCD.clearDisplay();
-				LCD.drawString("Escape Button", 4, 4);
-				abort.setEscapePressed();
-			}
-
-			@Override
-			public void keyReleased(Key k) {
-				// do nothing for now
-
-			}
-
-		});
-
-		// FallbackBehaviour waitBehaviour = new FallbackBehaviour();
-
-		// configure our behaviour arbiter
-		Behavior[] bArray = { fallback, call, forwardBackward, leftRight, stop, abort };
-		ImprovedArbitrator arbitrator = new ImprovedArbitrator(bArray, true);
-
-		threadPool.submit(handler);
-		arbitrator.go();
-		//arbitrator.stop();
-
-		Sound.beepSequenceUp();
-		LCD.refresh();
+		ApiControlledTrack3r parent = new ApiControlledTrack3r(new Ev3Track3rHardware());
+		CommandJournal journal = null;
+		try {
+			journal = new CommandJournal(new File(JOURNAL_FILE), parent.getHardware().getClock());
+			parent.setJournal(journal);
+		} catch (IOException e) {
+			// drive anyway, just without a record
+			System.out.println("No journal: " + e.getMessage());
+		}
+		parent.start();
+		parent.go();
+		if (journal != null) {
+			journal.close();
+		}
 		// start our listener//
 
 	}
@@ -0,0 +1,25 @@
+package com.loneranger.lejos.control.web;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * Takes the body of a POST to its path, e.g. {@link PlanResource}. Called on
+ * the server thread, so it must be quick and must not block.
+ */
+public interface ApiPostResource {
+	public static final String OK = "200 OK";
+	public static final String BAD_REQUEST = "400 Bad Request";
+	public static final String UNAVAILABLE = "503 Service Unavailable";
+
+	/**
+	 * Handles the body <code>data[start, start + length)</code>, appending a
+	 * plain text reply to <code>response</code>.
+	 *
+	 * @param request
+	 *            the request the body came with, already pointed at it - to
+	 *            submit commands with
+	 * @return the reply's status, e.g. BAD_REQUEST if the body was rejected -
+	 *         the reply should say why
+	 */
+	public String post(RequestContext request, byte[] data, int start, int length, StringBuilder response);
+}
@@ -0,0 +1,16 @@
+package com.loneranger.lejos.control.web;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * A read-only page served on GET next to the command paths, e.g.
+ * {@link MetricsResource}. Rendered on the server thread, so it must be quick
+ * and must not block.
+ */
+public interface ApiResource {
+
+	/**
+	 * Appends the page, as plain text, to <code>body</code>.
+	 */
+	public void render(RequestContext request, StringBuilder body);
+}
@@ -0,0 +1,177 @@
+package com.loneranger.lejos.control.web;
+
+import java.util.EnumMap;
+
+import com.loneranger.lejos.journal.CommandJournal;
+import com.loneranger.lejos.metrics.CommandLatency;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * Maps request paths to API events and events to their listeners. The lookup
+ * table is a perfect hash over the path bytes, built once when the router is
+ * created, and listeners are kept in plain arrays - so routing and dispatching
+ * a request allocate nothing. Listeners are expected to be registered at
+ * startup, before requests arrive.
+ *
+ * Transports hand events over with {@link #submit}. If a {@link CommandQueue}
+ * is set, submitted events are queued for its consumer thread to dispatch;
+ * otherwise they are dispatched straight away on the transport's thread.
+ */
+public class ApiRouter {
+	private final API_EVENT[] table;
+	private final byte[][] tablePaths;
+	private final int multiplier;
+	private final EnumMap<API_EVENT, Callback[]> listeners = new EnumMap<>(API_EVENT.class);
+	volatile private CommandQueue commandQueue = null;
+	volatile private CommandLatency commandLatency = null;
+	volatile private CommandJournal journal = null;
+
+	public ApiRouter() {
+		API_EVENT[] events = API_EVENT.values();
+		for (API_EVENT event : events) {
+			listeners.put(event, new Callback[0]);
+		}
+
+		// find the smallest table and hash multiplier that give every path its
+		// own slot
+		API_EVENT[] candidate = null;
+		int m = 0;
+		search: for (int size = events.length;; size++) {
+			for (m = 31; m < 1024; m += 2) {
+				candidate = new API_EVENT[size];
+				if (fill(candidate, events, m)) {
+					break search;
+				}
+			}
+		}
+		table = candidate;
+		multiplier = m;
+		tablePaths = new byte[table.length][];
+		for (int i = 0; i < table.length; i++) {
+			if (table[i] != null) {
+				tablePaths[i] = table[i].getQueryPath().getBytes(ClientConnection.ASCII);
+			}
+		}
+	}
+
+	private static boolean fill(API_EVENT[] candidate, API_EVENT[] events, int m) {
+		for (API_EVENT event : events) {
+			if (event.getQueryPath() == null) {
+				continue;
+			}
+			byte[] path = event.getQueryPath().getBytes(ClientConnection.ASCII);
+			int slot = slot(path, 0, path.length, m, candidate.length);
+			if (candidate[slot] != null) {
+				return false;
+			}
+			candidate[slot] = event;
+		}
+		return true;
+	}
+
+	private static int slot(byte[] data, int start, int end, int m, int size) {
+		int hash = end - start;
+		for (int i = start; i < end; i++) {
+			hash = hash * m + data[i];
+		}
+		return (hash & 0x7fffffff) % size;
+	}
+
+	/**
+	 * @return the event for the path in <code>data[start, end)</code>, or null
+	 *         if no event has that path
+	 */
+	public API_EVENT route(byte[] data, int start, int end) {
+		int slot = slot(data, start, end, multiplier, table.length);
+		byte[] candidate = tablePaths[slot];
+		if (candidate == null || candidate.length != end - start) {
+			return null;
+		}
+		for (int i = 0; i < candidate.length; i++) {
+			if (candidate[i] != data[start + i]) {
+				return null;
+			}
+		}
+		return table[slot];
+	}
+
+	public API_EVENT route(String path) {
+		byte[] bytes = path.getBytes(ClientConnection.ASCII);
+		return route(bytes, 0, bytes.length);
+	}
+
+	public synchronized void registerListener(API_EVENT event, Callback callback) {
+		Callback[] current = listeners.get(event);
+		Callback[] updated = new Callback[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = callback;
+		listeners.put(event, updated);
+	}
+
+	public void setCommandQueue(CommandQueue commandQueue) {
+		this.commandQueue = commandQueue;
+	}
+
+	public CommandQueue getCommandQueue() {
+		return commandQueue;
+	}
+
+	/**
+	 * Sets where the time from receiving a command to dispatching it is
+	 * recorded.
+	 */
+	public void setCommandLatency(CommandLatency commandLatency) {
+		this.commandLatency = commandLatency;
+	}
+
+	/**
+	 * Sets where every submitted command is recorded, or null to stop
+	 * recording them.
+	 */
+	public void setJournal(CommandJournal journal) {
+		this.journal = journal;
+	}
+
+	public CommandJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Entry point for the transports. The command is journalled here, as it
+	 * is received, whatever then becomes of it.
+	 *
+	 * @return false if the event was dropped because the command queue is
+	 *         full
+	 */
+	public boolean submit(API_EVENT event, RequestContext context) {
+		CommandQueue queue = commandQueue;
+		CommandJournal journal = this.journal;
+		if (queue == null) {
+			if (journal != null) {
+				journal.commandReceived(event, context, -1, false);
+			}
+			dispatch(event, context);
+			return true;
+		}
+		return queue.offer(event, context, journal);
+	}
+
+	/**
+	 * Calls the listeners for <code>event</code>, then the listeners for the
+	 * special ALL event.
+	 */
+	public void dispatch(API_EVENT event, RequestContext context) {
+		Callback[] callbacks = listeners.get(event);
+		CommandLatency latency = commandLatency;
+		if (latency != null) {
+			latency.dispatched(context.getReceivedNanos(), callbacks);
+		}
+		for (Callback callback : callbacks) {
+			callback.handleEvent(event, context);
+		}
+		for (Callback callback : listeners.get(API_EVENT.ALL)) {
+			callback.handleEvent(API_EVENT.ALL, context);
+		}
+	}
+}
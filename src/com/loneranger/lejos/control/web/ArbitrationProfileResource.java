@@ -0,0 +1,30 @@
+package com.loneranger.lejos.control.web;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.metrics.ArbitrationProfile;
+
+/**
+ * Serves {@link #PATH}: the arbitrator's per-behaviour profile. A POST to
+ * the same path (the body is ignored) clears it after showing it.
+ */
+public class ArbitrationProfileResource implements ApiResource, ApiPostResource {
+	public static final String PATH = "/profile";
+
+	private final ArbitrationProfile profile;
+
+	public ArbitrationProfileResource(ArbitrationProfile profile) {
+		this.profile = profile;
+	}
+
+	@Override
+	public void render(RequestContext request, StringBuilder body) {
+		profile.appendTo(body);
+	}
+
+	@Override
+	public String post(RequestContext request, byte[] data, int start, int length, StringBuilder response) {
+		profile.appendTo(response);
+		profile.reset();
+		return OK;
+	}
+}
@@ -0,0 +1,234 @@
+package com.loneranger.lejos.control.web;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * Per-connection state for the selector loop in {@link RestApiHandlerThread}:
+ * a read buffer holding whatever part of a request has arrived so far,
+ * the parser working through it, and the output not yet accepted by the
+ * socket. Only ever touched from the selector thread.
+ */
+class ClientConnection {
+	static final Charset ASCII = Charset.forName("ISO-8859-1");
+	// the read buffer holds any request without a body, and most with one
+	static final int READ_BUFFER_SIZE = 2048;
+	// largest request (headers and body) we accept - the read buffer only
+	// grows this far for a request whose body needs it, e.g. a long plan
+	static final int MAX_REQUEST_SIZE = 8 * 1024;
+	// a client that won't read its responses is dropped once this much output
+	// is queued for it
+	static final int MAX_PENDING_OUTPUT = 16 * 1024;
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	// both buffers are kept in "filling" mode between calls; a request always
+	// starts at index 0 of the read buffer
+	private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final HttpRequestParser parser = new HttpRequestParser();
+	private final RequestContext context = new RequestContext();
+	private boolean closeAfterFlush = false;
+	// set once the connection has been upgraded to the WebSocket channel
+	private boolean webSocket = false;
+	// set once the connection carries an event stream out to the client
+	private boolean streaming = false;
+
+	ClientConnection(SocketChannel channel, SelectionKey key) {
+		this.channel = channel;
+		this.key = key;
+	}
+
+	/**
+	 * @return false once the client has closed its end
+	 */
+	boolean fill() throws IOException {
+		return channel.read(in) >= 0;
+	}
+
+	/**
+	 * Parses as far as the buffered bytes allow. On COMPLETE the request is
+	 * available from {@link #getRequest()} until {@link #consumeRequest()}.
+	 */
+	HttpRequestParser.Status parseRequest() {
+		return parser.parse(in.array(), in.position());
+	}
+
+	HttpRequestParser getRequest() {
+		return parser;
+	}
+
+	/**
+	 * @return the context reused for every request on this connection
+	 */
+	RequestContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Drops the current request from the read buffer, moving any pipelined
+	 * bytes behind it to the front.
+	 */
+	void consumeRequest() {
+		in.flip();
+		in.position(parser.getRequestEnd());
+		in.compact();
+		parser.reset();
+		if (in.capacity() > READ_BUFFER_SIZE && in.position() <= READ_BUFFER_SIZE) {
+			// done with the big request - don't hold on to its buffer
+			ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			in.flip();
+			smaller.put(in);
+			in = smaller;
+		}
+	}
+
+	boolean isWebSocket() {
+		return webSocket;
+	}
+
+	void setWebSocket() {
+		webSocket = true;
+	}
+
+	boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * From now on the connection only carries output; anything more the
+	 * client sends is thrown away.
+	 */
+	void setStreaming() {
+		streaming = true;
+	}
+
+	/**
+	 * Raw access to the read buffer for framed protocols; the unread bytes
+	 * are <code>getInputData()[0, getInputLength())</code>.
+	 */
+	byte[] getInputData() {
+		return in.array();
+	}
+
+	int getInputLength() {
+		return in.position();
+	}
+
+	void consumeInput(int length) {
+		in.flip();
+		in.position(length);
+		in.compact();
+	}
+
+	/**
+	 * @return true if the read buffer is full without holding a complete
+	 *         request
+	 */
+	boolean isInputFull() {
+		return !in.hasRemaining();
+	}
+
+	/**
+	 * Makes room for the rest of a request whose headers are in but whose
+	 * body doesn't fit.
+	 *
+	 * @return false if the request is over {@link #MAX_REQUEST_SIZE}, or its
+	 *         headers alone fill the buffer
+	 */
+	boolean growInput() {
+		int needed = parser.getExpectedLength();
+		if (needed <= in.capacity() || needed > MAX_REQUEST_SIZE) {
+			return false;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(needed);
+		in.flip();
+		bigger.put(in);
+		in = bigger;
+		return true;
+	}
+
+	/**
+	 * Queues a response without writing it; call {@link #flush()} once all
+	 * buffered requests have been answered.
+	 */
+	void queue(byte[] response) throws IOException {
+		queue(response, 0, response.length);
+	}
+
+	void queue(byte[] response, int offset, int length) throws IOException {
+		ensureOutputSpace(length);
+		out.put(response, offset, length);
+	}
+
+	/**
+	 * Writes as much pending output as the socket takes without blocking and
+	 * asks the selector for OP_WRITE if anything is left over.
+	 */
+	void flush() throws IOException {
+		out.flip();
+		channel.write(out);
+		out.compact();
+		if (!key.isValid()) {
+			return;
+		}
+		if (out.position() > 0) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		} else if (closeAfterFlush) {
+			close();
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Stops reading from the client and closes the connection once its
+	 * pending output has gone out.
+	 */
+	void closeAfterFlush() throws IOException {
+		closeAfterFlush = true;
+		if (key.isValid()) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+		flush();
+	}
+
+	/**
+	 * @return bytes queued that the socket hasn't taken yet
+	 */
+	int getPendingOutput() {
+		return out.position();
+	}
+
+	boolean isClosing() {
+		return closeAfterFlush || !key.isValid();
+	}
+
+	void close() {
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing more we can do for this client
+		}
+	}
+
+	private void ensureOutputSpace(int needed) throws IOException {
+		if (out.remaining() >= needed) {
+			return;
+		}
+		int required = out.position() + needed;
+		if (required > MAX_PENDING_OUTPUT) {
+			throw new IOException("client is not reading its responses");
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(required, Math.min(out.capacity() * 2, MAX_PENDING_OUTPUT)));
+		out.flip();
+		bigger.put(out);
+		out = bigger;
+	}
+}
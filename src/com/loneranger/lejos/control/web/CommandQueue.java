@@ -0,0 +1,252 @@
+package com.loneranger.lejos.control.web;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.journal.CommandJournal;
+import com.loneranger.lejos.plan.MotionPlan;
+
+/**
+ * Bounded, lock-free multi-producer/single-consumer ring of commands between
+ * the network transports and the arbitrator. Transports offer commands from
+ * their own threads; the arbitrator's Monitor thread drains them in batches
+ * and dispatches them to the listeners, so behaviours only ever see events on
+ * one thread and in the order they were accepted.
+ *
+ * Every command gets a sequence number (its position in the ring). Commands
+ * on a coalescing channel are last-writer-wins: if a newer command on the same
+ * channel has been offered by the time an older one is drained, the older one
+ * is skipped. A full ring rejects the offer rather than overwriting anything,
+ * so the transport can push back on its client. The ring slots are allocated
+ * up front, so offering and draining allocate nothing.
+ */
+public class CommandQueue {
+	public static final int CHANNEL_NONE = -1;
+	// direction commands - only the latest one matters
+	public static final int CHANNEL_DRIVE = 0;
+	private static final int CHANNEL_COUNT = 1;
+
+	// the request parameters copied into a queued command
+	private static final String[] CARRIED_PARAMETERS = { RequestContext.SPEED, RequestContext.TURN_RATE,
+			RequestContext.DURATION_MS };
+
+	private static class Command {
+		API_EVENT event;
+		int channel;
+		long receivedNanos;
+		final double[] parameters = new double[CARRIED_PARAMETERS.length];
+		// PLAN only
+		MotionPlan plan;
+	}
+
+	private final int mask;
+	private final Command[] slots;
+	// slot i is free for the producer claiming position p when
+	// sequences[i] == p, and holds a published command when it is p + 1
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLongArray latestOnChannel = new AtomicLongArray(CHANNEL_COUNT);
+	private final AtomicLong dropped = new AtomicLong();
+
+	// consumer side only
+	private long head = 0;
+	private final RequestContext context = new RequestContext();
+	volatile private long dispatched = 0;
+	volatile private long coalesced = 0;
+
+	volatile private Runnable submitSignal = null;
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of two
+	 */
+	public CommandQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		slots = new Command[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Command();
+			sequences.set(i, i);
+		}
+		for (int i = 0; i < CHANNEL_COUNT; i++) {
+			latestOnChannel.set(i, -1);
+		}
+	}
+
+	public static int channelOf(API_EVENT event) {
+		switch (event) {
+		case FORWARD:
+		case BACKWARD:
+		case LEFT:
+		case RIGHT:
+		case STOP:
+		case DRIVE:
+			return CHANNEL_DRIVE;
+		default:
+			return CHANNEL_NONE;
+		}
+	}
+
+	/**
+	 * Called after every accepted offer - typically wakes the consumer.
+	 */
+	public void setSubmitSignal(Runnable signal) {
+		this.submitSignal = signal;
+	}
+
+	/**
+	 * Copies the event and its parameters into the ring. Safe to call from
+	 * any number of threads.
+	 *
+	 * @return false if the ring is full and the command was dropped
+	 */
+	public boolean offer(API_EVENT event, RequestContext request) {
+		return offer(event, request, null);
+	}
+
+	/**
+	 * As {@link #offer(API_EVENT, RequestContext)}, also recording the
+	 * command in <code>journal</code> with its sequence number - before it
+	 * is published, so the journal has it before it can be coalesced.
+	 */
+	public boolean offer(API_EVENT event, RequestContext request, CommandJournal journal) {
+		long position;
+		int index;
+		while (true) {
+			position = tail.get();
+			index = (int) (position & mask);
+			long available = sequences.get(index) - position;
+			if (available == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (available < 0) {
+				dropped.incrementAndGet();
+				if (journal != null) {
+					journal.commandReceived(event, request, -1, true);
+				}
+				return false;
+			}
+			// otherwise another producer got this position first - retry
+		}
+
+		Command command = slots[index];
+		command.event = event;
+		command.channel = channelOf(event);
+		command.receivedNanos = request.getReceivedNanos();
+		for (int i = 0; i < CARRIED_PARAMETERS.length; i++) {
+			command.parameters[i] = request.getDoubleParameter(CARRIED_PARAMETERS[i], Double.NaN);
+		}
+		command.plan = request.getPlan();
+		if (journal != null) {
+			journal.commandReceived(event, request, position, false);
+		}
+		sequences.set(index, position + 1); // publish
+
+		if (command.channel != CHANNEL_NONE) {
+			long latest;
+			do {
+				latest = latestOnChannel.get(command.channel);
+			} while (latest < position && !latestOnChannel.compareAndSet(command.channel, latest, position));
+		}
+		Runnable signal = submitSignal;
+		if (signal != null) {
+			signal.run();
+		}
+		return true;
+	}
+
+	/**
+	 * Dispatches up to <code>max</code> queued commands through
+	 * <code>router</code>, oldest first. Must only be called from the one
+	 * consumer thread.
+	 *
+	 * @return the number of commands taken off the ring
+	 */
+	public int drain(ApiRouter router, int max) {
+		int taken = 0;
+		while (taken < max) {
+			int index = (int) (head & mask);
+			if (sequences.get(index) != head + 1) {
+				break; // empty, or the next producer hasn't published yet
+			}
+			Command command = slots[index];
+			API_EVENT event = command.event;
+			boolean superseded = command.channel != CHANNEL_NONE && latestOnChannel.get(command.channel) > head;
+			if (!superseded) {
+				context.clearRequest(event.getQueryPath());
+				context.setReceivedNanos(command.receivedNanos);
+				for (int i = 0; i < CARRIED_PARAMETERS.length; i++) {
+					if (!Double.isNaN(command.parameters[i])) {
+						context.setParameter(CARRIED_PARAMETERS[i], command.parameters[i]);
+					}
+				}
+				context.setPlan(command.plan);
+			}
+			// so the ring doesn't keep old plans alive
+			command.plan = null;
+			// everything needed is copied out - hand the slot back
+			sequences.set(index, head + slots.length);
+			head++;
+			taken++;
+
+			if (superseded) {
+				coalesced++;
+				CommandJournal journal = router.getJournal();
+				if (journal != null) {
+					journal.commandCoalesced(head - 1);
+				}
+			} else {
+				dispatched++;
+				router.dispatch(event, context);
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * @return a task that drains the whole ring through <code>router</code>,
+	 *         for the arbitrator's Monitor thread
+	 */
+	public Runnable drainTask(final ApiRouter router) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				drain(router, slots.length);
+			}
+		};
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the sequence number the next offered command will get
+	 */
+	public long getNextSequence() {
+		return tail.get();
+	}
+
+	public long getDispatchedCount() {
+		return dispatched;
+	}
+
+	/**
+	 * @return commands skipped because a newer one on their channel arrived
+	 *         before they were drained
+	 */
+	public long getCoalescedCount() {
+		return coalesced;
+	}
+
+	/**
+	 * @return commands rejected because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,392 @@
+package com.loneranger.lejos.control.web;
+
+/**
+ * Incremental HTTP/1.1 request parser working directly on a connection's read
+ * buffer. It can be fed a partial request any number of times and picks up
+ * scanning where it left off; once a request is complete its parts are
+ * available as offsets into the buffer, so parsing allocates nothing. After
+ * the request has been consumed call {@link #reset()} and parse again from
+ * the start of the buffer for the next (possibly pipelined) request.
+ *
+ * A bare request line without an HTTP version ("GET /stop") is accepted as a
+ * complete request on its own so that raw socket clients keep working.
+ */
+public class HttpRequestParser {
+	public static enum Status {
+		/** more bytes are needed */
+		INCOMPLETE,
+		/** a whole request (including any body) is in the buffer */
+		COMPLETE,
+		/** the bytes are not a valid HTTP request */
+		MALFORMED,
+		/** valid HTTP, but something we don't support (e.g. chunked bodies) */
+		UNSUPPORTED;
+	}
+
+	private static enum State {
+		REQUEST_LINE, HEADERS, BODY, DONE;
+	}
+
+	private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+	private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+	private static final byte[] CONNECTION = ascii("connection");
+	private static final byte[] CONTENT_LENGTH = ascii("content-length");
+	private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+	private static final byte[] CHUNKED = ascii("chunked");
+	private static final byte[] CLOSE = ascii("close");
+	private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+	private static final byte[] UPGRADE = ascii("upgrade");
+	private static final byte[] WEBSOCKET = ascii("websocket");
+	private static final byte[] SEC_WEBSOCKET_KEY = ascii("sec-websocket-key");
+
+	public static final byte[] GET = ascii("GET");
+	public static final byte[] POST = ascii("POST");
+
+	private byte[] data;
+	private State state = State.REQUEST_LINE;
+	private int scan;
+	private int lineStart;
+
+	private int methodStart;
+	private int methodEnd;
+	private int pathStart;
+	private int pathEnd;
+	private int queryStart;
+	private int queryEnd;
+	private int requestLineEnd;
+	private boolean simpleRequest;
+	private boolean http11;
+	private boolean closeRequested;
+	private boolean keepAliveRequested;
+	private boolean chunked;
+	private boolean transferEncoding;
+	private boolean websocketUpgrade;
+	private int websocketKeyStart;
+	private int websocketKeyEnd;
+	private int contentLength;
+	private boolean contentLengthSeen;
+	private int bodyStart;
+	private int requestEnd;
+
+	public void reset() {
+		state = State.REQUEST_LINE;
+		scan = 0;
+		lineStart = 0;
+		queryStart = -1;
+		queryEnd = -1;
+		simpleRequest = false;
+		http11 = false;
+		closeRequested = false;
+		keepAliveRequested = false;
+		chunked = false;
+		transferEncoding = false;
+		websocketUpgrade = false;
+		websocketKeyStart = -1;
+		websocketKeyEnd = -1;
+		contentLength = 0;
+		contentLengthSeen = false;
+		bodyStart = 0;
+		requestEnd = 0;
+	}
+
+	public HttpRequestParser() {
+		reset();
+	}
+
+	/**
+	 * Continues parsing the request at the start of <code>buffer</code>.
+	 *
+	 * @param buffer
+	 *            the connection's read buffer; the request starts at index 0
+	 * @param limit
+	 *            number of valid bytes in the buffer
+	 */
+	public Status parse(byte[] buffer, int limit) {
+		this.data = buffer;
+		while (true) {
+			switch (state) {
+			case REQUEST_LINE:
+			case HEADERS: {
+				int newline = indexOf((byte) '\n', scan, limit);
+				if (newline < 0) {
+					scan = limit;
+					return Status.INCOMPLETE;
+				}
+				int lineEnd = newline > lineStart && data[newline - 1] == '\r' ? newline - 1 : newline;
+				scan = newline + 1;
+				Status status = state == State.REQUEST_LINE ? requestLine(lineStart, lineEnd)
+						: headerLine(lineStart, lineEnd);
+				lineStart = scan;
+				if (status != Status.INCOMPLETE) {
+					return status;
+				}
+				break;
+			}
+			case BODY: {
+				if (limit - bodyStart < contentLength) {
+					return Status.INCOMPLETE;
+				}
+				requestEnd = bodyStart + contentLength;
+				state = State.DONE;
+				return Status.COMPLETE;
+			}
+			case DONE:
+				return Status.COMPLETE;
+			}
+		}
+	}
+
+	private Status requestLine(int start, int end) {
+		if (start == end) {
+			// robust parsers ignore empty lines before the request line
+			return Status.INCOMPLETE;
+		}
+		int firstSpace = indexOf((byte) ' ', start, end);
+		if (firstSpace <= start) {
+			return Status.MALFORMED;
+		}
+		methodStart = start;
+		methodEnd = firstSpace;
+		pathStart = firstSpace + 1;
+		int secondSpace = indexOf((byte) ' ', pathStart, end);
+		int targetEnd = secondSpace < 0 ? end : secondSpace;
+		if (targetEnd == pathStart || data[pathStart] != '/') {
+			return Status.MALFORMED;
+		}
+		int question = indexOf((byte) '?', pathStart, targetEnd);
+		if (question < 0) {
+			pathEnd = targetEnd;
+		} else {
+			pathEnd = question;
+			queryStart = question + 1;
+			queryEnd = targetEnd;
+		}
+		requestLineEnd = end;
+
+		if (secondSpace < 0) {
+			// bare "GET /path" - there are no headers to follow
+			simpleRequest = true;
+			bodyStart = scan;
+			state = State.BODY;
+			return Status.INCOMPLETE;
+		}
+		if (regionEquals(secondSpace + 1, end, HTTP_1_1, false)) {
+			http11 = true;
+		} else if (!regionEquals(secondSpace + 1, end, HTTP_1_0, false)) {
+			return Status.UNSUPPORTED;
+		}
+		state = State.HEADERS;
+		return Status.INCOMPLETE;
+	}
+
+	private Status headerLine(int start, int end) {
+		if (start == end) {
+			// the body's length must be unambiguous, or a proxy in front of
+			// us may see a different request end than we do
+			if (transferEncoding && contentLengthSeen) {
+				return Status.MALFORMED;
+			}
+			if (chunked) {
+				return Status.UNSUPPORTED;
+			}
+			bodyStart = scan;
+			state = State.BODY;
+			return Status.INCOMPLETE;
+		}
+		int colon = indexOf((byte) ':', start, end);
+		if (colon <= start) {
+			return Status.MALFORMED;
+		}
+		int valueStart = colon + 1;
+		while (valueStart < end && (data[valueStart] == ' ' || data[valueStart] == '\t')) {
+			valueStart++;
+		}
+		int valueEnd = end;
+		while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) {
+			valueEnd--;
+		}
+
+		if (regionEquals(start, colon, CONTENT_LENGTH, true)) {
+			if (valueStart == valueEnd) {
+				return Status.MALFORMED;
+			}
+			int length = 0;
+			for (int i = valueStart; i < valueEnd; i++) {
+				int digit = data[i] - '0';
+				if (digit < 0 || digit > 9 || length > (Integer.MAX_VALUE - digit) / 10) {
+					return Status.MALFORMED;
+				}
+				length = length * 10 + digit;
+			}
+			if (contentLengthSeen && length != contentLength) {
+				return Status.MALFORMED;
+			}
+			contentLength = length;
+			contentLengthSeen = true;
+		} else if (regionEquals(start, colon, CONNECTION, true)) {
+			closeRequested |= containsToken(valueStart, valueEnd, CLOSE);
+			keepAliveRequested |= containsToken(valueStart, valueEnd, KEEP_ALIVE);
+		} else if (regionEquals(start, colon, TRANSFER_ENCODING, true)) {
+			transferEncoding = true;
+			chunked |= containsToken(valueStart, valueEnd, CHUNKED);
+		} else if (regionEquals(start, colon, UPGRADE, true)) {
+			websocketUpgrade |= containsToken(valueStart, valueEnd, WEBSOCKET);
+		} else if (regionEquals(start, colon, SEC_WEBSOCKET_KEY, true)) {
+			websocketKeyStart = valueStart;
+			websocketKeyEnd = valueEnd;
+		}
+		return Status.INCOMPLETE;
+	}
+
+	/**
+	 * @return true if the connection should stay open after this request
+	 */
+	public boolean isKeepAlive() {
+		if (simpleRequest) {
+			return true;
+		}
+		return http11 ? !closeRequested : keepAliveRequested && !closeRequested;
+	}
+
+	/**
+	 * @return true for an HTTP/1.1 GET asking to upgrade to a WebSocket
+	 */
+	public boolean isWebSocketUpgrade() {
+		return http11 && websocketUpgrade && websocketKeyStart >= 0 && isMethod(GET);
+	}
+
+	public int getWebSocketKeyStart() {
+		return websocketKeyStart;
+	}
+
+	public int getWebSocketKeyEnd() {
+		return websocketKeyEnd;
+	}
+
+	public boolean isSimpleRequest() {
+		return simpleRequest;
+	}
+
+	public boolean isMethod(byte[] method) {
+		return regionEquals(methodStart, methodEnd, method, false);
+	}
+
+	/**
+	 * @return true if the path (without query string) equals the given bytes
+	 */
+	public boolean isPath(byte[] path) {
+		return regionEquals(pathStart, pathEnd, path, false);
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getPathStart() {
+		return pathStart;
+	}
+
+	public int getPathEnd() {
+		return pathEnd;
+	}
+
+	/**
+	 * @return start of the query string (after the '?'), or -1 if there is
+	 *         none
+	 */
+	public int getQueryStart() {
+		return queryStart;
+	}
+
+	public int getQueryEnd() {
+		return queryEnd;
+	}
+
+	public int getBodyStart() {
+		return bodyStart;
+	}
+
+	public int getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return index just past this request - where a pipelined request would
+	 *         start
+	 */
+	public int getRequestEnd() {
+		return requestEnd;
+	}
+
+	/**
+	 * @return how long the whole request will be, once its headers are in -
+	 *         -1 while they are still arriving
+	 */
+	public int getExpectedLength() {
+		return state == State.BODY || state == State.DONE ? bodyStart + contentLength : -1;
+	}
+
+	/**
+	 * Allocates - only for callers that really want the text.
+	 */
+	public String getRequestLine() {
+		return new String(data, methodStart, requestLineEnd - methodStart, ClientConnection.ASCII);
+	}
+
+	private int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param ignoreCase
+	 *            if true, <code>expected</code> must be lower case
+	 */
+	private boolean regionEquals(int start, int end, byte[] expected, boolean ignoreCase) {
+		if (end - start != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			byte b = data[start + i];
+			if (ignoreCase && b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Looks for a token in a comma separated header value, ignoring case.
+	 */
+	private boolean containsToken(int start, int end, byte[] token) {
+		int tokenStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || data[i] == ',') {
+				int s = tokenStart;
+				int e = i;
+				while (s < e && data[s] == ' ') {
+					s++;
+				}
+				while (e > s && data[e - 1] == ' ') {
+					e--;
+				}
+				if (regionEquals(s, e, token, true)) {
+					return true;
+				}
+				tokenStart = i + 1;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(ClientConnection.ASCII);
+	}
+}
@@ -0,0 +1,79 @@
+package com.loneranger.lejos.control.web;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.metrics.CommandLatency;
+import com.loneranger.lejos.metrics.LatencyHistogram;
+
+/**
+ * Serves {@link #PATH}: command latency percentiles, the command queue's
+ * counters and any other histograms added with
+ * {@link #addHistogram(String, LatencyHistogram)}. A POST to the same path
+ * (the body is ignored) clears the histograms after showing them, e.g.
+ * between load test runs - a GET never changes anything.
+ */
+public class MetricsResource implements ApiResource, ApiPostResource {
+	public static final String PATH = "/metrics";
+
+	private final CommandLatency latency;
+	private final ApiRouter router;
+	// copy on write, like the resources themselves
+	volatile private String[] names = new String[0];
+	volatile private LatencyHistogram[] histograms = new LatencyHistogram[0];
+
+	public MetricsResource(CommandLatency latency, ApiRouter router) {
+		this.latency = latency;
+		this.router = router;
+	}
+
+	/**
+	 * Adds a histogram to show, in microseconds, as <code>name</code>. Reset
+	 * along with the rest.
+	 */
+	public synchronized void addHistogram(String name, LatencyHistogram histogram) {
+		String[] newNames = new String[names.length + 1];
+		LatencyHistogram[] newHistograms = new LatencyHistogram[histograms.length + 1];
+		System.arraycopy(names, 0, newNames, 0, names.length);
+		System.arraycopy(histograms, 0, newHistograms, 0, histograms.length);
+		newNames[names.length] = name;
+		newHistograms[histograms.length] = histogram;
+		// histograms first, so a reader never sees a name without one
+		histograms = newHistograms;
+		names = newNames;
+	}
+
+	@Override
+	public void render(RequestContext request, StringBuilder body) {
+		appendTo(body);
+	}
+
+	@Override
+	public String post(RequestContext request, byte[] data, int start, int length, StringBuilder response) {
+		appendTo(response);
+		latency.reset();
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+		return OK;
+	}
+
+	private void appendTo(StringBuilder body) {
+		latency.appendTo(body);
+		CommandQueue queue = router.getCommandQueue();
+		if (queue != null) {
+			body.append("# command queue\n");
+			body.append("queue.dispatched ").append(queue.getDispatchedCount()).append('\n');
+			body.append("queue.coalesced ").append(queue.getCoalescedCount()).append('\n');
+			body.append("queue.dropped ").append(queue.getDroppedCount()).append('\n');
+		}
+		String[] names = this.names;
+		LatencyHistogram[] histograms = this.histograms;
+		if (names.length > 0) {
+			body.append("# other latencies, us\n");
+		}
+		for (int i = 0; i < names.length; i++) {
+			body.append(names[i]).append(' ');
+			histograms[i].appendSummary(body);
+			body.append('\n');
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.loneranger.lejos.control.web;
+
+import com.loneranger.lejos.behaviour.PlanBehaviour;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.hardware.DrivePilot;
+import com.loneranger.lejos.plan.MotionPlan;
+import com.loneranger.lejos.plan.PlanCompiler;
+
+/**
+ * Serves {@link #PATH}. A POST compiles its body - see {@link PlanCompiler}
+ * for the format - and submits the plan through the router as a PLAN event,
+ * like any other command, for the {@link PlanBehaviour} to take over from any
+ * plan in progress. The reply gives the plan's id, or why it was rejected. A
+ * GET shows how the latest plan is getting on.
+ *
+ * The whole request, headers and body, must fit in
+ * {@link ClientConnection#MAX_REQUEST_SIZE} bytes - a longer one is refused
+ * with 413 Payload Too Large. That is several times the longest plan the
+ * compiler takes.
+ */
+public class PlanResource implements ApiResource, ApiPostResource {
+	public static final String PATH = "/plan";
+
+	private final PlanCompiler compiler;
+	private final PlanBehaviour behaviour;
+	private final DrivePilot pilot;
+	private final ApiRouter router;
+
+	public PlanResource(PlanCompiler compiler, PlanBehaviour behaviour, DrivePilot pilot, ApiRouter router) {
+		this.compiler = compiler;
+		this.behaviour = behaviour;
+		this.pilot = pilot;
+		this.router = router;
+	}
+
+	@Override
+	public void render(RequestContext request, StringBuilder body) {
+		behaviour.appendProgress(body);
+	}
+
+	@Override
+	public String post(RequestContext request, byte[] data, int start, int length, StringBuilder response) {
+		MotionPlan plan;
+		try {
+			// steps without a speed go at the cruise speed
+			plan = compiler.compile(new String(data, start, length, ClientConnection.ASCII), pilot.getLinearSpeed());
+		} catch (PlanCompiler.PlanException e) {
+			response.append(e.getMessage()).append('\n');
+			return BAD_REQUEST;
+		}
+		request.setPlan(plan);
+		boolean accepted = router.submit(API_EVENT.PLAN, request);
+		// the context lives on with the connection - don't keep the plan
+		request.setPlan(null);
+		if (!accepted) {
+			response.append("the command queue is full - try again\n");
+			return UNAVAILABLE;
+		}
+		response.append("plan ").append(plan.getId()).append('\n');
+		response.append("segments ").append(plan.getSegmentCount()).append('\n');
+		response.append("duration.ms ").append(plan.getDurationNanos() / 1000000).append('\n');
+		return OK;
+	}
+}
@@ -0,0 +1,43 @@
+package com.loneranger.lejos.control.web;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.sensing.PoseTracker;
+
+/**
+ * Serves {@link #PATH}: the latest odometry pose and velocity from the
+ * {@link PoseTracker}. A POST to the same path (the body is ignored) makes
+ * the robot's current position the origin after showing it.
+ */
+public class PoseResource implements ApiResource, ApiPostResource {
+	public static final String PATH = "/pose";
+
+	private final PoseTracker tracker;
+	// server thread only
+	private final PoseTracker.Snapshot snapshot = new PoseTracker.Snapshot();
+
+	public PoseResource(PoseTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	@Override
+	public void render(RequestContext request, StringBuilder body) {
+		appendTo(body);
+	}
+
+	@Override
+	public String post(RequestContext request, byte[] data, int start, int length, StringBuilder response) {
+		appendTo(response);
+		tracker.setPose(0, 0, 0);
+		return OK;
+	}
+
+	private void appendTo(StringBuilder body) {
+		tracker.getSnapshot(snapshot);
+		body.append("x ").append(Math.round(snapshot.getX() * 10) / 10.0).append('\n');
+		body.append("y ").append(Math.round(snapshot.getY() * 10) / 10.0).append('\n');
+		body.append("heading ").append(Math.round(snapshot.getHeading() * 10) / 10.0).append('\n');
+		body.append("speed ").append(Math.round(snapshot.getLinearVelocity())).append('\n');
+		body.append("turn ").append(Math.round(snapshot.getAngularVelocity())).append('\n');
+		body.append("updates ").append(snapshot.getSequence()).append('\n');
+	}
+}
@@ -1,22 +1,23 @@
 package com.loneranger.lejos.control.web;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import com.loneranger.lejos.plan.MotionPlan;
 
 public class RestApiHandlerThread implements Runnable {
 	public static enum API_EVENT {
 		FORWARD("/forward"), BACKWARD("/backward"), RIGHT("/right"), LEFT("/left"), STOP("/stop"), SPEEDUP(
-				"/speedup"), SLOWDOWN("/slowdown"), BELL("/bell"), CALL("/call"), ALL(null);
+				"/speedup"), SLOWDOWN("/slowdown"), BELL("/bell"), CALL("/call"), DRIVE("/drive"), HEARTBEAT(
+				"/heartbeat"), ALL(null),
+		// a compiled path POSTed to /plan, carried in the context - it has
+		// no path of its own, so the binary transports can't send it
+		PLAN(null);
 
 		private String queryPath;
 
@@ -28,136 +29,608 @@ public class RestApiHandlerThread implements Runnable {
 			return queryPath;
 		}
 
+		// values() clones the array on every call
+		private static final API_EVENT[] VALUES = values();
+
 		public static API_EVENT getEventFromQuery(String queryPath) {
-			for (API_EVENT event : API_EVENT.values()) {
-				if (event.getQueryPath().equals(queryPath)) {
+			for (API_EVENT event : VALUES) {
+				if (event.getQueryPath() != null && event.getQueryPath().equals(queryPath)) {
 					return event;
 				}
 			}
 			return null;
 		}
+
+		public static API_EVENT fromOrdinal(int ordinal) {
+			return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : null;
+		}
 	}
 
+	/**
+	 * What a listener gets to see of the request behind an event. The
+	 * transports keep one context per connection and re-point it at each new
+	 * request, so a context must not be held on to after handleEvent()
+	 * returns. Parameters are read straight from the request bytes (e.g.
+	 * <code>/forward?speed=300</code>) without allocating. Transports without
+	 * a query string (such as the WebSocket channel) set parameters directly.
+	 */
 	public static class RequestContext {
-		private final String requestLine;
+		public static final String SPEED = "speed";
+		public static final String TURN_RATE = "turn";
+		// how long a move lasts, or a heartbeat's lease
+		public static final String DURATION_MS = "ms";
+
+		private static final int MAX_PARAMETERS = 4;
+
+		private String requestLine;
+		private HttpRequestParser request;
+		// parameters set by binary transports; names are the constants above
+		private final String[] parameterNames = new String[MAX_PARAMETERS];
+		private final double[] parameterValues = new double[MAX_PARAMETERS];
+		private int parameterCount = 0;
+		private long receivedNanos = 0;
+		private MotionPlan plan = null;
 
 		public RequestContext(String requestLine) {
 			this.requestLine = requestLine;
 		}
 
+		public RequestContext() {
+			this(null);
+		}
+
+		/**
+		 * Re-points this context at a parsed request. The parser must not be
+		 * reset until dispatch of the request is complete.
+		 */
+		public void setRequest(HttpRequestParser request) {
+			this.request = request;
+			this.requestLine = null;
+			this.parameterCount = 0;
+			this.plan = null;
+		}
+
+		/**
+		 * Re-points this context at a request that carries its parameters
+		 * outside of a query string; follow with setParameter() calls.
+		 */
+		public void clearRequest(String requestLine) {
+			this.request = null;
+			this.requestLine = requestLine;
+			this.parameterCount = 0;
+			this.plan = null;
+		}
+
+		public void setParameter(String name, double value) {
+			for (int i = 0; i < parameterCount; i++) {
+				if (parameterNames[i].equals(name)) {
+					parameterValues[i] = value;
+					return;
+				}
+			}
+			if (parameterCount == MAX_PARAMETERS) {
+				throw new IllegalStateException("too many request parameters");
+			}
+			parameterNames[parameterCount] = name;
+			parameterValues[parameterCount++] = value;
+		}
+
+		/**
+		 * @param nanos
+		 *            System.nanoTime() when the transport received the request
+		 */
+		public void setReceivedNanos(long nanos) {
+			this.receivedNanos = nanos;
+		}
+
+		public long getReceivedNanos() {
+			return receivedNanos;
+		}
+
+		/**
+		 * Attaches the plan a PLAN event carries.
+		 */
+		public void setPlan(MotionPlan plan) {
+			this.plan = plan;
+		}
+
+		/**
+		 * @return the plan of a PLAN event, or null
+		 */
+		public MotionPlan getPlan() {
+			return plan;
+		}
+
+		/**
+		 * Allocates the first time it is called for a request.
+		 */
 		public String getRequestLine() {
+			if (requestLine == null && request != null) {
+				requestLine = request.getRequestLine();
+			}
 			return requestLine;
 		}
+
+		public boolean hasParameter(String name) {
+			return findParameter(name) >= 0 || findValue(name) >= 0;
+		}
+
+		/**
+		 * @return the value of the named query parameter, or
+		 *         <code>defaultValue</code> if it is missing or not an integer
+		 */
+		public int getIntParameter(String name, int defaultValue) {
+			double value = getDoubleParameter(name, Double.NaN);
+			return Double.isNaN(value) || value != Math.rint(value) ? defaultValue : (int) value;
+		}
+
+		/**
+		 * @return the value of the named query parameter, or
+		 *         <code>defaultValue</code> if it is missing or not a number
+		 */
+		public double getDoubleParameter(String name, double defaultValue) {
+			int parameter = findParameter(name);
+			if (parameter >= 0) {
+				return parameterValues[parameter];
+			}
+			int start = findValue(name);
+			if (start < 0) {
+				return defaultValue;
+			}
+			byte[] data = request.getData();
+			int end = valueEnd(data, start);
+			int i = start;
+			boolean negative = false;
+			if (i < end && (data[i] == '-' || data[i] == '+')) {
+				negative = data[i] == '-';
+				i++;
+			}
+			if (i == end) {
+				return defaultValue;
+			}
+			double value = 0;
+			double scale = 0;
+			for (; i < end; i++) {
+				byte b = data[i];
+				if (b == '.' && scale == 0) {
+					scale = 1;
+				} else if (b >= '0' && b <= '9') {
+					value = value * 10 + (b - '0');
+					if (scale != 0) {
+						scale *= 10;
+					}
+				} else {
+					return defaultValue;
+				}
+			}
+			if (scale > 1) {
+				value /= scale;
+			}
+			return negative ? -value : value;
+		}
+
+		private int findParameter(String name) {
+			for (int i = 0; i < parameterCount; i++) {
+				if (parameterNames[i].equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return index of the first byte of the named parameter's value, or
+		 *         -1
+		 */
+		private int findValue(String name) {
+			if (request == null || request.getQueryStart() < 0) {
+				return -1;
+			}
+			byte[] data = request.getData();
+			int end = request.getQueryEnd();
+			int pairStart = request.getQueryStart();
+			while (pairStart < end) {
+				int nameEnd = pairStart + name.length();
+				if (nameEnd < end && data[nameEnd] == '=' && nameMatches(data, pairStart, name)) {
+					return nameEnd + 1;
+				}
+				int next = pairStart;
+				while (next < end && data[next] != '&') {
+					next++;
+				}
+				pairStart = next + 1;
+			}
+			return -1;
+		}
+
+		private int valueEnd(byte[] data, int start) {
+			int end = request.getQueryEnd();
+			int i = start;
+			while (i < end && data[i] != '&') {
+				i++;
+			}
+			return i;
+		}
+
+		private static boolean nameMatches(byte[] data, int start, String name) {
+			for (int i = 0; i < name.length(); i++) {
+				if (data[start + i] != name.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
 	}
 
 	public static final int PORT = 80;
-	public static final String GOOD_REQUEST = "HTTP/1.1 200 OK\r\n\r\nOK\r\n";
-	public static final String BAD_REQUEST = "HTTP/1.1 501 Method Not Implemented\r\n\r\nFailed to process request\r\n";
+	// streaming control channel, see WebSocketSupport
+	public static final String WEBSOCKET_PATH = "/control";
+	private static final byte[] WEBSOCKET_PATH_BYTES = WEBSOCKET_PATH.getBytes(ClientConnection.ASCII);
+	public static final String GOOD_REQUEST = "OK\r\n";
+	public static final String BAD_REQUEST = "Failed to process request\r\n";
+
+	// complete, correctly framed responses built once up front - one variant
+	// for connections that stay open and one for the last response on a
+	// connection
+	private static final byte[] OK = response("200 OK", GOOD_REQUEST, false);
+	private static final byte[] OK_CLOSE = response("200 OK", GOOD_REQUEST, true);
+	private static final byte[] NOT_FOUND = response("404 Not Found", BAD_REQUEST, false);
+	private static final byte[] NOT_FOUND_CLOSE = response("404 Not Found", BAD_REQUEST, true);
+	private static final byte[] METHOD_NOT_ALLOWED = response("405 Method Not Allowed", BAD_REQUEST, false);
+	private static final byte[] METHOD_NOT_ALLOWED_CLOSE = response("405 Method Not Allowed", BAD_REQUEST, true);
+	private static final byte[] MALFORMED_CLOSE = response("400 Bad Request", BAD_REQUEST, true);
+	private static final byte[] TOO_LARGE_CLOSE = response("413 Payload Too Large", BAD_REQUEST, true);
+	private static final byte[] NOT_IMPLEMENTED_CLOSE = response("501 Not Implemented", BAD_REQUEST, true);
+	private static final byte[] UNAVAILABLE = response("503 Service Unavailable", BAD_REQUEST, false);
+	private static final byte[] UNAVAILABLE_CLOSE = response("503 Service Unavailable", BAD_REQUEST, true);
+
+	private static byte[] response(String status, String body, boolean close) {
+		byte[] content = body.getBytes(ClientConnection.ASCII);
+		String head = "HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: " + content.length
+				+ (close ? "\r\nConnection: close" : "") + "\r\n\r\n";
+		byte[] headBytes = head.getBytes(ClientConnection.ASCII);
+		byte[] response = new byte[headBytes.length + content.length];
+		System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+		System.arraycopy(content, 0, response, headBytes.length, content.length);
+		return response;
+	}
 
-	private Map<API_EVENT, List<Callback>> listeners;
-	private final ServerSocket ss;
+	private final ApiRouter router = new ApiRouter();
+	// read-only pages; copy on write, like the router's listeners
+	private byte[][] resourcePaths = new byte[0][];
+	private ApiResource[] resources = new ApiResource[0];
+	// and the ones taking POSTs
+	private byte[][] postPaths = new byte[0][];
+	private ApiPostResource[] postResources = new ApiPostResource[0];
+	// event streams; copy on write too, but only ever read by the selector
+	// thread
+	private byte[][] streamPaths = new byte[0][];
+	private TelemetryStream[] streams = new TelemetryStream[0];
+	// reused for every page served
+	private final StringBuilder resourceText = new StringBuilder(1024);
+	private byte[] resourceResponse = new byte[1024];
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
 
 	public RestApiHandlerThread() throws IOException {
-		this.ss = new ServerSocket(PORT);
-		initListeners();
+		this(PORT);
 	}
 
-	private void initListeners() {
-		this.listeners = new HashMap<>(API_EVENT.values().length);
-		for (API_EVENT event : API_EVENT.values()) {
-			listeners.put(event, new ArrayList<Callback>());
-		}
+	public RestApiHandlerThread(int port) throws IOException {
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().setReuseAddress(true);
+		this.serverChannel.bind(new InetSocketAddress(port));
+		this.serverChannel.configureBlocking(false);
+		this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 	}
 
 	public void registerListener(API_EVENT event, Callback callback) {
-		this.listeners.get(event).add(callback);
+		this.router.registerListener(event, callback);
 	}
 
 	public void registerListener(Callback callback) {
-		this.listeners.get(API_EVENT.ALL).add(callback);
+		this.router.registerListener(API_EVENT.ALL, callback);
+	}
+
+	/**
+	 * Serves <code>resource</code> on GET requests for <code>path</code>.
+	 * Meant to be called at startup, before requests arrive.
+	 */
+	synchronized public void registerResource(String path, ApiResource resource) {
+		byte[][] paths = new byte[resourcePaths.length + 1][];
+		ApiResource[] updated = new ApiResource[resources.length + 1];
+		System.arraycopy(resourcePaths, 0, paths, 0, resourcePaths.length);
+		System.arraycopy(resources, 0, updated, 0, resources.length);
+		paths[resourcePaths.length] = path.getBytes(ClientConnection.ASCII);
+		updated[resources.length] = resource;
+		resources = updated;
+		resourcePaths = paths;
+	}
+
+	/**
+	 * Hands the body of POST requests for <code>path</code> to
+	 * <code>resource</code>. Meant to be called at startup, before requests
+	 * arrive.
+	 */
+	synchronized public void registerPostResource(String path, ApiPostResource resource) {
+		byte[][] paths = new byte[postPaths.length + 1][];
+		ApiPostResource[] updated = new ApiPostResource[postResources.length + 1];
+		System.arraycopy(postPaths, 0, paths, 0, postPaths.length);
+		System.arraycopy(postResources, 0, updated, 0, postResources.length);
+		paths[postPaths.length] = path.getBytes(ClientConnection.ASCII);
+		updated[postResources.length] = resource;
+		postResources = updated;
+		postPaths = paths;
+	}
+
+	/**
+	 * Streams <code>stream</code>'s frames to clients that GET
+	 * <code>path</code>, until they close the connection. Meant to be called
+	 * at startup, before requests arrive.
+	 */
+	synchronized public void registerStream(String path, TelemetryStream stream) {
+		byte[][] paths = new byte[streamPaths.length + 1][];
+		TelemetryStream[] updated = new TelemetryStream[streams.length + 1];
+		System.arraycopy(streamPaths, 0, paths, 0, streamPaths.length);
+		System.arraycopy(streams, 0, updated, 0, streams.length);
+		paths[streamPaths.length] = path.getBytes(ClientConnection.ASCII);
+		updated[streams.length] = stream;
+		stream.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				selector.wakeup();
+			}
+		});
+		streams = updated;
+		streamPaths = paths;
+	}
+
+	public ApiRouter getRouter() {
+		return router;
+	}
+
+	public int getLocalPort() {
+		return serverChannel.socket().getLocalPort();
 	}
 
 	synchronized public void closeServerSocket() {
 		try {
-			this.ss.close();
+			this.serverChannel.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		// get the selector thread out of select() so it can shut down
+		selector.wakeup();
 	}
-	
+
+	/**
+	 * Serves every client connection from this one thread. Each connection
+	 * has its own read buffer and pending output, so a client that is idle,
+	 * slow or half way through a request never holds up commands arriving on
+	 * another connection.
+	 */
 	@Override
 	public void run() {
 		// Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-		BufferedReader br = null;
-		PrintStream ps = null;
-
 		try {
-
-			while (true) {
-				Socket sock = ss.accept();
-				InputStream is = sock.getInputStream();
-				OutputStream os = sock.getOutputStream();
-
-				br = new BufferedReader(new InputStreamReader(is));
-				ps = new PrintStream(os);
-
-				// if there are multiple requests since the last process run,
-				// process them one by one - so that we don't miss out on
-				// anything
-				while (true) {
-
-					String cmd = br.readLine();
-					if (cmd == null)
-						break;
-
-					//System.out.println("Received request: " + cmd);
-					String[] tokens = cmd.split(" ");
-					if (tokens.length <= 1 || !tokens[0].equals("GET")) {
-						ps.println(BAD_REQUEST);
-						break;
+			while (serverChannel.isOpen()) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
 					}
-
-					String requestedQueryPath = tokens[1];
-					API_EVENT event = API_EVENT.getEventFromQuery(requestedQueryPath);
-					if (event == null) {
-						ps.println(BAD_REQUEST);
-						break;
-					}
-					System.out.println("Picked up event: " + event);
-					
-					
-					for (Callback callback : listeners.get(event)) {
-						callback.handleEvent(event, new RequestContext(cmd));
+					if (key.isAcceptable()) {
+						accept();
+						continue;
 					}
-
-					// now call all the callbacks associated with the special
-					// ALL event
-					for (Callback callback : listeners.get(API_EVENT.ALL)) {
-						callback.handleEvent(API_EVENT.ALL, new RequestContext(cmd));
+					ClientConnection connection = (ClientConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException e) {
+						// only this client is affected
+						connection.close();
 					}
-
-					// now call all the callbacks associated with these events//
-					ps.println(GOOD_REQUEST);
-		
 				}
-				ps.close();
-				br.close();
-
+				// a stream with a new frame wakes the selector to send it
+				TelemetryStream[] current = streams;
+				for (int i = 0; i < current.length; i++) {
+					current[i].deliver();
+				}
 			}
 		} catch (IOException ie) {
 			throw new IllegalStateException(ie);
 		} finally {
-			if (br != null) {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof ClientConnection) {
+					((ClientConnection) key.attachment()).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new ClientConnection(channel, key));
+	}
+
+	private void read(ClientConnection connection) throws IOException {
+		if (!connection.fill()) {
+			connection.close();
+			return;
+		}
+		long receivedNanos = System.nanoTime();
+		// the client may have pipelined several requests since the last read -
+		// answer them all in order, then write the responses in one go
+		while (!connection.isClosing()) {
+			if (connection.isStreaming()) {
+				// an event stream only goes one way
+				connection.consumeInput(connection.getInputLength());
+				break;
+			}
+			if (connection.isWebSocket()) {
+				WebSocketSupport.readFrames(connection, router, receivedNanos);
+				break;
+			}
+			HttpRequestParser.Status status = connection.parseRequest();
+			if (status == HttpRequestParser.Status.INCOMPLETE) {
+				if (connection.isInputFull() && !connection.growInput()) {
+					reject(connection, TOO_LARGE_CLOSE);
+				}
+				break;
+			} else if (status == HttpRequestParser.Status.MALFORMED) {
+				reject(connection, MALFORMED_CLOSE);
+			} else if (status == HttpRequestParser.Status.UNSUPPORTED) {
+				reject(connection, NOT_IMPLEMENTED_CLOSE);
+			} else {
+				HttpRequestParser request = connection.getRequest();
+				boolean keepAlive = request.isKeepAlive();
+				connection.getContext().setReceivedNanos(receivedNanos);
+				handleRequest(request, connection, keepAlive);
+				connection.consumeRequest();
+				// an event stream stays open whatever the request said
+				if (!keepAlive && !connection.isStreaming()) {
+					connection.closeAfterFlush();
+				}
+			}
+		}
+		if (!connection.isClosing()) {
+			connection.flush();
+		}
+	}
+
+	private void reject(ClientConnection connection, byte[] response) throws IOException {
+		connection.queue(response);
+		connection.closeAfterFlush();
+	}
+
+	private void handleRequest(HttpRequestParser request, ClientConnection connection, boolean keepAlive)
+			throws IOException {
+		if (request.isMethod(HttpRequestParser.POST)) {
+			handlePost(request, connection, keepAlive);
+			return;
+		}
+		if (!request.isMethod(HttpRequestParser.GET)) {
+			connection.queue(keepAlive ? METHOD_NOT_ALLOWED : METHOD_NOT_ALLOWED_CLOSE);
+			return;
+		}
+
+		//System.out.println("Received request: " + request.getRequestLine());
+		if (request.isPath(WEBSOCKET_PATH_BYTES)) {
+			if (request.isWebSocketUpgrade()) {
+				connection.queue(WebSocketSupport.handshakeResponse(request));
+				connection.setWebSocket();
+			} else {
+				connection.queue(keepAlive ? NOT_FOUND : NOT_FOUND_CLOSE);
+			}
+			return;
+		}
+		TelemetryStream[] eventStreams = streams;
+		byte[][] eventPaths = streamPaths;
+		for (int i = 0; i < eventStreams.length && i < eventPaths.length; i++) {
+			if (request.isPath(eventPaths[i])) {
+				RequestContext context = connection.getContext();
+				context.setRequest(request);
+				if (!eventStreams[i].subscribe(connection, context.getIntParameter(TelemetryStream.RATE, 0))) {
+					// enough viewers already
+					connection.queue(keepAlive ? UNAVAILABLE : UNAVAILABLE_CLOSE);
 				}
+				return;
 			}
-			if (ps != null) {
-				ps.close();
+		}
+		ApiResource[] pages = resources;
+		byte[][] pagePaths = resourcePaths;
+		for (int i = 0; i < pages.length && i < pagePaths.length; i++) {
+			if (request.isPath(pagePaths[i])) {
+				serveResource(pages[i], request, connection, keepAlive);
+				return;
+			}
+		}
+		API_EVENT event = router.route(request.getData(), request.getPathStart(), request.getPathEnd());
+		if (event == null) {
+			connection.queue(keepAlive ? NOT_FOUND : NOT_FOUND_CLOSE);
+			return;
+		}
+		//System.out.println("Picked up event: " + event);
+
+		RequestContext context = connection.getContext();
+		context.setRequest(request);
+		if (!router.submit(event, context)) {
+			// the command queue is full - tell the client to back off
+			connection.queue(keepAlive ? UNAVAILABLE : UNAVAILABLE_CLOSE);
+			return;
+		}
+
+		connection.queue(keepAlive ? OK : OK_CLOSE);
+	}
+
+	private void handlePost(HttpRequestParser request, ClientConnection connection, boolean keepAlive)
+			throws IOException {
+		ApiPostResource[] targets = postResources;
+		byte[][] targetPaths = postPaths;
+		for (int i = 0; i < targets.length && i < targetPaths.length; i++) {
+			if (request.isPath(targetPaths[i])) {
+				RequestContext context = connection.getContext();
+				context.setRequest(request);
+				resourceText.setLength(0);
+				String status = targets[i].post(context, request.getData(), request.getBodyStart(),
+						request.getContentLength(), resourceText);
+				queueText(status, connection, keepAlive);
+				return;
 			}
 		}
+		// the command paths only take GETs
+		connection.queue(keepAlive ? METHOD_NOT_ALLOWED : METHOD_NOT_ALLOWED_CLOSE);
+	}
+
+	private void serveResource(ApiResource resource, HttpRequestParser request, ClientConnection connection,
+			boolean keepAlive) throws IOException {
+		RequestContext context = connection.getContext();
+		context.setRequest(request);
+		resourceText.setLength(0);
+		resource.render(context, resourceText);
+		queueText("200 OK", connection, keepAlive);
+	}
+
+	/**
+	 * Queues resourceText as the body of a response with the given status.
+	 */
+	private void queueText(String status, ClientConnection connection, boolean keepAlive) throws IOException {
+		int bodyLength = resourceText.length();
+		resourceText.append("HTTP/1.1 ").append(status).append("\r\nContent-Type: text/plain\r\nContent-Length: ")
+				.append(bodyLength).append(keepAlive ? "" : "\r\nConnection: close").append("\r\n\r\n");
+		// the head was appended after the body - write it out first
+		int length = resourceText.length();
+		if (resourceResponse.length < length) {
+			resourceResponse = new byte[Math.max(length, resourceResponse.length * 2)];
+		}
+		int headLength = length - bodyLength;
+		for (int i = 0; i < headLength; i++) {
+			resourceResponse[i] = (byte) resourceText.charAt(bodyLength + i);
+		}
+		for (int i = 0; i < bodyLength; i++) {
+			resourceResponse[headLength + i] = (byte) resourceText.charAt(i);
+		}
+		connection.queue(resourceResponse, 0, length);
 	}
 }
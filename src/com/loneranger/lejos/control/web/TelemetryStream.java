@@ -0,0 +1,388 @@
+package com.loneranger.lejos.control.web;
+
+import java.io.IOException;
+
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.hardware.TachoMotor;
+import com.loneranger.lejos.sensing.DistanceSampler;
+import com.loneranger.lejos.sensing.PoseTracker;
+import com.loneranger.lejos.status.StatusModel;
+
+/**
+ * Streams the robot's state to viewers as Server-Sent Events on
+ * {@link #PATH}. A frame is taken on this stream's own thread at a fixed
+ * rate, and is one event whose data is a line of JSON:
+ *
+ * <pre>
+ * id: 42
+ * data: {"seq":42,"t":2100,"behaviour":3,"mode":"DRIVE",
+ *        "left":{"speed":-360,"tacho":-7560},"right":{"speed":-360,"tacho":-7560},
+ *        "pose":{"x":-315.2,"y":0.0,"heading":0.0,"speed":150,"turn":0},"ir":54.3}
+ * </pre>
+ *
+ * (on one line) with the clock time in ms, the index of the behaviour the
+ * arbitrator last activated, each drive motor's speed in degrees/s and tacho
+ * count, the odometry pose as on /pose and the smoothed IR distance in cm,
+ * null when nothing is in range. <code>/telemetry?hz=5</code> asks for fewer
+ * frames than the stream takes.
+ *
+ * Frames are encoded straight into a ring of {@link #RING_SIZE} reusable
+ * buffers, and the server's selector thread copies them out to each
+ * subscriber as it is woken for them. A subscriber is only given frames once
+ * its socket has taken everything it was given before, and then at most the
+ * newest {@link #MAX_QUEUED_FRAMES}: when it doesn't keep up, the oldest
+ * frames are dropped, so it never falls behind by more than a few and
+ * nothing ever waits for a viewer - neither this thread nor the server
+ * thread the commands arrive on. Nothing is encoded while nobody
+ * is watching, and steady streaming allocates nothing.
+ */
+public class TelemetryStream implements Runnable {
+	public static final String PATH = "/telemetry";
+	public static final String RATE = "hz";
+	// frames per second
+	public static final int DEFAULT_RATE = 20;
+	public static final int MAX_RATE = 50;
+	public static final int MAX_SUBSCRIBERS = 4;
+	public static final int RING_SIZE = 16;
+	// sent to a subscriber at once, the newest it hasn't had
+	public static final int MAX_QUEUED_FRAMES = 4;
+	// longest frame, well over what the fields above take
+	static final int FRAME_SIZE = 384;
+	private static final int MAX_MODE_LENGTH = 16;
+
+	static final byte[] RESPONSE_HEAD = ("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+			+ "Cache-Control: no-cache\r\nConnection: keep-alive\r\n\r\nretry: 1000\n\n")
+			.getBytes(ClientConnection.ASCII);
+
+	/**
+	 * One viewer. Selector thread only.
+	 */
+	static class Subscriber {
+		final ClientConnection connection;
+		// take every nth frame
+		final int every;
+		// the next frame to send
+		long next;
+
+		Subscriber(ClientConnection connection, int every, long next) {
+			this.connection = connection;
+			this.every = every;
+			this.next = next;
+		}
+	}
+
+	private final Clock clock;
+	private final StatusModel status;
+	private final TachoMotor left;
+	private final TachoMotor right;
+	private final PoseTracker pose;
+	private final DistanceSampler distance;
+	private final int rate;
+	private final long periodNanos;
+
+	// each slot is locked while it is written or copied out, and stamped
+	// with the sequence of the frame in it
+	private final byte[][] frames = new byte[RING_SIZE][FRAME_SIZE];
+	private final int[] frameLengths = new int[RING_SIZE];
+	private final long[] frameSequences = new long[RING_SIZE];
+	// the last frame completed, 0 before the first
+	volatile private long published = 0;
+	volatile private Runnable wakeup = null;
+
+	// stream thread only
+	private final PoseTracker.Snapshot poseSnapshot = new PoseTracker.Snapshot();
+	private final DistanceSampler.Snapshot distanceSnapshot = new DistanceSampler.Snapshot();
+	private byte[] frame;
+	private int length;
+
+	// selector thread only
+	private Subscriber[] subscribers = new Subscriber[0];
+	private long delivered = 0;
+	// written by the selector thread, read by anyone
+	volatile private int subscriberCount = 0;
+	volatile private long sentCount = 0;
+	volatile private long droppedCount = 0;
+
+	public TelemetryStream(Clock clock, StatusModel status, TachoMotor left, TachoMotor right, PoseTracker pose,
+			DistanceSampler distance) {
+		this(clock, status, left, right, pose, distance, DEFAULT_RATE);
+	}
+
+	/**
+	 * @param rate
+	 *            frames per second, up to {@link #MAX_RATE}
+	 */
+	public TelemetryStream(Clock clock, StatusModel status, TachoMotor left, TachoMotor right, PoseTracker pose,
+			DistanceSampler distance, int rate) {
+		if (rate < 1 || rate > MAX_RATE) {
+			throw new IllegalArgumentException("rate must be from 1 to " + MAX_RATE + " frames per second");
+		}
+		this.clock = clock;
+		this.status = status;
+		this.left = left;
+		this.right = right;
+		this.pose = pose;
+		this.distance = distance;
+		this.rate = rate;
+		this.periodNanos = 1000000000L / rate;
+	}
+
+	/**
+	 * Takes frames until interrupted, on the same fixed-rate schedule as the
+	 * DistanceSampler.
+	 */
+	@Override
+	public void run() {
+		long due = clock.nanoTime();
+		while (!Thread.currentThread().isInterrupted()) {
+			if (subscriberCount > 0) {
+				publishOnce();
+			}
+			due += periodNanos;
+			long wait = due - clock.nanoTime();
+			if (wait <= 0) {
+				// fell behind - start again from now rather than catch up
+				due = clock.nanoTime();
+				continue;
+			}
+			try {
+				clock.sleepNanos(wait);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Encodes and publishes one frame, and wakes the server to send it. Only
+	 * ever called by one thread - the stream's own, or a tool stepping it by
+	 * hand.
+	 */
+	public void publishOnce() {
+		long sequence = published + 1;
+		int slot = (int) (sequence % RING_SIZE);
+		pose.getSnapshot(poseSnapshot);
+		distance.getSnapshot(distanceSnapshot);
+		synchronized (frames[slot]) {
+			frame = frames[slot];
+			length = 0;
+			put("id: ").put(sequence).put("\ndata: {\"seq\":").put(sequence);
+			put(",\"t\":").put(clock.nanoTime() / 1000000);
+			put(",\"behaviour\":").put(status.getActivePriority());
+			put(",\"mode\":\"").putMode(status.getMode()).put('"');
+			put(",\"left\":{\"speed\":").put(left.getRotationSpeed()).put(",\"tacho\":").put(left.getTachoCount());
+			put("},\"right\":{\"speed\":").put(right.getRotationSpeed()).put(",\"tacho\":")
+					.put(right.getTachoCount());
+			put("},\"pose\":{\"x\":").putTenths(poseSnapshot.getX());
+			put(",\"y\":").putTenths(poseSnapshot.getY());
+			put(",\"heading\":").putTenths(poseSnapshot.getHeading());
+			put(",\"speed\":").put(Math.round(poseSnapshot.getLinearVelocity()));
+			put(",\"turn\":").put(Math.round(poseSnapshot.getAngularVelocity()));
+			put("},\"ir\":");
+			float cm = distanceSnapshot.getSmoothed();
+			if (Float.isInfinite(cm) || Float.isNaN(cm)) {
+				put("null");
+			} else {
+				putTenths(cm);
+			}
+			put("}\n\n");
+			frameLengths[slot] = length;
+			frameSequences[slot] = sequence;
+			frame = null;
+		}
+		published = sequence;
+		Runnable wakeup = this.wakeup;
+		if (wakeup != null) {
+			wakeup.run();
+		}
+	}
+
+	private TelemetryStream put(String text) {
+		int end = Math.min(text.length(), FRAME_SIZE - length);
+		for (int i = 0; i < end; i++) {
+			frame[length++] = (byte) text.charAt(i);
+		}
+		return this;
+	}
+
+	private TelemetryStream put(char c) {
+		if (length < FRAME_SIZE) {
+			frame[length++] = (byte) c;
+		}
+		return this;
+	}
+
+	private TelemetryStream put(long value) {
+		if (value < 0) {
+			put('-');
+			value = -value;
+		}
+		// digits backwards into the frame, then turned round
+		int start = length;
+		do {
+			put((char) ('0' + value % 10));
+			value /= 10;
+		} while (value > 0);
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			byte b = frame[i];
+			frame[i] = frame[j];
+			frame[j] = b;
+		}
+		return this;
+	}
+
+	/**
+	 * Puts <code>value</code> to one decimal place.
+	 */
+	private TelemetryStream putTenths(double value) {
+		long tenths = Math.round(value * 10);
+		if (tenths < 0) {
+			put('-');
+			tenths = -tenths;
+		}
+		return put(tenths / 10).put('.').put((char) ('0' + tenths % 10));
+	}
+
+	/**
+	 * Puts the mode shortened and without anything that needs escaping.
+	 */
+	private TelemetryStream putMode(String mode) {
+		int end = Math.min(mode.length(), MAX_MODE_LENGTH);
+		for (int i = 0; i < end; i++) {
+			char c = mode.charAt(i);
+			put(c < ' ' || c > '~' || c == '"' || c == '\\' ? '?' : c);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the number of frames taken
+	 */
+	public long getPublishedCount() {
+		return published;
+	}
+
+	/**
+	 * @return frames sent to subscribers, counting each subscriber
+	 */
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * @return frames subscribers wanted but didn't get because they fell
+	 *         behind
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public int getSubscriberCount() {
+		return subscriberCount;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	/**
+	 * Run by the stream thread after each frame, to wake the server's
+	 * selector.
+	 */
+	void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Starts streaming to <code>connection</code>, with the frames after the
+	 * one last taken. Selector thread only.
+	 *
+	 * @param hz
+	 *            how many frames a second the subscriber wants, 0 for all of
+	 *            them
+	 * @return false if there are already {@link #MAX_SUBSCRIBERS}
+	 */
+	boolean subscribe(ClientConnection connection, int hz) throws IOException {
+		if (subscribers.length == MAX_SUBSCRIBERS) {
+			return false;
+		}
+		int every = hz <= 0 || hz >= rate ? 1 : Math.round((float) rate / hz);
+		Subscriber[] updated = new Subscriber[subscribers.length + 1];
+		System.arraycopy(subscribers, 0, updated, 0, subscribers.length);
+		updated[subscribers.length] = new Subscriber(connection, every, published + 1);
+		subscribers = updated;
+		subscriberCount = updated.length;
+		connection.queue(RESPONSE_HEAD);
+		connection.setStreaming();
+		return true;
+	}
+
+	/**
+	 * Sends the frames taken since the last call to every subscriber with
+	 * room for them, and forgets subscribers whose connections have closed.
+	 * Selector thread only.
+	 */
+	void deliver() {
+		long latest = published;
+		if (latest == delivered) {
+			return;
+		}
+		delivered = latest;
+		int live = 0;
+		for (int i = 0; i < subscribers.length; i++) {
+			Subscriber subscriber = subscribers[i];
+			ClientConnection connection = subscriber.connection;
+			if (!connection.isClosing()) {
+				try {
+					send(subscriber, latest);
+					connection.flush();
+				} catch (IOException e) {
+					// only this viewer is affected
+					connection.close();
+				}
+			}
+			if (!connection.isClosing()) {
+				subscribers[live++] = subscriber;
+			}
+		}
+		if (live < subscribers.length) {
+			Subscriber[] remaining = new Subscriber[live];
+			System.arraycopy(subscribers, 0, remaining, 0, live);
+			subscribers = remaining;
+			subscriberCount = live;
+		}
+	}
+
+	private void send(Subscriber subscriber, long latest) throws IOException {
+		ClientConnection connection = subscriber.connection;
+		if (subscriber.next > latest || connection.getPendingOutput() > 0) {
+			// nothing new, or the socket hasn't taken what it was given yet -
+			// frames wait in the ring until it has
+			return;
+		}
+		long waiting = (latest - subscriber.next) / subscriber.every + 1;
+		if (waiting > MAX_QUEUED_FRAMES) {
+			// fallen behind - drop the oldest
+			long skipped = waiting - MAX_QUEUED_FRAMES;
+			subscriber.next += skipped * subscriber.every;
+			droppedCount += skipped;
+		}
+		while (subscriber.next <= latest) {
+			int slot = (int) (subscriber.next % RING_SIZE);
+			boolean copied = false;
+			synchronized (frames[slot]) {
+				if (frameSequences[slot] == subscriber.next) {
+					connection.queue(frames[slot], 0, frameLengths[slot]);
+					copied = true;
+				}
+			}
+			if (copied) {
+				sentCount++;
+			} else {
+				// already overwritten by a newer one
+				droppedCount++;
+			}
+			subscriber.next += subscriber.every;
+		}
+	}
+}
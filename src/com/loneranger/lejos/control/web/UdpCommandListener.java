@@ -0,0 +1,198 @@
+package com.loneranger.lejos.control.web;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * Alternative to the HTTP transport for driving over flaky Wi-Fi: commands
+ * arrive as fixed size UDP datagrams, so a lost packet is simply superseded by
+ * the next one instead of stalling a TCP stream. Every datagram is
+ * {@link #DATAGRAM_SIZE} bytes, big endian:
+ *
+ * <pre>
+ * byte 0       MAGIC
+ * byte 1       API_EVENT ordinal
+ * byte 2       flags - FLAG_RESET makes the listener accept the sequence
+ *              number as is (e.g. after the client restarts)
+ * byte 3       reserved
+ * bytes 4-7    sequence number, incremented by the client for every datagram
+ * bytes 8-11   speed
+ * bytes 12-15  turn rate
+ * </pre>
+ *
+ * A datagram whose sequence number is not newer than the last one accepted
+ * from the same sender (address and port) is stale or reordered and is
+ * dropped rather than acted on. Each sender's sequence is tracked apart, so
+ * two clients don't drop each other's datagrams and a FLAG_RESET only
+ * resyncs its own sender. Up to {@link #MAX_SENDERS} are tracked; a new
+ * sender beyond that takes the place of the one heard from longest ago.
+ * Accepted commands go to the same listeners as the HTTP path through the
+ * shared {@link ApiRouter}. The packet, its buffer and the request context are
+ * allocated once, so receiving allocates nothing.
+ */
+public class UdpCommandListener implements Runnable, Closeable {
+	public static final int DEFAULT_PORT = 8888;
+	public static final int DATAGRAM_SIZE = 16;
+	public static final byte MAGIC = 0x54;
+	public static final int FLAG_RESET = 0x01;
+	public static final int MAX_SENDERS = 8;
+
+	private static final String REQUEST_LINE = "UDP";
+
+	private final DatagramSocket socket;
+	private final ApiRouter router;
+	// one byte more than a datagram so that oversized ones can be detected
+	private final byte[] buffer = new byte[DATAGRAM_SIZE + 1];
+	private final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+	private final RequestContext context = new RequestContext();
+
+	// per sender, in no particular order; only touched by the receiving
+	// thread
+	private final InetAddress[] senderAddresses = new InetAddress[MAX_SENDERS];
+	private final int[] senderPorts = new int[MAX_SENDERS];
+	private final int[] lastSequences = new int[MAX_SENDERS];
+	private final long[] lastHeardNanos = new long[MAX_SENDERS];
+
+	volatile private long accepted = 0;
+	volatile private long stale = 0;
+	volatile private long malformed = 0;
+
+	public UdpCommandListener(ApiRouter router) throws SocketException {
+		this(DEFAULT_PORT, router);
+	}
+
+	public UdpCommandListener(int port, ApiRouter router) throws SocketException {
+		this.socket = new DatagramSocket(port);
+		this.router = router;
+	}
+
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (!socket.isClosed()) {
+			packet.setLength(buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (IOException e) {
+				if (socket.isClosed()) {
+					break;
+				}
+				e.printStackTrace();
+				continue;
+			}
+			long receivedNanos = System.nanoTime();
+			handleDatagram(receivedNanos);
+		}
+	}
+
+	private void handleDatagram(long receivedNanos) {
+		if (packet.getLength() != DATAGRAM_SIZE || buffer[0] != MAGIC) {
+			malformed++;
+			return;
+		}
+		API_EVENT event = API_EVENT.fromOrdinal(buffer[1] & 0xff);
+		// events without a path, such as ALL, aren't commands a client sends
+		if (event == null || event.getQueryPath() == null) {
+			malformed++;
+			return;
+		}
+		int sequence = readInt(4);
+		boolean reset = (buffer[2] & FLAG_RESET) != 0;
+		int sender = findSender(packet.getAddress(), packet.getPort());
+		if (sender < 0) {
+			// a new sender syncs to its first datagram
+			sender = -sender - 1;
+			senderAddresses[sender] = packet.getAddress();
+			senderPorts[sender] = packet.getPort();
+		} else if (!reset && sequence - lastSequences[sender] <= 0) {
+			// serial number arithmetic, so wrapping past Integer.MAX_VALUE
+			// is fine
+			stale++;
+			return;
+		}
+		lastSequences[sender] = sequence;
+		lastHeardNanos[sender] = receivedNanos;
+		accepted++;
+
+		context.clearRequest(REQUEST_LINE);
+		context.setReceivedNanos(receivedNanos);
+		context.setParameter(RequestContext.SPEED, readInt(8));
+		context.setParameter(RequestContext.TURN_RATE, readInt(12));
+		router.submit(event, context);
+	}
+
+	/**
+	 * @return the sender's slot, or if it has none -(the slot to give it) -
+	 *         1: a free one, or else the one heard from longest ago
+	 */
+	private int findSender(InetAddress address, int port) {
+		int replace = 0;
+		for (int i = 0; i < MAX_SENDERS; i++) {
+			if (senderAddresses[i] == null) {
+				return -i - 1;
+			}
+			if (senderPorts[i] == port && senderAddresses[i].equals(address)) {
+				return i;
+			}
+			if (lastHeardNanos[i] - lastHeardNanos[replace] < 0) {
+				replace = i;
+			}
+		}
+		return -replace - 1;
+	}
+
+	private int readInt(int offset) {
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+				| ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Encodes a command datagram - for clients and tools written in Java.
+	 */
+	public static void encode(byte[] datagram, API_EVENT event, int flags, int sequence, int speed, int turnRate) {
+		datagram[0] = MAGIC;
+		datagram[1] = (byte) event.ordinal();
+		datagram[2] = (byte) flags;
+		datagram[3] = 0;
+		writeInt(datagram, 4, sequence);
+		writeInt(datagram, 8, speed);
+		writeInt(datagram, 12, turnRate);
+	}
+
+	private static void writeInt(byte[] datagram, int offset, int value) {
+		datagram[offset] = (byte) (value >> 24);
+		datagram[offset + 1] = (byte) (value >> 16);
+		datagram[offset + 2] = (byte) (value >> 8);
+		datagram[offset + 3] = (byte) value;
+	}
+
+	public long getAcceptedCount() {
+		return accepted;
+	}
+
+	/**
+	 * @return datagrams dropped because their sequence number was old
+	 */
+	public long getStaleCount() {
+		return stale;
+	}
+
+	public long getMalformedCount() {
+		return malformed;
+	}
+
+	@Override
+	public void close() {
+		socket.close();
+	}
+}
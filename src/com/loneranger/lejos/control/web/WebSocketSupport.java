@@ -0,0 +1,181 @@
+package com.loneranger.lejos.control.web;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+
+/**
+ * The WebSocket control channel served at
+ * {@link RestApiHandlerThread#WEBSOCKET_PATH}. Once upgraded, a client streams
+ * binary frames made of one or more 5 byte control records:
+ *
+ * <pre>
+ * byte 0     API_EVENT ordinal (DRIVE, FORWARD, LEFT, STOP, ...)
+ * bytes 1-2  speed, signed 16 bit big endian
+ * bytes 3-4  turn rate, signed 16 bit big endian
+ * </pre>
+ *
+ * Each record is dispatched to the same listeners as the HTTP path, with the
+ * speed and turn rate as the SPEED and TURN_RATE request parameters, so a
+ * stream of DRIVE records steers continuously. Nothing is sent back for
+ * control records, so a joystick can stream them as fast as it likes. Frames
+ * are unmasked in place in the connection's read buffer, so the steady state
+ * allocates nothing.
+ */
+class WebSocketSupport {
+	static final int RECORD_SIZE = 5;
+
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+	private static final String CONTROL_REQUEST_LINE = "WS " + RestApiHandlerThread.WEBSOCKET_PATH;
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+	private static final int CLOSE_UNSUPPORTED_DATA = 1003;
+	private static final int CLOSE_TOO_BIG = 1009;
+
+	private static final int MAX_CONTROL_PAYLOAD = 125;
+
+	/**
+	 * Builds the 101 response for an upgrade request. Allocates, but only once
+	 * per connection.
+	 */
+	static byte[] handshakeResponse(HttpRequestParser request) {
+		String key = new String(request.getData(), request.getWebSocketKeyStart(),
+				request.getWebSocketKeyEnd() - request.getWebSocketKeyStart(), ClientConnection.ASCII);
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(ClientConnection.ASCII));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		return ("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + base64(digest) + "\r\n\r\n").getBytes(ClientConnection.ASCII);
+	}
+
+	/**
+	 * Handles every complete frame in the connection's read buffer, leaving
+	 * a partial frame in place for the next read.
+	 */
+	static void readFrames(ClientConnection connection, ApiRouter router, long receivedNanos) throws IOException {
+		byte[] data = connection.getInputData();
+		while (!connection.isClosing()) {
+			int available = connection.getInputLength();
+			if (available < 2) {
+				return;
+			}
+			boolean fin = (data[0] & 0x80) != 0;
+			int opcode = data[0] & 0x0f;
+			boolean masked = (data[1] & 0x80) != 0;
+			int length = data[1] & 0x7f;
+			int header = 2;
+			if (length == 126) {
+				if (available < 4) {
+					return;
+				}
+				length = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+				header = 4;
+			} else if (length == 127) {
+				close(connection, CLOSE_TOO_BIG);
+				return;
+			}
+			if (!masked) {
+				// clients must mask everything they send
+				close(connection, CLOSE_PROTOCOL_ERROR);
+				return;
+			}
+			int maskStart = header;
+			int payloadStart = header + 4;
+			if (payloadStart + length > data.length) {
+				close(connection, CLOSE_TOO_BIG);
+				return;
+			}
+			if (available < payloadStart + length) {
+				return;
+			}
+			for (int i = 0; i < length; i++) {
+				data[payloadStart + i] ^= data[maskStart + (i & 3)];
+			}
+
+			switch (opcode) {
+			case OPCODE_BINARY:
+				if (!fin || length % RECORD_SIZE != 0) {
+					close(connection, CLOSE_UNSUPPORTED_DATA);
+					return;
+				}
+				dispatchRecords(connection, router, data, payloadStart, length, receivedNanos);
+				break;
+			case OPCODE_PING:
+				if (length > MAX_CONTROL_PAYLOAD) {
+					close(connection, CLOSE_PROTOCOL_ERROR);
+					return;
+				}
+				// reuse the ping's own header space for the pong
+				data[payloadStart - 2] = (byte) (0x80 | OPCODE_PONG);
+				data[payloadStart - 1] = (byte) length;
+				connection.queue(data, payloadStart - 2, length + 2);
+				break;
+			case OPCODE_PONG:
+				break;
+			case OPCODE_CLOSE:
+				connection.queue(new byte[] { (byte) (0x80 | OPCODE_CLOSE), 0 });
+				connection.closeAfterFlush();
+				return;
+			case OPCODE_TEXT:
+			case OPCODE_CONTINUATION:
+			default:
+				close(connection, CLOSE_UNSUPPORTED_DATA);
+				return;
+			}
+			connection.consumeInput(payloadStart + length);
+		}
+	}
+
+	private static void dispatchRecords(ClientConnection connection, ApiRouter router, byte[] data, int start,
+			int length, long receivedNanos) {
+		RequestContext context = connection.getContext();
+		for (int record = start; record < start + length; record += RECORD_SIZE) {
+			API_EVENT event = API_EVENT.fromOrdinal(data[record] & 0xff);
+			// events without a path, such as ALL, aren't commands a client
+			// sends
+			if (event == null || event.getQueryPath() == null) {
+				continue;
+			}
+			context.clearRequest(CONTROL_REQUEST_LINE);
+			context.setReceivedNanos(receivedNanos);
+			context.setParameter(RequestContext.SPEED, (short) (((data[record + 1] & 0xff) << 8) | (data[record + 2] & 0xff)));
+			context.setParameter(RequestContext.TURN_RATE,
+					(short) (((data[record + 3] & 0xff) << 8) | (data[record + 4] & 0xff)));
+			router.submit(event, context);
+		}
+	}
+
+	private static void close(ClientConnection connection, int code) throws IOException {
+		connection.queue(new byte[] { (byte) (0x80 | OPCODE_CLOSE), 2, (byte) (code >> 8), (byte) code });
+		connection.closeAfterFlush();
+	}
+
+	private static String base64(byte[] bytes) {
+		StringBuilder encoded = new StringBuilder((bytes.length + 2) / 3 * 4);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int b0 = bytes[i] & 0xff;
+			int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xff : 0;
+			int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xff : 0;
+			encoded.append(BASE64[b0 >> 2]);
+			encoded.append(BASE64[((b0 & 0x03) << 4) | (b1 >> 4)]);
+			encoded.append(i + 1 < bytes.length ? BASE64[((b1 & 0x0f) << 2) | (b2 >> 6)] : '=');
+			encoded.append(i + 2 < bytes.length ? BASE64[b2 & 0x3f] : '=');
+		}
+		return encoded.toString();
+	}
+}
@@ -0,0 +1,16 @@
+package com.loneranger.lejos.hardware;
+
+/**
+ * Source of time for everything that paces itself. On the brick this is the
+ * system clock; in simulation it is a virtual clock that only moves when the
+ * simulation steps, so runs are repeatable.
+ */
+public interface Clock {
+
+	public long nanoTime();
+
+	/**
+	 * Sleeps for the given time as measured by this clock.
+	 */
+	public void sleepNanos(long nanos) throws InterruptedException;
+}
@@ -0,0 +1,15 @@
+package com.loneranger.lejos.hardware;
+
+/**
+ * The text display, addressed in character cells like lejos' LCD.
+ */
+public interface Display {
+	public static final int WIDTH = 18;
+	public static final int HEIGHT = 8;
+
+	public void clear();
+
+	public void drawString(String text, int x, int y);
+
+	public void refresh();
+}
@@ -0,0 +1,55 @@
+package com.loneranger.lejos.hardware;
+
+/**
+ * The part of lejos' MovePilot the behaviours drive the robot through.
+ * Distances are in mm, angles in degrees and speeds per second, following
+ * MovePilot.
+ */
+public interface DrivePilot {
+
+	/**
+	 * @param distance
+	 *            may be infinite to travel until stopped
+	 * @param immediateReturn
+	 *            if false, blocks until the move completes or is stopped
+	 */
+	public void travel(double distance, boolean immediateReturn);
+
+	/**
+	 * Rotates in place, blocking until done or stopped.
+	 */
+	public void rotate(double angle);
+
+	public void rotate(double angle, boolean immediateReturn);
+
+	/**
+	 * Drives continuously at the given velocities until stopped or given
+	 * another move - an arc if both are non-zero. Returns immediately, and
+	 * may be called again mid-motion to change course without stopping.
+	 *
+	 * @param linearSpeed
+	 *            mm/s, negative to reverse
+	 * @param angularSpeed
+	 *            degrees/s, positive anticlockwise
+	 */
+	public void setVelocity(double linearSpeed, double angularSpeed);
+
+	/**
+	 * Stops the current move, blocking until the robot has stopped.
+	 */
+	public void stop();
+
+	public boolean isMoving();
+
+	public double getLinearSpeed();
+
+	public void setLinearSpeed(double speed);
+
+	public double getMaxLinearSpeed();
+
+	public void setLinearAcceleration(double acceleration);
+
+	public double getAngularSpeed();
+
+	public void setAngularSpeed(double speed);
+}
@@ -0,0 +1,147 @@
+package com.loneranger.lejos.hardware;
+
+import java.io.File;
+
+import lejos.hardware.Button;
+import lejos.hardware.Key;
+import lejos.hardware.KeyListener;
+import lejos.hardware.Sound;
+import lejos.hardware.lcd.LCD;
+import lejos.hardware.motor.EV3LargeRegulatedMotor;
+import lejos.hardware.port.MotorPort;
+import lejos.hardware.port.SensorPort;
+import lejos.hardware.sensor.EV3IRSensor;
+import lejos.robotics.SampleProvider;
+import lejos.robotics.chassis.Chassis;
+import lejos.robotics.chassis.Wheel;
+import lejos.robotics.chassis.WheeledChassis;
+import lejos.robotics.navigation.MovePilot;
+
+/**
+ * The real robot: large motors on ports C (left) and B (right), the IR sensor
+ * on S1, and the brick's LCD, speaker and escape button.
+ */
+public class Ev3Track3rHardware implements Track3rHardware {
+	private final EV3LargeRegulatedMotor leftMotor;
+	private final EV3LargeRegulatedMotor rightMotor;
+	private final Chassis chassis;
+	private final MovePilotDrive pilot;
+	private final EV3IRSensor infraredSensor;
+
+	public Ev3Track3rHardware() {
+		leftMotor = new EV3LargeRegulatedMotor(MotorPort.C);
+		rightMotor = new EV3LargeRegulatedMotor(MotorPort.B);
+		Wheel left = WheeledChassis.modelWheel(leftMotor, WHEEL_DIAMETER).offset(WHEEL_OFFSET).gearRatio(1);
+		Wheel right = WheeledChassis.modelWheel(rightMotor, WHEEL_DIAMETER).offset(-WHEEL_OFFSET).gearRatio(1);
+		chassis = new WheeledChassis(new Wheel[] { left, right }, WheeledChassis.TYPE_DIFFERENTIAL);
+		pilot = new MovePilotDrive(new MovePilot(chassis), chassis);
+		infraredSensor = new EV3IRSensor(SensorPort.S1);
+	}
+
+	public Chassis getChassis() {
+		return chassis;
+	}
+
+	public EV3IRSensor getInfraredSensor() {
+		return infraredSensor;
+	}
+
+	@Override
+	public DrivePilot getPilot() {
+		return pilot;
+	}
+
+	@Override
+	public TachoMotor getLeftMotor() {
+		return tacho(leftMotor);
+	}
+
+	@Override
+	public TachoMotor getRightMotor() {
+		return tacho(rightMotor);
+	}
+
+	private static TachoMotor tacho(final EV3LargeRegulatedMotor motor) {
+		return new TachoMotor() {
+			@Override
+			public int getTachoCount() {
+				return motor.getTachoCount();
+			}
+
+			@Override
+			public int getRotationSpeed() {
+				return motor.getRotationSpeed();
+			}
+		};
+	}
+
+	@Override
+	public SampleProvider getDistanceSensor() {
+		return infraredSensor.getDistanceMode();
+	}
+
+	@Override
+	public Display getDisplay() {
+		return LCD_DISPLAY;
+	}
+
+	@Override
+	public Speaker getSpeaker() {
+		return SPEAKER;
+	}
+
+	@Override
+	public Clock getClock() {
+		return SystemClock.INSTANCE;
+	}
+
+	@Override
+	public void addEscapeListener(final Runnable listener) {
+		Button.ESCAPE.addKeyListener(new KeyListener() {
+			@Override
+			public void keyPressed(Key k) {
+				listener.run();
+			}
+
+			@Override
+			public void keyReleased(Key k) {
+				// do nothing for now
+
+			}
+		});
+	}
+
+	private static final Display LCD_DISPLAY = new Display() {
+		@Override
+		public void clear() {
+			LCD.clearDisplay();
+		}
+
+		@Override
+		public void drawString(String text, int x, int y) {
+			LCD.drawString(text, x, y);
+		}
+
+		@Override
+		public void refresh() {
+			LCD.refresh();
+		}
+	};
+
+	private static final Speaker SPEAKER = new Speaker() {
+		@Override
+		public int playSample(File file) {
+			return Sound.playSample(file);
+		}
+
+		@Override
+		public int playSample(byte[] data, int offset, int length, int sampleRate) {
+			return Sound.playSample(data, offset, length, sampleRate, Sound.getVolume());
+		}
+
+		@Override
+		public void beepSequenceUp() {
+			Sound.beepSequenceUp();
+		}
+	};
+}
@@ -0,0 +1,82 @@
+package com.loneranger.lejos.hardware;
+
+import lejos.robotics.chassis.Chassis;
+import lejos.robotics.navigation.MovePilot;
+
+/**
+ * DrivePilot backed by a real lejos MovePilot. Continuous velocity goes
+ * straight to the pilot's chassis, which MovePilot has no call for.
+ */
+public class MovePilotDrive implements DrivePilot {
+	private final MovePilot pilot;
+	private final Chassis chassis;
+
+	public MovePilotDrive(MovePilot pilot, Chassis chassis) {
+		this.pilot = pilot;
+		this.chassis = chassis;
+	}
+
+	public MovePilot getMovePilot() {
+		return pilot;
+	}
+
+	@Override
+	public void travel(double distance, boolean immediateReturn) {
+		pilot.travel(distance, immediateReturn);
+	}
+
+	@Override
+	public void rotate(double angle) {
+		pilot.rotate(angle);
+	}
+
+	@Override
+	public void rotate(double angle, boolean immediateReturn) {
+		pilot.rotate(angle, immediateReturn);
+	}
+
+	@Override
+	public void setVelocity(double linearSpeed, double angularSpeed) {
+		chassis.setVelocity(linearSpeed, angularSpeed);
+	}
+
+	@Override
+	public void stop() {
+		pilot.stop();
+	}
+
+	@Override
+	public boolean isMoving() {
+		return pilot.isMoving();
+	}
+
+	@Override
+	public double getLinearSpeed() {
+		return pilot.getLinearSpeed();
+	}
+
+	@Override
+	public void setLinearSpeed(double speed) {
+		pilot.setLinearSpeed(speed);
+	}
+
+	@Override
+	public double getMaxLinearSpeed() {
+		return pilot.getMaxLinearSpeed();
+	}
+
+	@Override
+	public void setLinearAcceleration(double acceleration) {
+		pilot.setLinearAcceleration(acceleration);
+	}
+
+	@Override
+	public double getAngularSpeed() {
+		return pilot.getAngularSpeed();
+	}
+
+	@Override
+	public void setAngularSpeed(double speed) {
+		pilot.setAngularSpeed(speed);
+	}
+}
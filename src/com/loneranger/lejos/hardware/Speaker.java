@@ -0,0 +1,23 @@
+package com.loneranger.lejos.hardware;
+
+import java.io.File;
+
+public interface Speaker {
+
+	/**
+	 * Plays a WAV file, blocking until it has finished.
+	 *
+	 * @return the length of the sample in ms, or a negative error code
+	 */
+	public int playSample(File file);
+
+	/**
+	 * Plays 8 bit unsigned mono PCM at the system volume, blocking until it
+	 * has finished.
+	 *
+	 * @return the length of the sample in ms, or a negative error code
+	 */
+	public int playSample(byte[] data, int offset, int length, int sampleRate);
+
+	public void beepSequenceUp();
+}
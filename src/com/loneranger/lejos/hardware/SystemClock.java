@@ -0,0 +1,17 @@
+package com.loneranger.lejos.hardware;
+
+import java.util.concurrent.TimeUnit;
+
+public class SystemClock implements Clock {
+	public static final SystemClock INSTANCE = new SystemClock();
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public void sleepNanos(long nanos) throws InterruptedException {
+		TimeUnit.NANOSECONDS.sleep(nanos);
+	}
+}
@@ -0,0 +1,17 @@
+package com.loneranger.lejos.hardware;
+
+/**
+ * Read-only view of a drive motor's tachometer.
+ */
+public interface TachoMotor {
+
+	/**
+	 * @return the motor's rotation in degrees since startup
+	 */
+	public int getTachoCount();
+
+	/**
+	 * @return the motor's current speed in degrees per second
+	 */
+	public int getRotationSpeed();
+}
@@ -0,0 +1,36 @@
+package com.loneranger.lejos.hardware;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * Everything the control stack needs from the robot. The behaviours and
+ * servers only talk to the hardware through this, so the whole stack runs
+ * either on the brick ({@link Ev3Track3rHardware}) or against a simulation.
+ */
+public interface Track3rHardware {
+	// standard track3r wheel dimensions in mm
+	public static final double WHEEL_DIAMETER = 30;
+	public static final double WHEEL_OFFSET = 97.5;
+
+	public DrivePilot getPilot();
+
+	public TachoMotor getLeftMotor();
+
+	public TachoMotor getRightMotor();
+
+	/**
+	 * @return the IR sensor in distance mode - one sample, roughly in cm
+	 */
+	public SampleProvider getDistanceSensor();
+
+	public Display getDisplay();
+
+	public Speaker getSpeaker();
+
+	public Clock getClock();
+
+	/**
+	 * Registers something to run when the escape button is pressed.
+	 */
+	public void addEscapeListener(Runnable listener);
+}
@@ -0,0 +1,275 @@
+package com.loneranger.lejos.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.loneranger.lejos.arbitrator.ArbitrationObserver;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.plan.MotionPlan;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Records every command the router receives, every behaviour the arbitrator
+ * activates and every command the command queue coalesces away, in order, to
+ * an append-only binary file - so an incident can be looked at afterwards,
+ * or replayed against the simulation with {@link JournalReader}. Commands are
+ * recorded as they are submitted, before they are queued, so the journal
+ * holds the stream the robot was sent, including commands that a newer one
+ * superseded in the queue and commands a full queue turned away.
+ *
+ * The file is mapped into memory at its full capacity up front, and a record
+ * is appended by writing it into the mapping: no system call, no
+ * allocation, and what has been written survives the program dying, as the
+ * operating system still holds it. A record is
+ *
+ * <pre>
+ * byte       type - COMMAND, ACTIVATION, PLAN or COALESCED, 0 marks the end
+ * varint     us since the record before, or since the journal was opened
+ * COMMAND:
+ * byte       API_EVENT ordinal
+ * varint     the command's queue sequence number + 1, 0 if it wasn't queued
+ * byte       which of SPEED, TURN_RATE and DURATION_MS follow, one bit each,
+ *            and DROPPED if the queue was full
+ * varints    their values in thousandths, zigzag encoded
+ * ACTIVATION:
+ * byte       the behaviour's index in the arbitrator's array
+ * PLAN:      a PLAN event
+ * varint     queue sequence number + 1, as for COMMAND
+ * byte       DROPPED if the queue was full
+ * varint     the plan's id
+ * byte       the number of segments, then for each:
+ * varints    linear and angular speed in thousandths, zigzag encoded,
+ *            duration in us and the line of the plan it came from
+ * COALESCED:
+ * varint     the queue sequence number of a command skipped because a newer
+ *            one on its channel arrived before it was dispatched
+ * </pre>
+ *
+ * so most records take 4 to 8 bytes. The file starts with a header of
+ * {@link #HEADER_SIZE} bytes holding the clock time and wall clock time it
+ * was opened at. Times come from the robot's {@link Clock}, so a journal of a
+ * simulated run is in the simulation's time. Once the journal is full
+ * further records are counted, but dropped.
+ */
+public class CommandJournal implements ArbitrationObserver, Closeable {
+	public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+	// "T3J" and a version
+	static final int MAGIC = 0x54334a02;
+	// magic, clock nanos and wall clock ms when opened
+	static final int HEADER_SIZE = 4 + 8 + 8;
+	static final byte END = 0;
+	static final byte COMMAND = 1;
+	static final byte ACTIVATION = 2;
+	static final byte PLAN = 3;
+	static final byte COALESCED = 4;
+	// in a COMMAND's parameter bits or a PLAN's flags
+	static final int DROPPED = 0x80;
+	// the parameters a command record can carry, in bit order
+	static final String[] PARAMETERS = { RequestContext.SPEED, RequestContext.TURN_RATE,
+			RequestContext.DURATION_MS };
+	// parameters are kept to a thousandth
+	static final double PARAMETER_SCALE = 1000;
+	// longest records: type, delta, event, sequence, bits and the
+	// parameters; type, delta, sequence, flags, id, count and the segments
+	private static final int MAX_COMMAND_SIZE = 1 + 10 + 1 + 10 + 1 + PARAMETERS.length * 10;
+	private static final int MAX_SEGMENT_SIZE = 10 + 10 + 10 + 5;
+	private static final int MAX_PLAN_HEAD_SIZE = 1 + 10 + 10 + 1 + 5 + 1;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final Clock clock;
+
+	// guarded by this
+	private long lastMicros;
+	private long recordCount = 0;
+	private long lostCount = 0;
+	private boolean closed = false;
+
+	public CommandJournal(File file, Clock clock) throws IOException {
+		this(file, DEFAULT_CAPACITY, clock);
+	}
+
+	/**
+	 * Starts a new journal in <code>file</code>, replacing anything in it.
+	 *
+	 * @param capacity
+	 *            bytes to map, including the header
+	 */
+	public CommandJournal(File file, int capacity, Clock clock) throws IOException {
+		this.file = file;
+		this.clock = clock;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		// drop any older journal, so what follows the last record reads as
+		// the end
+		channel.truncate(0);
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, HEADER_SIZE + 1));
+		long nanos = clock.nanoTime();
+		lastMicros = nanos / 1000;
+		buffer.putInt(MAGIC);
+		buffer.putLong(nanos);
+		buffer.putLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * Records a command as it is submitted to the router, on the submitting
+	 * thread. A PLAN event is recorded with its plan.
+	 *
+	 * @param sequence
+	 *            the command's sequence number in the command queue, or -1
+	 *            if it went straight to the listeners or was dropped
+	 * @param dropped
+	 *            true if the queue was full
+	 */
+	public synchronized void commandReceived(API_EVENT event, RequestContext context, long sequence,
+			boolean dropped) {
+		MotionPlan plan = context.getPlan();
+		if (event == API_EVENT.PLAN && plan != null) {
+			planReceived(plan, sequence, dropped);
+			return;
+		}
+		if (!startRecord(COMMAND, MAX_COMMAND_SIZE)) {
+			return;
+		}
+		buffer.put((byte) event.ordinal());
+		putVarint(sequence + 1);
+		int present = 0;
+		for (int i = 0; i < PARAMETERS.length; i++) {
+			if (context.hasParameter(PARAMETERS[i])) {
+				present |= 1 << i;
+			}
+		}
+		buffer.put((byte) (present | (dropped ? DROPPED : 0)));
+		for (int i = 0; i < PARAMETERS.length; i++) {
+			if ((present & (1 << i)) != 0) {
+				putScaled(context.getDoubleParameter(PARAMETERS[i], 0));
+			}
+		}
+	}
+
+	private void planReceived(MotionPlan plan, long sequence, boolean dropped) {
+		int count = plan.getSegmentCount();
+		if (!startRecord(PLAN, MAX_PLAN_HEAD_SIZE + count * MAX_SEGMENT_SIZE)) {
+			return;
+		}
+		putVarint(sequence + 1);
+		buffer.put((byte) (dropped ? DROPPED : 0));
+		putVarint(plan.getId());
+		buffer.put((byte) count);
+		for (int i = 0; i < count; i++) {
+			MotionPlan.Segment segment = plan.getSegment(i);
+			putScaled(segment.getLinearSpeed());
+			putScaled(segment.getAngularSpeed());
+			putVarint(segment.getDurationNanos() / 1000);
+			putVarint(segment.getLine());
+		}
+	}
+
+	/**
+	 * Records that the command queue skipped the command with
+	 * <code>sequence</code> for a newer one. Called on the queue's consumer
+	 * thread.
+	 */
+	public synchronized void commandCoalesced(long sequence) {
+		if (!startRecord(COALESCED, 1 + 10 + 10)) {
+			return;
+		}
+		putVarint(sequence);
+	}
+
+	@Override
+	public synchronized void behaviorActivated(int priority, Behavior behavior) {
+		if (!startRecord(ACTIVATION, 1 + 10 + 1)) {
+			return;
+		}
+		buffer.put((byte) priority);
+	}
+
+	/**
+	 * Writes a record's type and time, if there is room for the whole
+	 * record.
+	 *
+	 * @param maxSize
+	 *            the most the record can take
+	 */
+	private boolean startRecord(byte type, int maxSize) {
+		if (closed) {
+			return false;
+		}
+		// one byte spare, so the end marker is always there
+		if (buffer.remaining() <= maxSize) {
+			lostCount++;
+			return false;
+		}
+		long micros = clock.nanoTime() / 1000;
+		buffer.put(type);
+		putVarint(Math.max(0, micros - lastMicros));
+		lastMicros = Math.max(lastMicros, micros);
+		recordCount++;
+		return true;
+	}
+
+	/**
+	 * Writes a value in thousandths, zigzag encoded so small negative values
+	 * stay short too.
+	 */
+	private void putScaled(double value) {
+		long scaled = Math.round(value * PARAMETER_SCALE);
+		putVarint((scaled << 1) ^ (scaled >> 63));
+	}
+
+	private void putVarint(long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return records dropped because the journal was full
+	 */
+	public synchronized long getLostCount() {
+		return lostCount;
+	}
+
+	/**
+	 * @return bytes written so far, including the header
+	 */
+	public synchronized int getLength() {
+		return buffer.position();
+	}
+
+	/**
+	 * Writes the journal out to the file and cuts the file down to what was
+	 * recorded. Anything recorded after this is dropped.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffer.force();
+		// keep the end marker
+		channel.truncate(buffer.position() + 1);
+		raf.close();
+	}
+}
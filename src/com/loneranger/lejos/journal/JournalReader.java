@@ -0,0 +1,303 @@
+package com.loneranger.lejos.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.loneranger.lejos.control.web.RestApiHandlerThread.API_EVENT;
+import com.loneranger.lejos.control.web.RestApiHandlerThread.RequestContext;
+import com.loneranger.lejos.plan.MotionPlan;
+
+/**
+ * Reads a {@link CommandJournal} back, one record at a time:
+ *
+ * <pre>
+ * while (reader.next()) {
+ * 	if (reader.isCommand() || reader.isPlan()) {
+ * 		reader.applyTo(context);
+ * 		router.submit(reader.getEvent(), context);
+ * 	}
+ * }
+ * </pre>
+ *
+ * A COALESCED record names a command recorded earlier by its sequence
+ * number, so telling which commands the robot acted on takes a pass over
+ * the journal first.
+ *
+ * A journal cut short, e.g. by the robot being switched off, reads up to
+ * the last complete record.
+ */
+public class JournalReader implements Closeable {
+	// a plan record's count is a byte
+	private static final int MAX_SEGMENTS = 255;
+
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final long startNanos;
+	private final long startMillis;
+
+	// the current record
+	private byte type = CommandJournal.END;
+	private long micros = 0;
+	private API_EVENT event;
+	private long sequence;
+	private boolean dropped;
+	private int present;
+	private final double[] parameters = new double[CommandJournal.PARAMETERS.length];
+	private int priority;
+	private int planId;
+	private int segmentCount;
+	private final double[] linearSpeeds = new double[MAX_SEGMENTS];
+	private final double[] angularSpeeds = new double[MAX_SEGMENTS];
+	private final long[] durationNanos = new long[MAX_SEGMENTS];
+	private final int[] lines = new int[MAX_SEGMENTS];
+	private long recordCount = 0;
+
+	public JournalReader(File file) throws IOException {
+		this.raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		if (buffer.remaining() < CommandJournal.HEADER_SIZE || buffer.getInt() != CommandJournal.MAGIC) {
+			raf.close();
+			throw new IOException(file + " isn't a command journal");
+		}
+		this.startNanos = buffer.getLong();
+		this.startMillis = buffer.getLong();
+	}
+
+	/**
+	 * Moves on to the next record.
+	 *
+	 * @return false at the end of the journal
+	 */
+	public boolean next() throws IOException {
+		if (!buffer.hasRemaining()) {
+			return end();
+		}
+		int start = buffer.position();
+		byte nextType = buffer.get();
+		if (nextType == CommandJournal.END) {
+			return end();
+		}
+		try {
+			long delta = getVarint();
+			if (nextType == CommandJournal.COMMAND) {
+				event = API_EVENT.fromOrdinal(buffer.get());
+				if (event == null) {
+					throw new IOException("bad event in the record at " + start);
+				}
+				sequence = getVarint() - 1;
+				int flags = buffer.get() & 0xff;
+				dropped = (flags & CommandJournal.DROPPED) != 0;
+				present = flags & ~CommandJournal.DROPPED;
+				for (int i = 0; i < parameters.length; i++) {
+					if ((present & (1 << i)) != 0) {
+						parameters[i] = getScaled();
+					}
+				}
+			} else if (nextType == CommandJournal.ACTIVATION) {
+				priority = buffer.get() & 0xff;
+			} else if (nextType == CommandJournal.PLAN) {
+				event = API_EVENT.PLAN;
+				sequence = getVarint() - 1;
+				dropped = (buffer.get() & CommandJournal.DROPPED) != 0;
+				present = 0;
+				planId = (int) getVarint();
+				segmentCount = buffer.get() & 0xff;
+				for (int i = 0; i < segmentCount; i++) {
+					linearSpeeds[i] = getScaled();
+					angularSpeeds[i] = getScaled();
+					durationNanos[i] = getVarint() * 1000;
+					lines[i] = (int) getVarint();
+				}
+			} else if (nextType == CommandJournal.COALESCED) {
+				sequence = getVarint();
+			} else {
+				throw new IOException("bad record type " + nextType + " at " + start);
+			}
+			micros += delta;
+		} catch (BufferUnderflowException e) {
+			// the last record was only partly written
+			return end();
+		}
+		type = nextType;
+		recordCount++;
+		return true;
+	}
+
+	private boolean end() {
+		type = CommandJournal.END;
+		return false;
+	}
+
+	private double getScaled() throws IOException {
+		long zigzag = getVarint();
+		return ((zigzag >>> 1) ^ -(zigzag & 1)) / CommandJournal.PARAMETER_SCALE;
+	}
+
+	private long getVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("bad number at " + buffer.position());
+	}
+
+	public boolean isCommand() {
+		return type == CommandJournal.COMMAND;
+	}
+
+	public boolean isActivation() {
+		return type == CommandJournal.ACTIVATION;
+	}
+
+	public boolean isPlan() {
+		return type == CommandJournal.PLAN;
+	}
+
+	/**
+	 * @return true for the record of a command coalesced away in the queue -
+	 *         see {@link #getSequence()}
+	 */
+	public boolean isCoalesced() {
+		return type == CommandJournal.COALESCED;
+	}
+
+	/**
+	 * @return clock time of the current record since the journal was opened
+	 */
+	public long getNanos() {
+		return micros * 1000;
+	}
+
+	/**
+	 * @return the command's event - PLAN for a plan
+	 */
+	public API_EVENT getEvent() {
+		return event;
+	}
+
+	/**
+	 * @return the command's or plan's sequence number in the command queue,
+	 *         -1 if it wasn't queued; for a COALESCED record, the command
+	 *         that was skipped
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return true if the command or plan was turned away by a full queue
+	 */
+	public boolean isDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Allocates a new plan each time.
+	 *
+	 * @return the plan of a PLAN record
+	 */
+	public MotionPlan getPlan() {
+		MotionPlan.Segment[] segments = new MotionPlan.Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new MotionPlan.Segment(linearSpeeds[i], angularSpeeds[i], durationNanos[i], lines[i]);
+		}
+		return new MotionPlan(planId, segments);
+	}
+
+	/**
+	 * @return the index of the behaviour activated
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Points <code>context</code> at the current command and its parameters,
+	 * or at the current plan.
+	 */
+	public void applyTo(RequestContext context) {
+		context.clearRequest(event.getQueryPath());
+		for (int i = 0; i < parameters.length; i++) {
+			if ((present & (1 << i)) != 0) {
+				context.setParameter(CommandJournal.PARAMETERS[i], parameters[i]);
+			}
+		}
+		if (isPlan()) {
+			context.setPlan(getPlan());
+		}
+	}
+
+	/**
+	 * Appends the current record as one line of text.
+	 */
+	public void appendRecord(StringBuilder out) {
+		out.append(String.format("%10.3f ", micros / 1e6));
+		if (isCommand()) {
+			out.append(event);
+			for (int i = 0; i < parameters.length; i++) {
+				if ((present & (1 << i)) != 0) {
+					out.append(' ').append(CommandJournal.PARAMETERS[i]).append('=').append(parameters[i]);
+				}
+			}
+			appendQueued(out);
+		} else if (isPlan()) {
+			long total = 0;
+			for (int i = 0; i < segmentCount; i++) {
+				total += durationNanos[i];
+			}
+			out.append("PLAN id=").append(planId).append(" segments=").append(segmentCount).append(" duration.ms=")
+					.append(total / 1000000);
+			appendQueued(out);
+			for (int i = 0; i < segmentCount; i++) {
+				out.append(String.format("%n           line %d speed=%.1f turn=%.1f ms=%d", lines[i],
+						linearSpeeds[i], angularSpeeds[i], durationNanos[i] / 1000000));
+			}
+		} else if (isActivation()) {
+			out.append("active ").append(priority);
+		} else if (isCoalesced()) {
+			out.append("coalesced #").append(sequence);
+		}
+	}
+
+	private void appendQueued(StringBuilder out) {
+		if (sequence >= 0) {
+			out.append(" #").append(sequence);
+		}
+		if (dropped) {
+			out.append(" dropped");
+		}
+	}
+
+	/**
+	 * @return the robot's clock time when the journal was opened
+	 */
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * @return the wall clock time when the journal was opened, ms
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+}
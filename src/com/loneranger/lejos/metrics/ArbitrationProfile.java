@@ -0,0 +1,107 @@
+package com.loneranger.lejos.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.loneranger.lejos.arbitrator.ArbitrationProfiler;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Per-priority statistics from an arbitrator in profiling mode: how often
+ * each behavior wins, what its takeControl() costs, how long its action()
+ * runs, and - the one that matters for preemption - how long action() keeps
+ * running after suppress(). Everything is recorded into fixed histograms, so
+ * profiling allocates nothing.
+ */
+public class ArbitrationProfile implements ArbitrationProfiler {
+	private final String[] names;
+	private final AtomicLongArray suppressions;
+	private final LatencyHistogram[] takeControl;
+	private final LatencyHistogram[] action;
+	private final LatencyHistogram[] suppressToIdle;
+
+	/**
+	 * @param behaviors
+	 *            the array given to the arbitrator, for naming priorities
+	 */
+	public ArbitrationProfile(Behavior[] behaviors) {
+		int count = behaviors.length;
+		names = new String[count];
+		suppressions = new AtomicLongArray(count);
+		takeControl = new LatencyHistogram[count];
+		action = new LatencyHistogram[count];
+		suppressToIdle = new LatencyHistogram[count];
+		for (int i = 0; i < count; i++) {
+			String name = behaviors[i].getClass().getSimpleName();
+			names[i] = name.isEmpty() ? behaviors[i].getClass().getName() : name;
+			takeControl[i] = new LatencyHistogram();
+			action[i] = new LatencyHistogram();
+			suppressToIdle[i] = new LatencyHistogram();
+		}
+	}
+
+	@Override
+	public void takeControlTimed(int priority, long nanos) {
+		takeControl[priority].record(nanos);
+	}
+
+	@Override
+	public void actionCompleted(int priority, long actionNanos, long suppressToIdleNanos) {
+		action[priority].record(actionNanos);
+		if (suppressToIdleNanos >= 0) {
+			suppressions.incrementAndGet(priority);
+			suppressToIdle[priority].record(suppressToIdleNanos);
+		}
+	}
+
+	/**
+	 * @return how many times the behavior's action() has run to completion
+	 */
+	public long getWins(int priority) {
+		return action[priority].getCount();
+	}
+
+	public long getSuppressions(int priority) {
+		return suppressions.get(priority);
+	}
+
+	public LatencyHistogram getTakeControl(int priority) {
+		return takeControl[priority];
+	}
+
+	public LatencyHistogram getAction(int priority) {
+		return action[priority];
+	}
+
+	public LatencyHistogram getSuppressToIdle(int priority) {
+		return suppressToIdle[priority];
+	}
+
+	public void reset() {
+		for (int i = 0; i < names.length; i++) {
+			suppressions.set(i, 0);
+			takeControl[i].reset();
+			action[i].reset();
+			suppressToIdle[i].reset();
+		}
+	}
+
+	/**
+	 * Appends a block per priority, highest first, with times in
+	 * microseconds.
+	 */
+	public void appendTo(StringBuilder out) {
+		out.append("# arbitration profile by priority, us\n");
+		for (int i = names.length - 1; i >= 0; i--) {
+			out.append(i).append(' ').append(names[i]).append(" wins=").append(getWins(i))
+					.append(" suppressed=").append(getSuppressions(i)).append('\n');
+			out.append("  takeControl    ");
+			takeControl[i].appendSummary(out);
+			out.append("\n  action         ");
+			action[i].appendSummary(out);
+			out.append("\n  suppress->idle ");
+			suppressToIdle[i].appendSummary(out);
+			out.append('\n');
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.loneranger.lejos.metrics;
+
+import com.loneranger.lejos.arbitrator.ArbitrationObserver;
+import com.loneranger.lejos.hardware.Display;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * Follows commands from the moment their bytes are read off the network to
+ * the moment the pilot is told to move, and records how long each stage took
+ * to be reached:
+ * <ul>
+ * <li>DISPATCH - the command's listeners are called (after the command
+ * queue)</li>
+ * <li>ACTIVATE - the arbitrator switches to a behavior listening to the
+ * command</li>
+ * <li>ISSUE - that behavior issues its first pilot call</li>
+ * </ul>
+ * Only the latest dispatched command is followed, which matches the command
+ * queue's last-writer-wins coalescing: a command overtaken before its
+ * behavior ran simply stops being measured. A command that doesn't change
+ * the active behavior is only measured up to DISPATCH.
+ */
+public class CommandLatency implements ArbitrationObserver {
+	public static enum Stage {
+		DISPATCH("dispatch", "dsp"), ACTIVATE("activate", "act"), ISSUE("issue", "iss");
+
+		private final String name;
+		private final String shortName;
+
+		Stage(String name, String shortName) {
+			this.name = name;
+			this.shortName = shortName;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+	// the command being followed; guarded by this
+	private long dispatchedNanos = 0;
+	private Object[] dispatchedTo = null;
+	private long activatedNanos = 0;
+
+	public CommandLatency() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @param receivedNanos
+	 *            System.nanoTime() when the command arrived, 0 if unknown
+	 * @param listeners
+	 *            the listeners it is about to be dispatched to
+	 */
+	public void dispatched(long receivedNanos, Object[] listeners) {
+		if (receivedNanos == 0) {
+			return;
+		}
+		histograms[Stage.DISPATCH.ordinal()].record(System.nanoTime() - receivedNanos);
+		synchronized (this) {
+			dispatchedNanos = receivedNanos;
+			dispatchedTo = listeners;
+		}
+	}
+
+	@Override
+	public void behaviorActivated(int priority, Behavior behavior) {
+		long receivedNanos;
+		synchronized (this) {
+			if (dispatchedNanos == 0 || !contains(dispatchedTo, behavior)) {
+				return;
+			}
+			receivedNanos = dispatchedNanos;
+			dispatchedNanos = 0;
+			dispatchedTo = null;
+			activatedNanos = receivedNanos;
+		}
+		histograms[Stage.ACTIVATE.ordinal()].record(System.nanoTime() - receivedNanos);
+	}
+
+	/**
+	 * Called whenever a pilot command is issued.
+	 */
+	public void issued() {
+		long receivedNanos;
+		synchronized (this) {
+			if (activatedNanos == 0) {
+				return;
+			}
+			receivedNanos = activatedNanos;
+			activatedNanos = 0;
+		}
+		histograms[Stage.ISSUE.ordinal()].record(System.nanoTime() - receivedNanos);
+	}
+
+	private static boolean contains(Object[] listeners, Object behavior) {
+		for (Object listener : listeners) {
+			if (listener == behavior) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Appends a table of every stage's count and percentiles in microseconds.
+	 */
+	public void appendTo(StringBuilder out) {
+		out.append("# command latency since received, us\n");
+		out.append("stage       count     p50     p90     p99     max\n");
+		for (Stage stage : STAGES) {
+			LatencyHistogram histogram = histograms[stage.ordinal()];
+			pad(out, stage.name, -8);
+			pad(out, histogram.getCount(), 9);
+			pad(out, histogram.getPercentile(50) / 1000, 8);
+			pad(out, histogram.getPercentile(90) / 1000, 8);
+			pad(out, histogram.getPercentile(99) / 1000, 8);
+			pad(out, histogram.getMax() / 1000, 8);
+			out.append('\n');
+		}
+	}
+
+	private static void pad(StringBuilder out, long value, int width) {
+		int start = out.length();
+		out.append(value);
+		int padding = width - (out.length() - start);
+		for (int i = 0; i < padding; i++) {
+			out.insert(start, ' ');
+		}
+	}
+
+	/**
+	 * @param width
+	 *            negative to left align
+	 */
+	private static void pad(StringBuilder out, String value, int width) {
+		out.append(value);
+		for (int i = value.length(); i < -width; i++) {
+			out.append(' ');
+		}
+	}
+
+	/**
+	 * Draws one line per stage - median/99th percentile - starting at line
+	 * <code>y</code>.
+	 */
+	public void drawSummary(Display display, int y) {
+		StringBuilder line = new StringBuilder(Display.WIDTH);
+		for (Stage stage : STAGES) {
+			LatencyHistogram histogram = histograms[stage.ordinal()];
+			line.setLength(0);
+			line.append(stage.shortName).append(' ');
+			appendCompact(line, histogram.getPercentile(50));
+			line.append('/');
+			appendCompact(line, histogram.getPercentile(99));
+			while (line.length() < Display.WIDTH) {
+				line.append(' ');
+			}
+			display.drawString(line.toString(), 0, y++);
+		}
+	}
+
+	private static void appendCompact(StringBuilder out, long nanos) {
+		long micros = nanos / 1000;
+		if (micros < 1000) {
+			out.append(micros).append("us");
+		} else if (micros < 1000000) {
+			out.append(micros / 1000).append("ms");
+		} else {
+			out.append(micros / 1000000).append('s');
+		}
+	}
+}
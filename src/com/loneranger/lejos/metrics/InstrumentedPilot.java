@@ -0,0 +1,82 @@
+package com.loneranger.lejos.metrics;
+
+import com.loneranger.lejos.hardware.DrivePilot;
+
+/**
+ * Passes everything through to a DrivePilot, telling {@link CommandLatency}
+ * whenever a move or stop is issued.
+ */
+public class InstrumentedPilot implements DrivePilot {
+	private final DrivePilot pilot;
+	private final CommandLatency latency;
+
+	public InstrumentedPilot(DrivePilot pilot, CommandLatency latency) {
+		this.pilot = pilot;
+		this.latency = latency;
+	}
+
+	@Override
+	public void travel(double distance, boolean immediateReturn) {
+		latency.issued();
+		pilot.travel(distance, immediateReturn);
+	}
+
+	@Override
+	public void rotate(double angle) {
+		latency.issued();
+		pilot.rotate(angle);
+	}
+
+	@Override
+	public void rotate(double angle, boolean immediateReturn) {
+		latency.issued();
+		pilot.rotate(angle, immediateReturn);
+	}
+
+	@Override
+	public void setVelocity(double linearSpeed, double angularSpeed) {
+		latency.issued();
+		pilot.setVelocity(linearSpeed, angularSpeed);
+	}
+
+	@Override
+	public void stop() {
+		latency.issued();
+		pilot.stop();
+	}
+
+	@Override
+	public boolean isMoving() {
+		return pilot.isMoving();
+	}
+
+	@Override
+	public double getLinearSpeed() {
+		return pilot.getLinearSpeed();
+	}
+
+	@Override
+	public void setLinearSpeed(double speed) {
+		pilot.setLinearSpeed(speed);
+	}
+
+	@Override
+	public double getMaxLinearSpeed() {
+		return pilot.getMaxLinearSpeed();
+	}
+
+	@Override
+	public void setLinearAcceleration(double acceleration) {
+		pilot.setLinearAcceleration(acceleration);
+	}
+
+	@Override
+	public double getAngularSpeed() {
+		return pilot.getAngularSpeed();
+	}
+
+	@Override
+	public void setAngularSpeed(double speed) {
+		pilot.setAngularSpeed(speed);
+	}
+}
@@ -0,0 +1,115 @@
+package com.loneranger.lejos.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of durations in nanoseconds. Values below 16 have
+ * their own bucket; above that every power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so a percentile is within 1/16 of the true
+ * value anywhere from nanoseconds to hours. Recording is lock-free, safe from
+ * any thread and allocates nothing.
+ */
+public class LatencyHistogram {
+	public static final int SUB_BUCKETS = 8;
+	private static final int SUB_BITS = 3;
+	private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	static int bucket(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BITS + 1;
+		int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 to 100
+	 * @return the middle of the bucket holding the given percentile, or 0 if
+	 *         nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				long low = lowerBound(i);
+				long high = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(low + (high - low) / 2, max.get());
+			}
+		}
+		// values recorded while we were counting
+		return max.get();
+	}
+
+	/**
+	 * Appends the count and percentiles in microseconds, e.g.
+	 * <code>n=12 p50=35 p90=80 p99=410 max=415</code>.
+	 */
+	public void appendSummary(StringBuilder out) {
+		out.append("n=").append(getCount());
+		out.append(" p50=").append(getPercentile(50) / 1000);
+		out.append(" p90=").append(getPercentile(90) / 1000);
+		out.append(" p99=").append(getPercentile(99) / 1000);
+		out.append(" max=").append(getMax() / 1000);
+	}
+
+	/**
+	 * Not atomic with respect to concurrent recording - a value recorded
+	 * during a reset may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
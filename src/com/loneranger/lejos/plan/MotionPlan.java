@@ -0,0 +1,79 @@
+package com.loneranger.lejos.plan;
+
+/**
+ * A path compiled by {@link PlanCompiler}: segments to drive one after the
+ * other, each at a constant linear and angular velocity for a fixed time.
+ * Velocities are in the robot's frame - positive is forwards and to the
+ * left.
+ */
+public class MotionPlan {
+
+	public static class Segment {
+		private final double linearSpeed;
+		private final double angularSpeed;
+		private final long durationNanos;
+		private final int line;
+
+		public Segment(double linearSpeed, double angularSpeed, long durationNanos, int line) {
+			this.linearSpeed = linearSpeed;
+			this.angularSpeed = angularSpeed;
+			this.durationNanos = durationNanos;
+			this.line = line;
+		}
+
+		/**
+		 * @return mm/s
+		 */
+		public double getLinearSpeed() {
+			return linearSpeed;
+		}
+
+		/**
+		 * @return degrees/s
+		 */
+		public double getAngularSpeed() {
+			return angularSpeed;
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		/**
+		 * @return the line of the plan the segment came from
+		 */
+		public int getLine() {
+			return line;
+		}
+	}
+
+	private final int id;
+	private final Segment[] segments;
+	private final long durationNanos;
+
+	public MotionPlan(int id, Segment[] segments) {
+		this.id = id;
+		this.segments = segments;
+		long total = 0;
+		for (Segment segment : segments) {
+			total += segment.getDurationNanos();
+		}
+		this.durationNanos = total;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	public Segment getSegment(int index) {
+		return segments[index];
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+}
@@ -0,0 +1,294 @@
+package com.loneranger.lejos.plan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a plan - a path written as text, one step per line - into a
+ * {@link MotionPlan}. The steps are:
+ *
+ * <pre>
+ * forward D     straight ahead D mm
+ * backward D    straight back D mm
+ * left A        turn A degrees on the spot
+ * right A
+ * arc R A       drive round a circle of radius R mm for A degrees, to the
+ *               left if A is positive
+ * goto X Y      turn towards and drive to the point X mm ahead and Y mm to
+ *               the left of where the plan started
+ * speed V       drive what follows at V mm/s - the cruise speed until then
+ * radius R      round corners off with arcs of up to R mm - 0 turns on the
+ *               spot - {@link #DEFAULT_CORNER_RADIUS} until then
+ * </pre>
+ *
+ * Blank lines and anything after a '#' are ignored.
+ *
+ * Every value is checked before anything is compiled, so a bad plan is
+ * rejected as a whole with the line at fault. A turn between two forward
+ * straights becomes an arc tangent to both, so the robot sweeps round the
+ * corner instead of stopping to turn. Each arc can take up to half of each
+ * straight beside it, and is tightened to fit if it needs to. Arcs are driven
+ * slowly enough that the outer track stays within the pilot's top speed.
+ */
+public class PlanCompiler {
+	public static final int MAX_SEGMENTS = 64;
+	// mm, for any one step
+	public static final double MAX_DISTANCE = 10000;
+	// degrees, for any one step
+	public static final double MAX_ANGLE = 720;
+	public static final double DEFAULT_CORNER_RADIUS = 100;
+	public static final double MAX_CORNER_RADIUS = 1000;
+	// degrees/s for turns on the spot
+	public static final double TURN_RATE = 60;
+	// turns sharper than this are left on the spot - an arc would be tiny
+	private static final double MAX_ROUNDED_TURN = 170;
+	// straights shorter than this after rounding are dropped, mm
+	private static final double MIN_STRAIGHT = 0.5;
+
+	/**
+	 * A plan that can't be compiled.
+	 */
+	public static class PlanException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public PlanException(int line, String message) {
+			super("line " + line + ": " + message);
+		}
+
+		public PlanException(String message) {
+			super(message);
+		}
+	}
+
+	private static enum Kind {
+		STRAIGHT, TURN, ARC;
+	}
+
+	private static class Step {
+		final Kind kind;
+		final int line;
+		final double speed;
+		// mm, negative backwards
+		double length;
+		// degrees, positive to the left
+		final double angle;
+		final double radius;
+		// the corner radius in force for a turn
+		final double cornerRadius;
+
+		Step(Kind kind, int line, double speed, double length, double angle, double radius, double cornerRadius) {
+			this.kind = kind;
+			this.line = line;
+			this.speed = speed;
+			this.length = length;
+			this.angle = angle;
+			this.radius = radius;
+			this.cornerRadius = cornerRadius;
+		}
+	}
+
+	private final double maxSpeed;
+	private final double trackOffset;
+	private int nextId = 1;
+
+	/**
+	 * @param maxSpeed
+	 *            the pilot's top linear speed, mm/s
+	 * @param trackOffset
+	 *            distance from the middle of the robot to each track, mm
+	 */
+	public PlanCompiler(double maxSpeed, double trackOffset) {
+		this.maxSpeed = maxSpeed;
+		this.trackOffset = trackOffset;
+	}
+
+	/**
+	 * @param cruiseSpeed
+	 *            the speed until the plan sets one, mm/s
+	 */
+	public synchronized MotionPlan compile(String text, double cruiseSpeed) throws PlanException {
+		List<Step> steps = parse(text, Math.min(cruiseSpeed, maxSpeed));
+		if (steps.isEmpty()) {
+			throw new PlanException("the plan has no moves");
+		}
+		roundCorners(steps);
+
+		List<MotionPlan.Segment> segments = new ArrayList<>();
+		for (Step step : steps) {
+			switch (step.kind) {
+			case STRAIGHT:
+				if (Math.abs(step.length) >= MIN_STRAIGHT) {
+					segments.add(new MotionPlan.Segment(Math.signum(step.length) * step.speed, 0,
+							nanos(Math.abs(step.length) / step.speed), step.line));
+				}
+				break;
+			case TURN:
+				segments.add(new MotionPlan.Segment(0, Math.signum(step.angle) * TURN_RATE,
+						nanos(Math.abs(step.angle) / TURN_RATE), step.line));
+				break;
+			case ARC: {
+				// the outer track runs faster than the middle of the robot
+				double speed = Math.min(step.speed, maxSpeed * step.radius / (step.radius + trackOffset));
+				double angularSpeed = Math.toDegrees(speed / step.radius);
+				segments.add(new MotionPlan.Segment(speed, Math.signum(step.angle) * angularSpeed,
+						nanos(Math.abs(step.angle) / angularSpeed), step.line));
+				break;
+			}
+			}
+		}
+		if (segments.size() > MAX_SEGMENTS) {
+			throw new PlanException("the plan needs " + segments.size() + " segments - at most " + MAX_SEGMENTS
+					+ " are allowed");
+		}
+		return new MotionPlan(nextId++, segments.toArray(new MotionPlan.Segment[segments.size()]));
+	}
+
+	private List<Step> parse(String text, double cruiseSpeed) throws PlanException {
+		List<Step> steps = new ArrayList<>();
+		double speed = cruiseSpeed;
+		double cornerRadius = DEFAULT_CORNER_RADIUS;
+		// where the plan has got to, in the frame it started in - radians
+		double x = 0;
+		double y = 0;
+		double heading = 0;
+
+		String[] lines = text.split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			int line = i + 1;
+			String content = lines[i];
+			int comment = content.indexOf('#');
+			if (comment >= 0) {
+				content = content.substring(0, comment);
+			}
+			content = content.trim();
+			if (content.isEmpty()) {
+				continue;
+			}
+			String[] words = content.split("\\s+");
+			String command = words[0].toLowerCase();
+			switch (command) {
+			case "speed":
+				speed = value(words, 1, 2, line, 1, maxSpeed);
+				break;
+			case "radius":
+				cornerRadius = value(words, 1, 2, line, 0, MAX_CORNER_RADIUS);
+				break;
+			case "forward":
+			case "backward": {
+				double length = value(words, 1, 2, line, MIN_STRAIGHT, MAX_DISTANCE);
+				if (command.equals("backward")) {
+					length = -length;
+				}
+				steps.add(new Step(Kind.STRAIGHT, line, speed, length, 0, 0, cornerRadius));
+				x += length * Math.cos(heading);
+				y += length * Math.sin(heading);
+				break;
+			}
+			case "left":
+			case "right": {
+				double angle = value(words, 1, 2, line, 0, MAX_ANGLE);
+				if (command.equals("right")) {
+					angle = -angle;
+				}
+				if (angle != 0) {
+					steps.add(new Step(Kind.TURN, line, speed, 0, angle, 0, cornerRadius));
+					heading += Math.toRadians(angle);
+				}
+				break;
+			}
+			case "arc": {
+				double radius = value(words, 1, 3, line, 1, MAX_DISTANCE);
+				double angle = value(words, 2, 3, line, -MAX_ANGLE, MAX_ANGLE);
+				if (angle != 0) {
+					steps.add(new Step(Kind.ARC, line, speed, 0, angle, radius, cornerRadius));
+					double turned = Math.toRadians(angle);
+					double sign = Math.signum(angle);
+					x += sign * radius * (Math.sin(heading + turned) - Math.sin(heading));
+					y += sign * radius * (Math.cos(heading) - Math.cos(heading + turned));
+					heading += turned;
+				}
+				break;
+			}
+			case "goto": {
+				double dx = value(words, 1, 3, line, -MAX_DISTANCE, MAX_DISTANCE) - x;
+				double dy = value(words, 2, 3, line, -MAX_DISTANCE, MAX_DISTANCE) - y;
+				double distance = Math.hypot(dx, dy);
+				if (distance < MIN_STRAIGHT) {
+					break;
+				}
+				double bearing = Math.atan2(dy, dx) - heading;
+				// turn the short way round
+				bearing = Math.atan2(Math.sin(bearing), Math.cos(bearing));
+				if (Math.abs(Math.toDegrees(bearing)) >= 0.5) {
+					steps.add(new Step(Kind.TURN, line, speed, 0, Math.toDegrees(bearing), 0, cornerRadius));
+				}
+				steps.add(new Step(Kind.STRAIGHT, line, speed, distance, 0, 0, cornerRadius));
+				heading += bearing;
+				x += dx;
+				y += dy;
+				break;
+			}
+			default:
+				throw new PlanException(line, "unknown step '" + words[0] + "'");
+			}
+		}
+		return steps;
+	}
+
+	private static double value(String[] words, int index, int wordCount, int line, double min, double max)
+			throws PlanException {
+		if (words.length != wordCount) {
+			throw new PlanException(line, words[0] + " takes " + (wordCount - 1) + " value"
+					+ (wordCount > 2 ? "s" : ""));
+		}
+		double value;
+		try {
+			value = Double.parseDouble(words[index]);
+		} catch (NumberFormatException e) {
+			throw new PlanException(line, "'" + words[index] + "' isn't a number");
+		}
+		if (!(value >= min && value <= max)) {
+			throw new PlanException(line, words[0] + " must be from " + format(min) + " to " + format(max));
+		}
+		return value;
+	}
+
+	private static String format(double value) {
+		return value == Math.rint(value) ? Long.toString((long) value) : String.format("%.1f", value);
+	}
+
+	/**
+	 * Turns each turn between two forward straights into an arc tangent to
+	 * both, shortening the straights to meet it.
+	 */
+	private static void roundCorners(List<Step> steps) {
+		// how long each straight was, so corners at both ends of one can
+		// each take half of it
+		double[] lengths = new double[steps.size()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = steps.get(i).length;
+		}
+		for (int i = 1; i < steps.size() - 1; i++) {
+			Step turn = steps.get(i);
+			Step before = steps.get(i - 1);
+			Step after = steps.get(i + 1);
+			if (turn.kind != Kind.TURN || turn.cornerRadius == 0 || Math.abs(turn.angle) > MAX_ROUNDED_TURN
+					|| before.kind != Kind.STRAIGHT || after.kind != Kind.STRAIGHT || lengths[i - 1] <= 0
+					|| lengths[i + 1] <= 0) {
+				continue;
+			}
+			double halfAngle = Math.toRadians(Math.abs(turn.angle)) / 2;
+			// the arc meets each straight this far from the corner
+			double tangent = Math.min(turn.cornerRadius * Math.tan(halfAngle),
+					Math.min(lengths[i - 1], lengths[i + 1]) / 2);
+			steps.set(i, new Step(Kind.ARC, turn.line, Math.min(before.speed, after.speed), 0, turn.angle,
+					tangent / Math.tan(halfAngle), turn.cornerRadius));
+			before.length -= tangent;
+			after.length -= tangent;
+		}
+	}
+
+	private static long nanos(double seconds) {
+		return Math.round(seconds * 1e9);
+	}
+}
@@ -0,0 +1,225 @@
+package com.loneranger.lejos.sensing;
+
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.hardware.Clock;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * Reads the IR distance sensor on its own thread at a fixed rate, so nothing
+ * else ever waits on sensor I/O. Every reading goes into a preallocated ring
+ * of the last {@link #HISTORY} samples and through two filters:
+ * <ul>
+ * <li>a median of the last {@link #MEDIAN_WINDOW} samples, which drops the
+ * IR sensor's one-off spikes</li>
+ * <li>an exponential moving average of the median, which smooths out what
+ * is left</li>
+ * </ul>
+ * Distances are in cm, positive infinity when nothing is in range.
+ *
+ * Readers such as takeControl() get the latest values through
+ * {@link #getSnapshot(Snapshot)} without locking: the sampler publishes each
+ * one under a sequence number that is odd while it is writing, and a reader
+ * that sees the number change under it simply reads again. Sampling and
+ * reading allocate nothing.
+ */
+public class DistanceSampler implements Runnable {
+	public static final long DEFAULT_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	public static final int HISTORY = 32;
+	public static final int MEDIAN_WINDOW = 5;
+	// weight of the newest median in the moving average
+	public static final float SMOOTHING = 0.3f;
+
+	/**
+	 * One consistent set of filtered readings.
+	 */
+	public static class Snapshot {
+		private long sequence;
+		private long nanos;
+		private float raw;
+		private float median;
+		private float smoothed;
+
+		/**
+		 * @return the number of samples taken when this was published, 0 if
+		 *         none yet
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return clock time of the sample
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		public float getRaw() {
+			return raw;
+		}
+
+		public float getMedian() {
+			return median;
+		}
+
+		public float getSmoothed() {
+			return smoothed;
+		}
+	}
+
+	private final SampleProvider sensor;
+	private final Clock clock;
+	private final long periodNanos;
+
+	// sampler thread only
+	private final float[] sample;
+	private final float[] history = new float[HISTORY];
+	private final float[] window = new float[MEDIAN_WINDOW];
+	private long count = 0;
+	private float average = Float.NaN;
+
+	// the published snapshot - odd version while it is being written. The
+	// fields are volatile too, so a reader can't have them reordered past
+	// its second look at the version
+	volatile private long version = 0;
+	volatile private long latestSequence = 0;
+	volatile private long latestNanos = 0;
+	volatile private float latestRaw = Float.POSITIVE_INFINITY;
+	volatile private float latestMedian = Float.POSITIVE_INFINITY;
+	volatile private float latestSmoothed = Float.POSITIVE_INFINITY;
+
+	volatile private Runnable sampleListener = null;
+
+	public DistanceSampler(SampleProvider sensor, Clock clock) {
+		this(sensor, clock, DEFAULT_PERIOD_NANOS);
+	}
+
+	public DistanceSampler(SampleProvider sensor, Clock clock, long periodNanos) {
+		this.sensor = sensor;
+		this.clock = clock;
+		this.periodNanos = periodNanos;
+		this.sample = new float[sensor.sampleSize()];
+	}
+
+	/**
+	 * Runs <code>listener</code> on the sampler thread after every sample is
+	 * published, e.g. to signal a behaviour's readiness as soon as the
+	 * reading that makes it ready arrives. It delays the next sample, so it
+	 * should be quick.
+	 */
+	public void setSampleListener(Runnable listener) {
+		this.sampleListener = listener;
+	}
+
+	/**
+	 * Samples until interrupted. Each sample is due a period after the last
+	 * one was due, so a slow read doesn't shift every later sample.
+	 */
+	@Override
+	public void run() {
+		long due = clock.nanoTime();
+		while (!Thread.currentThread().isInterrupted()) {
+			sampleOnce();
+			due += periodNanos;
+			long wait = due - clock.nanoTime();
+			if (wait <= 0) {
+				// fell behind - start again from now rather than catch up
+				due = clock.nanoTime();
+				continue;
+			}
+			try {
+				clock.sleepNanos(wait);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Takes and publishes one sample. Only ever called by one thread - the
+	 * sampler's own, or a tool stepping it by hand.
+	 */
+	public void sampleOnce() {
+		sensor.fetchSample(sample, 0);
+		long nanos = clock.nanoTime();
+		float raw = sample[0];
+		history[(int) (count % HISTORY)] = raw;
+		count++;
+
+		float median = median();
+		if (Float.isInfinite(median) || Float.isNaN(average) || Float.isInfinite(average)) {
+			// nothing to average with across going out of or coming into range
+			average = median;
+		} else {
+			average += SMOOTHING * (median - average);
+		}
+
+		version++;
+		latestSequence = count;
+		latestNanos = nanos;
+		latestRaw = raw;
+		latestMedian = median;
+		latestSmoothed = average;
+		version++;
+
+		Runnable listener = sampleListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	private float median() {
+		int n = (int) Math.min(count, MEDIAN_WINDOW);
+		// insertion sort of the newest n samples - n is tiny
+		for (int i = 0; i < n; i++) {
+			float value = history[(int) ((count - 1 - i) % HISTORY)];
+			int j = i;
+			while (j > 0 && window[j - 1] > value) {
+				window[j] = window[j - 1];
+				j--;
+			}
+			window[j] = value;
+		}
+		return window[n / 2];
+	}
+
+	/**
+	 * Copies the latest readings into <code>snapshot</code> without locking.
+	 *
+	 * @return <code>snapshot</code>
+	 */
+	public Snapshot getSnapshot(Snapshot snapshot) {
+		while (true) {
+			long before = version;
+			if ((before & 1) == 0) {
+				snapshot.sequence = latestSequence;
+				snapshot.nanos = latestNanos;
+				snapshot.raw = latestRaw;
+				snapshot.median = latestMedian;
+				snapshot.smoothed = latestSmoothed;
+				if (version == before) {
+					return snapshot;
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * @return the latest smoothed distance in cm - a single read, for callers
+	 *         that need nothing else
+	 */
+	public float getDistance() {
+		return latestSmoothed;
+	}
+
+	public long getSampleCount() {
+		return latestSequence;
+	}
+
+	public long getPeriodNanos() {
+		return periodNanos;
+	}
+}
@@ -0,0 +1,248 @@
+package com.loneranger.lejos.sensing;
+
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.hardware.TachoMotor;
+
+/**
+ * Dead reckons the robot's pose from the drive motors' tachometers on its own
+ * thread at a fixed rate. Each update turns the two tacho deltas into track
+ * distances, and from those into a move of the middle of the robot and a turn,
+ * applied along the mean heading over the step - differential drive
+ * odometry, as lejos' OdometryPoseProvider does from MovePilot's move
+ * events, but without waiting for a move to end.
+ *
+ * The pose is in the pilot's frame: x and y in mm from where tracking
+ * started or was last reset, heading in degrees anticlockwise from the x
+ * axis, not wrapped. The robot's front faces the pilot's negative x.
+ *
+ * Readers get the latest pose through {@link #getSnapshot(Snapshot)} without
+ * locking, published under a sequence number like {@link DistanceSampler}'s.
+ * Tracking and reading allocate nothing.
+ */
+public class PoseTracker implements Runnable {
+	public static final long DEFAULT_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * One consistent pose.
+	 */
+	public static class Snapshot {
+		private long sequence;
+		private long nanos;
+		private double x;
+		private double y;
+		private double heading;
+		private double linearVelocity;
+		private double angularVelocity;
+
+		/**
+		 * @return the number of updates when this was published, 0 if none
+		 *         yet
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return clock time of the update
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		public double getX() {
+			return x;
+		}
+
+		public double getY() {
+			return y;
+		}
+
+		public double getHeading() {
+			return heading;
+		}
+
+		/**
+		 * @return mm/s over the last update, negative when the pilot reverses
+		 */
+		public double getLinearVelocity() {
+			return linearVelocity;
+		}
+
+		/**
+		 * @return degrees/s over the last update, anticlockwise
+		 */
+		public double getAngularVelocity() {
+			return angularVelocity;
+		}
+	}
+
+	private final TachoMotor left;
+	private final TachoMotor right;
+	private final Clock clock;
+	private final long periodNanos;
+	// mm of track per degree of motor rotation
+	private final double mmPerDegree;
+	private final double trackOffset;
+
+	// tracker thread only
+	private boolean started = false;
+	private int lastLeft;
+	private int lastRight;
+	private long lastNanos;
+	private double x = 0;
+	private double y = 0;
+	// radians
+	private double heading = 0;
+	private long count = 0;
+
+	// set by setPose(), applied by the tracker thread
+	volatile private boolean resetRequested = false;
+	private double resetX;
+	private double resetY;
+	private double resetHeading;
+
+	// the published snapshot - odd version while it is being written
+	volatile private long version = 0;
+	volatile private long latestSequence = 0;
+	volatile private long latestNanos = 0;
+	volatile private double latestX = 0;
+	volatile private double latestY = 0;
+	volatile private double latestHeading = 0;
+	volatile private double latestLinearVelocity = 0;
+	volatile private double latestAngularVelocity = 0;
+
+	/**
+	 * @param wheelDiameter
+	 *            mm
+	 * @param trackOffset
+	 *            distance from the middle of the robot to each track, mm
+	 */
+	public PoseTracker(TachoMotor left, TachoMotor right, double wheelDiameter, double trackOffset, Clock clock) {
+		this(left, right, wheelDiameter, trackOffset, clock, DEFAULT_PERIOD_NANOS);
+	}
+
+	public PoseTracker(TachoMotor left, TachoMotor right, double wheelDiameter, double trackOffset, Clock clock,
+			long periodNanos) {
+		this.left = left;
+		this.right = right;
+		this.clock = clock;
+		this.periodNanos = periodNanos;
+		this.mmPerDegree = Math.PI * wheelDiameter / 360;
+		this.trackOffset = trackOffset;
+	}
+
+	/**
+	 * Tracks until interrupted, on the same fixed-rate schedule as the
+	 * DistanceSampler.
+	 */
+	@Override
+	public void run() {
+		long due = clock.nanoTime();
+		while (!Thread.currentThread().isInterrupted()) {
+			updateOnce();
+			due += periodNanos;
+			long wait = due - clock.nanoTime();
+			if (wait <= 0) {
+				// fell behind - start again from now rather than catch up
+				due = clock.nanoTime();
+				continue;
+			}
+			try {
+				clock.sleepNanos(wait);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reads the tachos and publishes the new pose. Only ever called by one
+	 * thread - the tracker's own, or a tool stepping it by hand.
+	 */
+	public void updateOnce() {
+		int leftCount = left.getTachoCount();
+		int rightCount = right.getTachoCount();
+		long nanos = clock.nanoTime();
+		if (resetRequested) {
+			synchronized (this) {
+				x = resetX;
+				y = resetY;
+				heading = Math.toRadians(resetHeading);
+				resetRequested = false;
+			}
+		}
+		double distance = 0;
+		double turn = 0;
+		if (started) {
+			double leftDistance = (leftCount - lastLeft) * mmPerDegree;
+			double rightDistance = (rightCount - lastRight) * mmPerDegree;
+			distance = (leftDistance + rightDistance) / 2;
+			turn = (rightDistance - leftDistance) / (2 * trackOffset);
+			double midHeading = heading + turn / 2;
+			x += distance * Math.cos(midHeading);
+			y += distance * Math.sin(midHeading);
+			heading += turn;
+		}
+		double seconds = started && nanos > lastNanos ? (nanos - lastNanos) / 1e9 : 0;
+		started = true;
+		lastLeft = leftCount;
+		lastRight = rightCount;
+		lastNanos = nanos;
+		count++;
+
+		version++;
+		latestSequence = count;
+		latestNanos = nanos;
+		latestX = x;
+		latestY = y;
+		latestHeading = Math.toDegrees(heading);
+		latestLinearVelocity = seconds > 0 ? distance / seconds : 0;
+		latestAngularVelocity = seconds > 0 ? Math.toDegrees(turn) / seconds : 0;
+		version++;
+	}
+
+	/**
+	 * Moves the tracked pose to the given one from the next update on. Safe
+	 * to call from any thread.
+	 */
+	public synchronized void setPose(double x, double y, double heading) {
+		resetX = x;
+		resetY = y;
+		resetHeading = heading;
+		resetRequested = true;
+	}
+
+	/**
+	 * Copies the latest pose into <code>snapshot</code> without locking.
+	 *
+	 * @return <code>snapshot</code>
+	 */
+	public Snapshot getSnapshot(Snapshot snapshot) {
+		while (true) {
+			long before = version;
+			if ((before & 1) == 0) {
+				snapshot.sequence = latestSequence;
+				snapshot.nanos = latestNanos;
+				snapshot.x = latestX;
+				snapshot.y = latestY;
+				snapshot.heading = latestHeading;
+				snapshot.linearVelocity = latestLinearVelocity;
+				snapshot.angularVelocity = latestAngularVelocity;
+				if (version == before) {
+					return snapshot;
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	public long getUpdateCount() {
+		return latestSequence;
+	}
+
+	public long getPeriodNanos() {
+		return periodNanos;
+	}
+}
@@ -0,0 +1,51 @@
+package com.loneranger.lejos.simulation;
+
+import java.util.Arrays;
+
+import com.loneranger.lejos.hardware.Display;
+
+/**
+ * An in-memory character grid the size of the EV3's LCD, so whatever the
+ * stack draws can be checked or printed.
+ */
+public class SimulatedDisplay implements Display {
+	// guarded by this
+	private final char[][] cells = new char[HEIGHT][WIDTH];
+	private long refreshCount = 0;
+
+	public SimulatedDisplay() {
+		clear();
+	}
+
+	@Override
+	public synchronized void clear() {
+		for (char[] line : cells) {
+			Arrays.fill(line, ' ');
+		}
+	}
+
+	@Override
+	public synchronized void drawString(String text, int x, int y) {
+		if (y < 0 || y >= HEIGHT) {
+			return;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (x + i >= 0 && x + i < WIDTH) {
+				cells[y][x + i] = text.charAt(i);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void refresh() {
+		refreshCount++;
+	}
+
+	public synchronized String getLine(int y) {
+		return new String(cells[y]);
+	}
+
+	public synchronized long getRefreshCount() {
+		return refreshCount;
+	}
+}
@@ -0,0 +1,36 @@
+package com.loneranger.lejos.simulation;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * The IR sensor in distance mode: whole cm to the nearest obstacle in front
+ * of it, or positive infinity when nothing is in range - as EV3IRSensor
+ * reports it.
+ */
+public class SimulatedInfraredSensor implements SampleProvider {
+	public static final float MAX_RANGE_CM = 100;
+	// the sensor faces the end the behaviours call forward, which the pilot
+	// reaches with negative travel
+	public static final double MOUNT_HEADING = 180;
+
+	private final SimulatedWorld world;
+	private final SimulatedPilot pilot;
+	private final double[] pose = new double[3];
+
+	public SimulatedInfraredSensor(SimulatedWorld world, SimulatedPilot pilot) {
+		this.world = world;
+		this.pilot = pilot;
+	}
+
+	@Override
+	public int sampleSize() {
+		return 1;
+	}
+
+	@Override
+	public synchronized void fetchSample(float[] sample, int offset) {
+		pilot.getPose(pose);
+		double distance = Math.round(world.distance(pose[0], pose[1], pose[2] + MOUNT_HEADING) / 10);
+		sample[offset] = distance >= MAX_RANGE_CM ? Float.POSITIVE_INFINITY : (float) distance;
+	}
+}
@@ -0,0 +1,26 @@
+package com.loneranger.lejos.simulation;
+
+import com.loneranger.lejos.hardware.TachoMotor;
+
+/**
+ * A drive motor's tachometer, kept up to date by the {@link SimulatedPilot}.
+ */
+public class SimulatedMotor implements TachoMotor {
+	volatile private int tachoCount = 0;
+	volatile private int rotationSpeed = 0;
+
+	void update(double degrees, double degreesPerSecond) {
+		tachoCount = (int) Math.round(degrees);
+		rotationSpeed = (int) Math.round(degreesPerSecond);
+	}
+
+	@Override
+	public int getTachoCount() {
+		return tachoCount;
+	}
+
+	@Override
+	public int getRotationSpeed() {
+		return rotationSpeed;
+	}
+}
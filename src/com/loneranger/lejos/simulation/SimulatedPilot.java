@@ -0,0 +1,273 @@
+package com.loneranger.lejos.simulation;
+
+import com.loneranger.lejos.hardware.DrivePilot;
+import com.loneranger.lejos.hardware.Track3rHardware;
+
+/**
+ * Differential drive model of the track3r. Moves behave like MovePilot's:
+ * linear and angular speed ramp up and down at the configured accelerations,
+ * and a finite move brakes so that it ends exactly on its distance or angle.
+ * Nothing moves until {@link #step(long)} is called - the simulation steps
+ * the pilot and then advances the virtual clock, so the ground truth pose is
+ * a pure function of the commands and the step sizes.
+ *
+ * Blocking calls (travel and rotate without immediate return, stop) wait for
+ * the stepping thread, exactly as MovePilot waits for the motors.
+ */
+public class SimulatedPilot implements DrivePilot {
+	// MovePilot's max is 100 deg/s per volt; a fresh EV3 battery is ~7.4V
+	public static final double MAX_MOTOR_SPEED = 740;
+	public static final double WHEEL_CIRCUMFERENCE = Math.PI * Track3rHardware.WHEEL_DIAMETER;
+	public static final double MAX_LINEAR_SPEED = MAX_MOTOR_SPEED / 360 * WHEEL_CIRCUMFERENCE;
+	// turning in place each wheel runs round a circle of radius WHEEL_OFFSET
+	public static final double MAX_ANGULAR_SPEED = Math.toDegrees(MAX_LINEAR_SPEED / Track3rHardware.WHEEL_OFFSET);
+
+	private enum Move {
+		NONE, TRAVEL, ROTATE, VELOCITY, STOP
+	}
+
+	private final SimulatedMotor leftMotor = new SimulatedMotor();
+	private final SimulatedMotor rightMotor = new SimulatedMotor();
+
+	// everything below is guarded by this
+
+	// MovePilot's defaults
+	private double linearSpeed = 0.8 * MAX_LINEAR_SPEED;
+	private double linearAcceleration = 4 * linearSpeed;
+	private double angularSpeed = 0.8 * MAX_ANGULAR_SPEED;
+	private double angularAcceleration = 4 * angularSpeed;
+
+	private Move move = Move.NONE;
+	private long moveId = 0;
+	// mm or degrees still to go, signed - may be infinite
+	private double remaining = 0;
+	// VELOCITY moves only
+	private double velocitySetpoint = 0;
+	private double angularVelocitySetpoint = 0;
+
+	private double velocity = 0; // mm/s
+	private double angularVelocity = 0; // deg/s, anticlockwise
+	private double x = 0;
+	private double y = 0;
+	private double heading = 0; // degrees from the x axis
+	private double leftDistance = 0;
+	private double rightDistance = 0;
+
+	public SimulatedMotor getLeftMotor() {
+		return leftMotor;
+	}
+
+	public SimulatedMotor getRightMotor() {
+		return rightMotor;
+	}
+
+	/**
+	 * Advances the model by <code>nanos</code> of virtual time.
+	 */
+	public synchronized void step(long nanos) {
+		double dt = nanos / 1e9;
+		double targetVelocity = 0;
+		double targetAngularVelocity = 0;
+		if (move == Move.TRAVEL) {
+			targetVelocity = brakingSpeed(remaining, linearSpeed, linearAcceleration);
+		} else if (move == Move.ROTATE) {
+			targetAngularVelocity = brakingSpeed(remaining, angularSpeed, angularAcceleration);
+		} else if (move == Move.VELOCITY) {
+			targetVelocity = velocitySetpoint;
+			targetAngularVelocity = angularVelocitySetpoint;
+		}
+		velocity = approach(velocity, targetVelocity, linearAcceleration * dt);
+		angularVelocity = approach(angularVelocity, targetAngularVelocity, angularAcceleration * dt);
+
+		double distance = velocity * dt;
+		double angle = angularVelocity * dt;
+		if (move == Move.TRAVEL) {
+			if (reached(distance, remaining)) {
+				distance = remaining;
+				velocity = 0;
+				finishMove();
+			} else {
+				remaining -= distance;
+			}
+		} else if (move == Move.ROTATE) {
+			if (reached(angle, remaining)) {
+				angle = remaining;
+				angularVelocity = 0;
+				finishMove();
+			} else {
+				remaining -= angle;
+			}
+		} else if (move == Move.STOP && velocity == 0 && angularVelocity == 0) {
+			finishMove();
+		}
+
+		double midHeading = Math.toRadians(heading + angle / 2);
+		x += distance * Math.cos(midHeading);
+		y += distance * Math.sin(midHeading);
+		heading += angle;
+		// the left wheel is offset to the left, so turning anticlockwise runs it backwards
+		double arc = Math.toRadians(angle) * Track3rHardware.WHEEL_OFFSET;
+		double wheelSpeed = Math.toRadians(angularVelocity) * Track3rHardware.WHEEL_OFFSET;
+		leftDistance += distance - arc;
+		rightDistance += distance + arc;
+		leftMotor.update(toMotorDegrees(leftDistance), toMotorDegrees(velocity - wheelSpeed));
+		rightMotor.update(toMotorDegrees(rightDistance), toMotorDegrees(velocity + wheelSpeed));
+	}
+
+	private static double brakingSpeed(double remaining, double speed, double acceleration) {
+		// fastest speed that can still stop in the remaining distance
+		double limit = Math.min(speed, Math.sqrt(2 * acceleration * Math.abs(remaining)));
+		return remaining < 0 ? -limit : limit;
+	}
+
+	private static double approach(double current, double target, double maxChange) {
+		if (Math.abs(target - current) <= maxChange) {
+			return target;
+		}
+		return current < target ? current + maxChange : current - maxChange;
+	}
+
+	private static boolean reached(double moved, double remaining) {
+		return Math.signum(moved) == Math.signum(remaining) && Math.abs(moved) >= Math.abs(remaining);
+	}
+
+	private static double toMotorDegrees(double mm) {
+		return mm / WHEEL_CIRCUMFERENCE * 360;
+	}
+
+	private void finishMove() {
+		move = Move.NONE;
+		remaining = 0;
+		notifyAll();
+	}
+
+	private synchronized long startMove(Move type, double amount) {
+		move = type;
+		remaining = amount;
+		// wakes whoever was waiting on the move this one replaces
+		notifyAll();
+		return ++moveId;
+	}
+
+	private synchronized void waitForMove(long id) {
+		while (moveId == id && move != Move.NONE) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void travel(double distance, boolean immediateReturn) {
+		long id = startMove(Move.TRAVEL, distance);
+		if (!immediateReturn) {
+			waitForMove(id);
+		}
+	}
+
+	@Override
+	public void rotate(double angle) {
+		rotate(angle, false);
+	}
+
+	@Override
+	public void rotate(double angle, boolean immediateReturn) {
+		long id = startMove(Move.ROTATE, angle);
+		if (!immediateReturn) {
+			waitForMove(id);
+		}
+	}
+
+	@Override
+	public synchronized void setVelocity(double linearSpeed, double angularSpeed) {
+		// replaces any move in progress but keeps the current velocity, so
+		// the robot ramps straight to the new one
+		velocitySetpoint = Math.max(-MAX_LINEAR_SPEED, Math.min(MAX_LINEAR_SPEED, linearSpeed));
+		angularVelocitySetpoint = Math.max(-MAX_ANGULAR_SPEED, Math.min(MAX_ANGULAR_SPEED, angularSpeed));
+		startMove(Move.VELOCITY, 0);
+	}
+
+	@Override
+	public void stop() {
+		long id;
+		synchronized (this) {
+			if (!isMoving()) {
+				return;
+			}
+			id = startMove(Move.STOP, 0);
+		}
+		waitForMove(id);
+	}
+
+	@Override
+	public synchronized boolean isMoving() {
+		return move != Move.NONE || velocity != 0 || angularVelocity != 0;
+	}
+
+	@Override
+	public synchronized double getLinearSpeed() {
+		return linearSpeed;
+	}
+
+	@Override
+	public synchronized void setLinearSpeed(double speed) {
+		this.linearSpeed = Math.abs(speed);
+	}
+
+	@Override
+	public double getMaxLinearSpeed() {
+		return MAX_LINEAR_SPEED;
+	}
+
+	@Override
+	public synchronized void setLinearAcceleration(double acceleration) {
+		this.linearAcceleration = Math.abs(acceleration);
+	}
+
+	@Override
+	public synchronized double getAngularSpeed() {
+		return angularSpeed;
+	}
+
+	@Override
+	public synchronized void setAngularSpeed(double speed) {
+		this.angularSpeed = Math.abs(speed);
+	}
+
+	public synchronized void setAngularAcceleration(double acceleration) {
+		this.angularAcceleration = Math.abs(acceleration);
+	}
+
+	/**
+	 * @return the current linear velocity in mm/s - negative when reversing
+	 */
+	public synchronized double getVelocity() {
+		return velocity;
+	}
+
+	/**
+	 * @return the current angular velocity in degrees/s, anticlockwise
+	 */
+	public synchronized double getAngularVelocity() {
+		return angularVelocity;
+	}
+
+	/**
+	 * Copies the ground truth pose into <code>pose</code> as x (mm), y (mm),
+	 * heading (degrees).
+	 */
+	public synchronized void getPose(double[] pose) {
+		pose[0] = x;
+		pose[1] = y;
+		pose[2] = heading;
+	}
+
+	public synchronized void setPose(double x, double y, double heading) {
+		this.x = x;
+		this.y = y;
+		this.heading = heading;
+	}
+}
@@ -0,0 +1,47 @@
+package com.loneranger.lejos.simulation;
+
+import java.io.File;
+
+import com.loneranger.lejos.hardware.Speaker;
+
+/**
+ * Counts what would have been played - a PCM sample counts as played with no
+ * name. Playback takes no time, unlike on the
+ * brick, so samples never hold up the behaviour that plays them.
+ */
+public class SimulatedSpeaker implements Speaker {
+	volatile private int samplesPlayed = 0;
+	volatile private int beepSequences = 0;
+	volatile private String lastSample = null;
+
+	@Override
+	public synchronized int playSample(File file) {
+		samplesPlayed++;
+		lastSample = file.getName();
+		return 0;
+	}
+
+	@Override
+	public synchronized int playSample(byte[] data, int offset, int length, int sampleRate) {
+		samplesPlayed++;
+		lastSample = null;
+		return (int) (length * 1000L / sampleRate);
+	}
+
+	@Override
+	public synchronized void beepSequenceUp() {
+		beepSequences++;
+	}
+
+	public int getSamplesPlayed() {
+		return samplesPlayed;
+	}
+
+	public int getBeepSequences() {
+		return beepSequences;
+	}
+
+	public String getLastSample() {
+		return lastSample;
+	}
+}
@@ -0,0 +1,35 @@
+package com.loneranger.lejos.simulation;
+
+import java.io.IOException;
+
+import com.loneranger.lejos.control.web.ApiControlledTrack3r;
+
+/**
+ * Runs the full control stack - servers, command queue, arbitrator and
+ * behaviours - against the simulated robot on an ordinary machine.
+ *
+ * Arguments: [http port, default 8080] [udp port, default 8888] [realtime
+ * factor, default 1]
+ */
+public class SimulatedTrack3r {
+	public static final int DEFAULT_HTTP_PORT = 8080;
+	public static final int DEFAULT_UDP_PORT = 8888;
+
+	public static void main(String[] args) throws IOException {
+		int httpPort = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_HTTP_PORT;
+		int udpPort = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_UDP_PORT;
+		double realtimeFactor = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+
+		SimulatedTrack3rHardware hardware = new SimulatedTrack3rHardware();
+		SimulationDriver driver = new SimulationDriver(hardware, realtimeFactor);
+		Thread simulation = new Thread(driver, "simulation");
+		simulation.setDaemon(true);
+		simulation.start();
+
+		ApiControlledTrack3r track3r = new ApiControlledTrack3r(hardware, httpPort, udpPort);
+		track3r.start();
+		System.out.println("simulated track3r listening on http " + httpPort + ", udp " + udpPort);
+		track3r.go();
+		driver.stop();
+	}
+}
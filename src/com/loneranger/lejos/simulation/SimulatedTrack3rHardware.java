@@ -0,0 +1,110 @@
+package com.loneranger.lejos.simulation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.hardware.Display;
+import com.loneranger.lejos.hardware.DrivePilot;
+import com.loneranger.lejos.hardware.Speaker;
+import com.loneranger.lejos.hardware.TachoMotor;
+import com.loneranger.lejos.hardware.Track3rHardware;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * The whole robot in simulation. Nothing happens by itself: something has to
+ * call {@link #step(long)}, normally a {@link SimulationDriver}.
+ */
+public class SimulatedTrack3rHardware implements Track3rHardware {
+	private final VirtualClock clock = new VirtualClock();
+	private final SimulatedWorld world;
+	private final SimulatedPilot pilot = new SimulatedPilot();
+	private final SimulatedInfraredSensor infraredSensor;
+	private final SimulatedDisplay display = new SimulatedDisplay();
+	private final SimulatedSpeaker speaker = new SimulatedSpeaker();
+	private final List<Runnable> escapeListeners = new CopyOnWriteArrayList<>();
+
+	public SimulatedTrack3rHardware() {
+		this(new SimulatedWorld());
+	}
+
+	public SimulatedTrack3rHardware(SimulatedWorld world) {
+		this.world = world;
+		this.infraredSensor = new SimulatedInfraredSensor(world, pilot);
+	}
+
+	/**
+	 * Moves the robot and then the clock on by <code>nanos</code>.
+	 */
+	public void step(long nanos) {
+		pilot.step(nanos);
+		clock.advance(nanos);
+	}
+
+	public void pressEscape() {
+		for (Runnable listener : escapeListeners) {
+			listener.run();
+		}
+	}
+
+	public SimulatedWorld getWorld() {
+		return world;
+	}
+
+	public VirtualClock getVirtualClock() {
+		return clock;
+	}
+
+	public SimulatedPilot getSimulatedPilot() {
+		return pilot;
+	}
+
+	public SimulatedDisplay getSimulatedDisplay() {
+		return display;
+	}
+
+	public SimulatedSpeaker getSimulatedSpeaker() {
+		return speaker;
+	}
+
+	@Override
+	public DrivePilot getPilot() {
+		return pilot;
+	}
+
+	@Override
+	public TachoMotor getLeftMotor() {
+		return pilot.getLeftMotor();
+	}
+
+	@Override
+	public TachoMotor getRightMotor() {
+		return pilot.getRightMotor();
+	}
+
+	@Override
+	public SampleProvider getDistanceSensor() {
+		return infraredSensor;
+	}
+
+	@Override
+	public Display getDisplay() {
+		return display;
+	}
+
+	@Override
+	public Speaker getSpeaker() {
+		return speaker;
+	}
+
+	@Override
+	public Clock getClock() {
+		return clock;
+	}
+
+	@Override
+	public void addEscapeListener(Runnable listener) {
+		escapeListeners.add(listener);
+	}
+}
@@ -0,0 +1,62 @@
+package com.loneranger.lejos.simulation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The flat floor the simulated robot drives on, with round obstacles for the
+ * IR sensor to see. Coordinates are in mm.
+ */
+public class SimulatedWorld {
+
+	private static class Obstacle {
+		final double x;
+		final double y;
+		final double radius;
+
+		Obstacle(double x, double y, double radius) {
+			this.x = x;
+			this.y = y;
+			this.radius = radius;
+		}
+	}
+
+	private final List<Obstacle> obstacles = new CopyOnWriteArrayList<>();
+
+	public void addObstacle(double x, double y, double radius) {
+		obstacles.add(new Obstacle(x, y, radius));
+	}
+
+	public void clearObstacles() {
+		obstacles.clear();
+	}
+
+	/**
+	 * @return the distance in mm from (x, y) along <code>heading</code>
+	 *         (degrees) to the nearest obstacle, 0 if (x, y) is inside one, or
+	 *         positive infinity if the ray hits nothing
+	 */
+	public double distance(double x, double y, double heading) {
+		double dx = Math.cos(Math.toRadians(heading));
+		double dy = Math.sin(Math.toRadians(heading));
+		double nearest = Double.POSITIVE_INFINITY;
+		for (Obstacle obstacle : obstacles) {
+			double fx = x - obstacle.x;
+			double fy = y - obstacle.y;
+			double b = fx * dx + fy * dy;
+			double c = fx * fx + fy * fy - obstacle.radius * obstacle.radius;
+			if (c <= 0) {
+				return 0;
+			}
+			double discriminant = b * b - c;
+			if (discriminant < 0) {
+				continue;
+			}
+			double t = -b - Math.sqrt(discriminant);
+			if (t >= 0 && t < nearest) {
+				nearest = t;
+			}
+		}
+		return nearest;
+	}
+}
@@ -0,0 +1,56 @@
+package com.loneranger.lejos.simulation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steps a simulated robot in fixed increments of virtual time. With a
+ * realtime factor of 1 virtual time keeps pace with the wall clock, 2 runs
+ * twice as fast, and 0 steps as fast as the host can.
+ */
+public class SimulationDriver implements Runnable {
+	public static final long DEFAULT_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final SimulatedTrack3rHardware hardware;
+	private final long stepNanos;
+	private final double realtimeFactor;
+	volatile private boolean running = true;
+	volatile private long steps = 0;
+
+	public SimulationDriver(SimulatedTrack3rHardware hardware, double realtimeFactor) {
+		this(hardware, DEFAULT_STEP_NANOS, realtimeFactor);
+	}
+
+	public SimulationDriver(SimulatedTrack3rHardware hardware, long stepNanos, double realtimeFactor) {
+		this.hardware = hardware;
+		this.stepNanos = stepNanos;
+		this.realtimeFactor = realtimeFactor;
+	}
+
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+		while (running) {
+			hardware.step(stepNanos);
+			steps++;
+			if (realtimeFactor > 0) {
+				long due = start + (long) (steps * stepNanos / realtimeFactor);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	public long getSteps() {
+		return steps;
+	}
+}
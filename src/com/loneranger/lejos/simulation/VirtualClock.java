@@ -0,0 +1,31 @@
+package com.loneranger.lejos.simulation;
+
+import com.loneranger.lejos.hardware.Clock;
+
+/**
+ * A clock that only moves when the simulation advances it, so a simulated run
+ * is repeatable however fast or slow the host is. Sleepers wake once enough
+ * virtual time has passed.
+ */
+public class VirtualClock implements Clock {
+	// guarded by this
+	private long now = 0;
+
+	@Override
+	public synchronized long nanoTime() {
+		return now;
+	}
+
+	public synchronized void advance(long nanos) {
+		now += nanos;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void sleepNanos(long nanos) throws InterruptedException {
+		long wakeAt = now + nanos;
+		while (now < wakeAt) {
+			wait();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.loneranger.lejos.status;
+
+import com.loneranger.lejos.arbitrator.ArbitrationObserver;
+
+import lejos.robotics.subsumption.Behavior;
+
+/**
+ * What the robot is doing, for the display: the mode the behaviours last
+ * posted (DRIVE, STOP, ...) and the behaviour the arbitrator last activated.
+ * Posting only stores a reference, so behaviours can post from their action()
+ * without going near the LCD - a {@link StatusRenderer} draws it on its own
+ * thread.
+ */
+public class StatusModel implements ArbitrationObserver {
+	volatile private String mode = "";
+	volatile private String activeBehaviour = "";
+	volatile private int activePriority = -1;
+
+	public void postMode(String mode) {
+		this.mode = mode;
+	}
+
+	public String getMode() {
+		return mode;
+	}
+
+	public String getActiveBehaviour() {
+		return activeBehaviour;
+	}
+
+	/**
+	 * @return the index in the arbitrator's behaviour array of the behaviour
+	 *         last activated, -1 before the first
+	 */
+	public int getActivePriority() {
+		return activePriority;
+	}
+
+	@Override
+	public void behaviorActivated(int priority, Behavior behavior) {
+		String name = behavior.getClass().getSimpleName();
+		// the suffix doesn't fit on the LCD
+		int suffix = Math.max(name.lastIndexOf("Behaviour"), name.lastIndexOf("Behavior"));
+		activeBehaviour = suffix > 0 ? name.substring(0, suffix) : name;
+		activePriority = priority;
+	}
+}
@@ -0,0 +1,212 @@
+package com.loneranger.lejos.status;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.control.web.CommandQueue;
+import com.loneranger.lejos.hardware.Clock;
+import com.loneranger.lejos.hardware.Display;
+import com.loneranger.lejos.metrics.CommandLatency;
+import com.loneranger.lejos.sensing.DistanceSampler;
+
+/**
+ * Draws the {@link StatusModel} and some live stats on the LCD from its own
+ * thread, at most {@link #FRAME_RATE} times a second:
+ *
+ * <pre>
+ * &gt; DRIVE           mode last posted
+ * act VelocityDrive   behaviour last activated
+ * cmd 12/s            commands dispatched over the last second
+ * ir 42cm             smoothed IR distance
+ *
+ * dsp 80us/1ms        command latency, p50/p99 per stage
+ * act 300us/2ms
+ * iss 350us/3ms
+ * </pre>
+ *
+ * Each frame is laid out in memory and compared with the last one drawn, and
+ * only the runs of cells that changed are written to the LCD - nothing is
+ * ever cleared, so quick changes of mode don't flicker. Sources that aren't
+ * set are left blank.
+ */
+public class StatusRenderer implements Runnable {
+	public static final int FRAME_RATE = 10;
+	private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / FRAME_RATE;
+	private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * A Display that only fills in a character grid.
+	 */
+	static class FrameBuffer implements Display {
+		final char[][] cells = new char[HEIGHT][WIDTH];
+
+		FrameBuffer() {
+			clear();
+		}
+
+		@Override
+		public void clear() {
+			for (char[] line : cells) {
+				Arrays.fill(line, ' ');
+			}
+		}
+
+		@Override
+		public void drawString(String text, int x, int y) {
+			if (y < 0 || y >= HEIGHT) {
+				return;
+			}
+			for (int i = 0; i < text.length() && x + i < WIDTH; i++) {
+				if (x + i >= 0) {
+					cells[y][x + i] = text.charAt(i);
+				}
+			}
+		}
+
+		@Override
+		public void refresh() {
+		}
+	}
+
+	private final Display lcd;
+	private final Clock clock;
+	private final StatusModel model;
+	volatile private CommandQueue commands = null;
+	volatile private DistanceSampler distance = null;
+	volatile private CommandLatency latency = null;
+
+	// renderer thread only
+	private final FrameBuffer next = new FrameBuffer();
+	private final FrameBuffer shown = new FrameBuffer();
+	private final StringBuilder line = new StringBuilder(Display.WIDTH);
+	private long rateWindowStart = 0;
+	private long rateWindowCount = 0;
+	private long commandRate = 0;
+
+	volatile private long frames = 0;
+	volatile private long cellsDrawn = 0;
+
+	public StatusRenderer(Display lcd, Clock clock, StatusModel model) {
+		this.lcd = lcd;
+		this.clock = clock;
+		this.model = model;
+	}
+
+	public void setCommandQueue(CommandQueue commands) {
+		this.commands = commands;
+	}
+
+	public void setDistanceSampler(DistanceSampler distance) {
+		this.distance = distance;
+	}
+
+	public void setCommandLatency(CommandLatency latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Draws frames until interrupted, then one last one so the final mode
+	 * posted is left on the LCD.
+	 */
+	@Override
+	public void run() {
+		lcd.clear();
+		while (!Thread.currentThread().isInterrupted()) {
+			renderFrame();
+			try {
+				clock.sleepNanos(FRAME_NANOS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		renderFrame();
+	}
+
+	/**
+	 * Lays out and draws one frame. Only ever called by one thread.
+	 */
+	public void renderFrame() {
+		layout(clock.nanoTime());
+		int drawn = 0;
+		for (int y = 0; y < Display.HEIGHT; y++) {
+			char[] want = next.cells[y];
+			char[] have = shown.cells[y];
+			int x = 0;
+			while (x < Display.WIDTH) {
+				if (want[x] == have[x]) {
+					x++;
+					continue;
+				}
+				int start = x;
+				while (x < Display.WIDTH && want[x] != have[x]) {
+					x++;
+				}
+				lcd.drawString(new String(want, start, x - start), start, y);
+				System.arraycopy(want, start, have, start, x - start);
+				drawn += x - start;
+			}
+		}
+		if (drawn > 0) {
+			lcd.refresh();
+			cellsDrawn += drawn;
+		}
+		frames++;
+	}
+
+	private void layout(long now) {
+		next.clear();
+		line.setLength(0);
+		line.append("> ").append(model.getMode());
+		draw(0);
+		line.setLength(0);
+		line.append("act ").append(model.getActiveBehaviour());
+		draw(1);
+
+		CommandQueue commands = this.commands;
+		if (commands != null) {
+			long count = commands.getDispatchedCount();
+			if (now - rateWindowStart >= RATE_WINDOW_NANOS) {
+				// a whole window keeps the figure steady between frames
+				commandRate = rateWindowStart == 0 ? 0
+						: (count - rateWindowCount) * RATE_WINDOW_NANOS / (now - rateWindowStart);
+				rateWindowStart = now;
+				rateWindowCount = count;
+			}
+			line.setLength(0);
+			line.append("cmd ").append(commandRate).append("/s");
+			draw(2);
+		}
+		DistanceSampler distance = this.distance;
+		if (distance != null) {
+			float cm = distance.getDistance();
+			line.setLength(0);
+			line.append("ir ");
+			if (Float.isInfinite(cm)) {
+				line.append("--");
+			} else {
+				line.append(Math.round(cm)).append("cm");
+			}
+			draw(3);
+		}
+		CommandLatency latency = this.latency;
+		if (latency != null) {
+			latency.drawSummary(next, 5);
+		}
+	}
+
+	private void draw(int y) {
+		int length = Math.min(line.length(), Display.WIDTH);
+		line.getChars(0, length, next.cells[y], 0);
+	}
+
+	public long getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * @return character cells written to the LCD so far
+	 */
+	public long getCellsDrawn() {
+		return cellsDrawn;
+	}
+}
@@ -0,0 +1,204 @@
+package com.loneranger.lejos.timing;
+
+import java.util.concurrent.TimeUnit;
+
+import com.loneranger.lejos.hardware.Clock;
+
+/**
+ * Runs timeouts from a single thread using a hashed timer wheel. Time is cut
+ * into ticks, and each pending {@link Timeout} sits in a doubly linked list in
+ * the wheel slot for the tick it is due on, with a count of the whole turns of
+ * the wheel still to go. Every tick the thread walks one slot and runs the
+ * timeouts that are due.
+ *
+ * Scheduling, rescheduling and cancelling only link or unlink a node, so they
+ * take the same time however many timeouts are pending. The nodes are the
+ * Timeouts themselves, which their owners create once and reuse, so nothing
+ * is allocated per timeout. A timeout runs no earlier than asked. While the
+ * thread keeps up it runs less than two ticks late: the delay is rounded up
+ * to whole ticks, counted from the end of the tick under way.
+ *
+ * Tasks run on the wheel's thread with the wheel locked. They must be quick
+ * and must not block, but they may reschedule timeouts, their own included.
+ */
+public class TimerWheel implements Runnable {
+	public static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// one turn covers a few seconds - longer timeouts wait out extra turns
+	public static final int DEFAULT_SLOTS = 256;
+
+	/**
+	 * A task to run once after a delay, reusable as often as needed.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		// guarded by the wheel
+		private Timeout previous = null;
+		private Timeout next = null;
+		// -1 while not pending
+		private int slot = -1;
+		private long rounds = 0;
+		// taken off the wheel by the tick under way, still to be run
+		private boolean due = false;
+		private Timeout nextDue = null;
+
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+	}
+
+	private final Clock clock;
+	private final long tickNanos;
+	private final int mask;
+	// guarded by this
+	private final Timeout[] slots;
+	// the next tick to be run
+	private long tick = 0;
+	private int pending = 0;
+
+	volatile private long fired = 0;
+
+	public TimerWheel(Clock clock) {
+		this(clock, DEFAULT_TICK_NANOS, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param slotCount
+	 *            rounded up to a power of two
+	 */
+	public TimerWheel(Clock clock, long tickNanos, int slotCount) {
+		this.clock = clock;
+		this.tickNanos = tickNanos;
+		int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+		this.mask = size - 1;
+		this.slots = new Timeout[size];
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * Runs <code>timeout</code> once <code>delayNanos</code> have passed,
+	 * replacing its current deadline if it is already pending.
+	 */
+	public synchronized void schedule(Timeout timeout, long delayNanos) {
+		unlink(timeout);
+		timeout.due = false;
+		long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+		// the tick under way may be nearly over, so count from the next one
+		long due = tick + ticks;
+		int slot = (int) (due & mask);
+		timeout.rounds = ticks / slots.length;
+		timeout.slot = slot;
+		timeout.previous = null;
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+		slots[slot] = timeout;
+		pending++;
+	}
+
+	/**
+	 * @return false if the timeout wasn't pending
+	 */
+	public synchronized boolean cancel(Timeout timeout) {
+		boolean wasDue = timeout.due;
+		timeout.due = false;
+		return unlink(timeout) || wasDue;
+	}
+
+	public synchronized boolean isPending(Timeout timeout) {
+		return timeout.slot >= 0 || timeout.due;
+	}
+
+	private boolean unlink(Timeout timeout) {
+		if (timeout.slot < 0) {
+			return false;
+		}
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		pending--;
+		return true;
+	}
+
+	/**
+	 * Ticks until interrupted. If the thread falls behind it runs the missed
+	 * ticks straight away, so nothing is skipped.
+	 */
+	@Override
+	public void run() {
+		long start = clock.nanoTime();
+		while (!Thread.currentThread().isInterrupted()) {
+			long wait;
+			synchronized (this) {
+				wait = start + (tick + 1) * tickNanos - clock.nanoTime();
+			}
+			if (wait > 0) {
+				try {
+					clock.sleepNanos(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			advance();
+		}
+	}
+
+	/**
+	 * Runs one tick's due timeouts. Only ever called by one thread - the
+	 * wheel's own, or a tool stepping it by hand.
+	 */
+	public synchronized void advance() {
+		int slot = (int) (tick & mask);
+		tick++;
+		// take the due timeouts off first, as the tasks may reschedule or
+		// cancel any timeout, including the ones still to be run
+		Timeout firstDue = null;
+		Timeout timeout = slots[slot];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				unlink(timeout);
+				timeout.due = true;
+				timeout.nextDue = firstDue;
+				firstDue = timeout;
+			}
+			timeout = next;
+		}
+		while (firstDue != null) {
+			timeout = firstDue;
+			firstDue = timeout.nextDue;
+			timeout.nextDue = null;
+			if (!timeout.due) {
+				continue;
+			}
+			timeout.due = false;
+			fired++;
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public synchronized int getPendingCount() {
+		return pending;
+	}
+
+	public long getFiredCount() {
+		return fired;
+	}
+}